@@ -0,0 +1,146 @@
+package org.ld4l.addlabels;
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+
+/**
+ * A minimal benchmark runner: a number of untimed warm-up iterations to let
+ * the JIT compile the code under test, then timed iterations, reported as
+ * the mean, minimum and standard deviation per operation, and the bytes 
+ * allocated per operation by the benchmark thread, where the JVM can count
+ * them. Results of each operation are folded into a sink so the JIT can't 
+ * discard the work.
+ */
+class Benchmark {
+
+    /**
+     * The code under test. Returns a value derived from its work.
+     */
+    interface Operation {
+        Object run() throws Exception;
+    }
+
+    /**
+     * Prepares fresh state before each timed iteration, outside the timing.
+     */
+    interface Setup {
+        void run() throws Exception;
+    }
+
+    private static final Setup NO_SETUP = () -> { };
+
+    private static final com.sun.management.ThreadMXBean THREADS =
+            threadMXBean();
+
+    private final int warmups;
+    private final int iterations;
+    private int sink;
+
+    Benchmark(int warmups, int iterations) {
+        this.warmups = warmups;
+        this.iterations = iterations;
+    }
+
+    /**
+     * Run the operation opsPerIteration times per iteration and print the
+     * time per operation.
+     */
+    void run(String name, int opsPerIteration, Operation operation)
+            throws Exception {
+        run(name, opsPerIteration, NO_SETUP, operation);
+    }
+
+    void run(String name, int opsPerIteration, Setup setup,
+            Operation operation) throws Exception {
+
+        for (int i = 0; i < warmups; i++) {
+            setup.run();
+            iterate(opsPerIteration, operation);
+        }
+
+        double[] nanosPerOp = new double[iterations];
+        long allocated = 0;
+        for (int i = 0; i < iterations; i++) {
+            setup.run();
+            long bytes = allocatedBytes();
+            long start = System.nanoTime();
+            iterate(opsPerIteration, operation);
+            nanosPerOp[i] =
+                    (System.nanoTime() - start) / (double) opsPerIteration;
+            allocated += allocatedBytes() - bytes;
+        }
+
+        report(name, nanosPerOp, 
+                allocated / ((double) iterations * opsPerIteration));
+    }
+
+    /**
+     * Return the sink, so that the caller can print it and keep the results
+     * live.
+     */
+    int getSink() {
+        return sink;
+    }
+
+    private void iterate(int ops, Operation operation) throws Exception {
+        for (int i = 0; i < ops; i++) {
+            Object result = operation.run();
+            sink += result == null ? 0 : result.hashCode();
+        }
+    }
+
+    /**
+     * Return the bytes allocated so far by this thread, or 0 if the JVM 
+     * can't tell.
+     */
+    private static long allocatedBytes() {
+
+        if (THREADS == null) {
+            return 0;
+        }
+        return THREADS.getThreadAllocatedBytes(
+                Thread.currentThread().getId());
+    }
+
+    private static com.sun.management.ThreadMXBean threadMXBean() {
+
+        java.lang.management.ThreadMXBean threads = 
+                ManagementFactory.getThreadMXBean();
+        if (threads instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean sunThreads =
+                    (com.sun.management.ThreadMXBean) threads;
+            if (sunThreads.isThreadAllocatedMemorySupported()) {
+                sunThreads.setThreadAllocatedMemoryEnabled(true);
+                return sunThreads;
+            }
+        }
+        return null;
+    }
+
+    private void report(String name, double[] nanosPerOp, 
+            double bytesPerOp) {
+
+        double mean = Arrays.stream(nanosPerOp).average().orElse(0);
+        double min = Arrays.stream(nanosPerOp).min().orElse(0);
+        double variance = Arrays.stream(nanosPerOp)
+                .map(n -> (n - mean) * (n - mean)).sum()
+                / Math.max(1, nanosPerOp.length - 1);
+
+        System.out.println(String.format(
+                "%-45s %14s/op  (min %s, sd %s, n=%d)%s", name,
+                format(mean), format(min), format(Math.sqrt(variance)),
+                nanosPerOp.length, THREADS == null ? "" 
+                        : String.format("  %.0f B/op", bytesPerOp)));
+    }
+
+    private static String format(double nanos) {
+        if (nanos >= 1e9) {
+            return String.format("%.3f s", nanos / 1e9);
+        } else if (nanos >= 1e6) {
+            return String.format("%.3f ms", nanos / 1e6);
+        } else if (nanos >= 1e3) {
+            return String.format("%.3f us", nanos / 1e3);
+        }
+        return String.format("%.1f ns", nanos);
+    }
+}
@@ -0,0 +1,348 @@
+package org.ld4l.addlabels;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.jena.rdf.model.Model;
+import org.apache.jena.rdf.model.ModelFactory;
+import org.apache.jena.rdf.model.Resource;
+import org.apache.jena.riot.system.StreamRDFLib;
+import org.apache.jena.vocabulary.RDF;
+import org.apache.jena.vocabulary.RDFS;
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.core.config.Configurator;
+
+/**
+ * Benchmarks for the labelling pipeline:
+ *
+ *   makeLabel - LabelMaker.makeLabel for one resource of each kind
+ *   getLabels - Labeller.getLabels(Model) over synthetic models, subject by
+ *               subject and set-at-a-time (join), on Jena's default graph
+ *               and on a CompactGraph
+ *   graph     - the heap retained per triple by synthetic models on Jena's
+ *               default graph and on a CompactGraph
+ *   endToEnd  - read, label and write a synthetic N-Triples file, in model
+ *               and streaming modes
+ *   parse     - read a synthetic N-Triples file into a Model with
+ *               Model.read, and with RecoveringParser on 1 thread and on
+ *               one thread per core
+ *   logging   - makeLabel and getLabels(Model) with logging off, and with
+ *               per-subject debug and trace on but no subject sampled. The
+ *               bytes allocated per operation should be the same.
+ *   modifyLabel - LabelModifier.modifyLabel with the default rules, and
+ *               with prefix and regex rules, for labels that a rule
+ *               applies to and labels that none does
+ *
+ * Usage: LabellingBenchmarks 
+ * [makeLabel|getLabels|graph|endToEnd|parse|logging|modifyLabel|all] [sizes] 
+ * where sizes is a comma-separated list of triple counts for getLabels, 
+ * graph, endToEnd, parse and logging, by default 10000,1000000. Larger sizes need a correspondingly
+ * larger heap (-Xmx); 10000000 triples needs about 8 GB.
+ */
+public class LabellingBenchmarks {
+
+    private static final long SEED = 20160101L;
+
+    private static final String LD4L = "http://bib.ld4l.org/ontology/";
+
+    public static void main(String[] args) throws Exception {
+
+        // Per-subject debug logging would swamp the timings.
+        Configurator.setRootLevel(Level.WARN);
+
+        String suite = args.length > 0 ? args[0] : "all";
+        long[] sizes = args.length > 1
+                ? parseSizes(args[1]) : new long[] { 10000, 1000000 };
+
+        Benchmark micro = new Benchmark(5, 10);
+        Benchmark macro = new Benchmark(2, 5);
+        if (suite.equals("makeLabel") || suite.equals("all")) {
+            makeLabel(micro);
+        }
+        if (suite.equals("getLabels") || suite.equals("all")) {
+            getLabels(macro, sizes);
+        }
+        if (suite.equals("graph") || suite.equals("all")) {
+            graph(sizes);
+        }
+        if (suite.equals("endToEnd") || suite.equals("all")) {
+            endToEnd(macro, sizes);
+        }
+        if (suite.equals("parse") || suite.equals("all")) {
+            parse(macro, sizes);
+        }
+        if (suite.equals("logging") || suite.equals("all")) {
+            logging(micro, macro, sizes);
+        }
+        if (suite.equals("modifyLabel") || suite.equals("all")) {
+            modifyLabel(micro);
+        }
+        System.out.println("(sink " + (micro.getSink() + macro.getSink()) 
+                + ")");
+    }
+
+    private static void makeLabel(Benchmark benchmark) throws Exception {
+
+        Model model = ModelFactory.createDefaultModel();
+        LabelMaker labelMaker = new LabelMaker();
+        Resource work = createWork(model);
+        Resource person = model.createResource("http://example.org/person")
+                .addProperty(RDF.type, model.createResource(
+                        "http://xmlns.com/foaf/0.1/Person"))
+                .addProperty(model.createProperty(
+                        "http://xmlns.com/foaf/0.1/name"), "A person");
+        Resource authority = model.createResource(
+                        "http://example.org/authority")
+                .addProperty(RDF.type, model.createResource(
+                        "http://www.loc.gov/mads/rdf/v1#Authority"))
+                .addProperty(model.createProperty(
+                        "http://www.loc.gov/mads/rdf/v1#authoritativeLabel"),
+                        "An authority");
+        Resource topic = model.createResource("http://example.org/topic")
+                .addProperty(RDF.type, model.createResource(LD4L + "Topic"))
+                .addProperty(model.createProperty(
+                        "http://www.w3.org/2004/02/skos/core#prefLabel"),
+                        "A topic");
+        Resource identifier = model.createResource(
+                        "http://example.org/identifier")
+                .addProperty(RDF.type,
+                        model.createResource(LD4L + "Identifier"))
+                .addProperty(RDF.value, "12345");
+
+        int ops = 100000;
+        benchmark.run("makeLabel Work", ops,
+                () -> labelMaker.makeLabel(work));
+        benchmark.run("makeLabel Person", ops,
+                () -> labelMaker.makeLabel(person));
+        benchmark.run("makeLabel Authority", ops,
+                () -> labelMaker.makeLabel(authority));
+        benchmark.run("makeLabel Topic", ops,
+                () -> labelMaker.makeLabel(topic));
+        benchmark.run("makeLabel rdf:value fallback", ops,
+                () -> labelMaker.makeLabel(identifier));
+    }
+
+    private static void modifyLabel(Benchmark benchmark) throws Exception {
+
+        LabelModifier defaults = LabelModifier.load();
+        File rules = File.createTempFile("rules", ".tsv");
+        try {
+            FileUtils.writeStringToFile(rules,
+                    "exact\tAuthor\tAuthor Contribution\n"
+                    + "prefix\tDr. \tDoctor \n"
+                    + "regex\t(.*), (\\d{4})-\t$1 (born $2)\n",
+                    StandardCharsets.UTF_8);
+            LabelModifier patterns = LabelModifier.load(rules);
+
+            int ops = 100000;
+            benchmark.run("modifyLabel default rules, hit", ops,
+                    () -> defaults.modifyLabel("Author"));
+            benchmark.run("modifyLabel default rules, miss", ops,
+                    () -> defaults.modifyLabel("A title"));
+            benchmark.run("modifyLabel prefix rule, hit", ops,
+                    () -> patterns.modifyLabel("Dr. Seuss"));
+            benchmark.run("modifyLabel regex rule, hit", ops,
+                    () -> patterns.modifyLabel("Twain, Mark, 1835-"));
+            benchmark.run("modifyLabel pattern rules, miss", ops,
+                    () -> patterns.modifyLabel("A title"));
+        } finally {
+            rules.delete();
+        }
+    }
+
+    private static Resource createWork(Model model) {
+
+        Resource title = model.createResource("http://example.org/title")
+                .addProperty(RDFS.label, "A title");
+        return model.createResource("http://example.org/work")
+                .addProperty(RDF.type, model.createResource(LD4L + "Work"))
+                .addProperty(RDF.type, model.createResource(LD4L + "Text"))
+                .addProperty(model.createProperty(LD4L + "hasTitle"), title);
+    }
+
+    private static void logging(Benchmark micro, Benchmark macro, 
+            long[] sizes) throws Exception {
+
+        Model model = ModelFactory.createDefaultModel();
+        Resource work = createWork(model);
+        LabelMaker labelMaker = new LabelMaker();
+        Labeller labeller = new Labeller(null, null);
+        Model[] data = new Model[1];
+        long size = sizes[0];
+
+        for (boolean on : new boolean[] { false, true }) {
+            String suffix = on ? ", trace on, none sampled" : ", logging off";
+            if (on) {
+                Configurator.setLevel("org.ld4l.addlabels", Level.TRACE);
+                // Neither the work nor any synthetic subject is sampled.
+                labeller.setTraceSample(Integer.MAX_VALUE);
+            }
+            micro.run("makeLabel Work" + suffix, 100000,
+                    () -> labelMaker.makeLabel(work));
+            macro.run("getLabels(Model) " + size + " triples" + suffix, 1,
+                    () -> data[0] = SyntheticData.createModel(size, SEED),
+                    () -> labeller.getLabels(data[0], new LabelStats())
+                            .size());
+        }
+        Configurator.setLevel("org.ld4l.addlabels", Level.WARN);
+        labeller.setTraceSample(1);
+    }
+
+    private static void getLabels(Benchmark benchmark, long[] sizes)
+            throws Exception {
+
+        for (long size : sizes) {
+            for (boolean compact : new boolean[] { false, true }) {
+                for (boolean join : new boolean[] { false, true }) {
+                    Labeller labeller = new Labeller(null, null);
+                    labeller.setJoin(join);
+                    Model[] model = new Model[1];
+                    benchmark.run("getLabels(Model) " + size + " triples" 
+                            + (join ? ", join" : "") 
+                            + (compact ? ", compact" : ""), 1,
+                            () -> {
+                                model[0] = null;
+                                model[0] = SyntheticData.createModel(
+                                        size, SEED, compact);
+                                // Sort a CompactGraph outside the timing.
+                                model[0].size();
+                            },
+                            () -> labeller.getLabels(model[0], 
+                                    new LabelStats()).size());
+                }
+            }
+        }
+    }
+
+    /**
+     * Print the heap retained per triple by synthetic models, measured as 
+     * the growth of the used heap after full collections.
+     */
+    private static void graph(long[] sizes) {
+
+        for (long size : sizes) {
+            for (boolean compact : new boolean[] { false, true }) {
+                long before = usedHeap();
+                Model model = SyntheticData.createModel(size, SEED, compact);
+                long triples = model.size();
+                long bytes = usedHeap() - before;
+                System.out.println(String.format("%-45s %14.1f B/triple", 
+                        "heap " + size + " triples" 
+                                + (compact ? ", compact" : ""),
+                        bytes / (double) triples));
+                model.close();
+            }
+        }
+    }
+
+    private static long usedHeap() {
+
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private static void endToEnd(Benchmark benchmark, long[] sizes)
+            throws Exception {
+
+        File dir = Files.createTempDirectory("add-rdfs-labels-bench")
+                .toFile();
+        try {
+            for (long size : sizes) {
+                File input = new File(dir, "input-" + size + ".nt");
+                SyntheticData.writeFile(size, SEED, input);
+                File output = new File(dir, "output");
+                output.mkdirs();
+
+                benchmark.run("read/label/write " + size + " triples", 1,
+                        () -> {
+                            Labeller labeller = new Labeller(
+                                    input.toString(), output.toString());
+                            labeller.getLabels();
+                            return labeller;
+                        });
+
+                benchmark.run("streaming read/label/write " + size
+                        + " triples", 1,
+                        () -> {
+                            Labeller labeller = new Labeller(
+                                    input.toString(), output.toString());
+                            labeller.setStreaming(true);
+                            labeller.getLabels();
+                            return labeller;
+                        });
+            }
+        } finally {
+            deleteQuietly(dir);
+        }
+    }
+
+    private static void parse(Benchmark benchmark, long[] sizes)
+            throws Exception {
+
+        int cores = Runtime.getRuntime().availableProcessors();
+        ExecutorService executor = Executors.newFixedThreadPool(cores);
+        File dir = Files.createTempDirectory("add-rdfs-labels-bench")
+                .toFile();
+        try {
+            for (long size : sizes) {
+                File input = new File(dir, "input-" + size + ".nt");
+                SyntheticData.writeFile(size, SEED, input);
+
+                benchmark.run("Model.read " + size + " triples", 1,
+                        () -> ModelFactory.createDefaultModel()
+                                .read(input.toString()).size());
+
+                RecoveringParser serial = new RecoveringParser();
+                benchmark.run("RecoveringParser 1 thread " + size 
+                        + " triples", 1,
+                        () -> parse(serial, input));
+
+                if (cores > 1) {
+                    RecoveringParser parallel = 
+                            new RecoveringParser(executor, cores);
+                    benchmark.run("RecoveringParser " + cores + " threads "
+                            + size + " triples", 1,
+                            () -> parse(parallel, input));
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+            deleteQuietly(dir);
+        }
+    }
+
+    private static long parse(RecoveringParser parser, File input)
+            throws IOException {
+
+        Model model = ModelFactory.createDefaultModel();
+        parser.parse(input, StreamRDFLib.graph(model.getGraph()),
+                UUID.randomUUID(), null);
+        return model.size();
+    }
+
+    private static long[] parseSizes(String arg) {
+        String[] parts = arg.split(",");
+        long[] sizes = new long[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            sizes[i] = Long.parseLong(parts[i].trim());
+        }
+        return sizes;
+    }
+
+    private static void deleteQuietly(File dir) {
+        try {
+            FileUtils.deleteDirectory(dir);
+        } catch (IOException e) {
+            System.err.println("Can't delete " + dir + ": " + e.getMessage());
+        }
+    }
+}
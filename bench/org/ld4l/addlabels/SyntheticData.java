@@ -0,0 +1,213 @@
+package org.ld4l.addlabels;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+
+import org.apache.jena.graph.Node;
+import org.apache.jena.graph.NodeFactory;
+import org.apache.jena.graph.Triple;
+import org.apache.jena.rdf.model.Model;
+import org.apache.jena.rdf.model.ModelFactory;
+import org.apache.jena.riot.RDFFormat;
+import org.apache.jena.riot.system.StreamRDF;
+import org.apache.jena.riot.system.StreamRDFLib;
+import org.apache.jena.riot.system.StreamRDFWriter;
+import org.apache.jena.vocabulary.RDF;
+import org.apache.jena.vocabulary.RDFS;
+
+/**
+ * Generates bib2lod-like data for benchmarks: Works and Instances with
+ * titles, agents, authorities, topics, identifiers with an rdf:value, and
+ * contributions that already have a label. The same seed and size always
+ * give the same triples.
+ *
+ * Usage: SyntheticData triples seed output_file
+ */
+class SyntheticData {
+
+    private static final String BASE = "http://data.ld4l.org/bench/";
+    private static final String LD4L = "http://bib.ld4l.org/ontology/";
+    private static final String FOAF = "http://xmlns.com/foaf/0.1/";
+    private static final String MADSRDF = "http://www.loc.gov/mads/rdf/v1#";
+    private static final String SKOS = "http://www.w3.org/2004/02/skos/core#";
+
+    private static final Node TYPE = RDF.type.asNode();
+    private static final Node LABEL = RDFS.label.asNode();
+    private static final Node VALUE = RDF.value.asNode();
+    private static final Node HAS_TITLE = uri(LD4L + "hasTitle");
+    private static final Node NAME = uri(FOAF + "name");
+    private static final Node AUTH_LABEL = uri(MADSRDF + "authoritativeLabel");
+    private static final Node PREF_LABEL = uri(SKOS + "prefLabel");
+
+    private static final String[] ROLES = { "Author", "Composer",
+            "Conductor", "Creator", "Editor", "Narrator", "Performer",
+            "Publisher" };
+
+    private static final String[] WORDS = { "history", "music", "river",
+            "letters", "collected", "works", "poems", "city", "journal",
+            "annual", "report", "studies", "theory", "practice", "new",
+            "world", "early", "modern", "selected", "essays" };
+
+    private final Random random;
+    private long count;
+
+    SyntheticData(long seed) {
+        this.random = new Random(seed);
+    }
+
+    public static void main(String[] args) throws IOException {
+
+        if (args.length != 3) {
+            System.err.println(
+                    "Usage: SyntheticData triples seed output_file");
+            return;
+        }
+        writeFile(Long.parseLong(args[0]), Long.parseLong(args[1]),
+                new File(args[2]));
+    }
+
+    /**
+     * Build a model of about the specified number of triples.
+     */
+    static Model createModel(long triples, long seed) {
+        return createModel(triples, seed, false);
+    }
+
+    /**
+     * Build a model of about the specified number of triples, on a
+     * CompactGraph if compact is true.
+     */
+    static Model createModel(long triples, long seed, boolean compact) {
+
+        Model model = compact
+                ? ModelFactory.createModelForGraph(new CompactGraph())
+                : ModelFactory.createDefaultModel();
+        new SyntheticData(seed).generate(triples,
+                StreamRDFLib.graph(model.getGraph()));
+        return model;
+    }
+
+    /**
+     * Write about the specified number of triples to an N-Triples file.
+     */
+    static void writeFile(long triples, long seed, File file)
+            throws IOException {
+
+        try (OutputStream out =
+                new BufferedOutputStream(new FileOutputStream(file))) {
+            StreamRDF writer =
+                    StreamRDFWriter.getWriterStream(out, RDFFormat.NTRIPLES);
+            new SyntheticData(seed).generate(triples, writer);
+        }
+    }
+
+    /**
+     * Send about the specified number of triples to the sink. Entities are
+     * generated whole, so the count may be exceeded by a few triples.
+     */
+    void generate(long triples, StreamRDF sink) {
+
+        sink.start();
+        for (long i = 0; count < triples; i++) {
+            int kind = random.nextInt(100);
+            if (kind < 20) {
+                work(sink, i);
+            } else if (kind < 35) {
+                instance(sink, i);
+            } else if (kind < 50) {
+                agent(sink, i, "Person");
+            } else if (kind < 55) {
+                agent(sink, i, "Organization");
+            } else if (kind < 65) {
+                authority(sink, i);
+            } else if (kind < 75) {
+                topic(sink, i);
+            } else if (kind < 85) {
+                identifier(sink, i);
+            } else {
+                contribution(sink, i);
+            }
+        }
+        sink.finish();
+    }
+
+    private void work(StreamRDF sink, long i) {
+        Node work = uri(BASE + "work" + i);
+        emit(sink, work, TYPE, uri(LD4L + "Work"));
+        emit(sink, work, TYPE, uri(LD4L + "Text"));
+        title(sink, work, i);
+    }
+
+    private void instance(StreamRDF sink, long i) {
+        Node instance = uri(BASE + "instance" + i);
+        emit(sink, instance, TYPE, uri(LD4L + "Instance"));
+        title(sink, instance, i);
+    }
+
+    private void title(StreamRDF sink, Node subject, long i) {
+        Node title = uri(BASE + "title" + i);
+        emit(sink, subject, HAS_TITLE, title);
+        emit(sink, title, TYPE, uri(LD4L + "Title"));
+        emit(sink, title, LABEL, literal(words(2 + random.nextInt(5))));
+    }
+
+    private void agent(StreamRDF sink, long i, String type) {
+        Node agent = uri(BASE + "agent" + i);
+        emit(sink, agent, TYPE, uri(FOAF + type));
+        emit(sink, agent, NAME, literal(words(2)));
+    }
+
+    private void authority(StreamRDF sink, long i) {
+        Node authority = uri(BASE + "authority" + i);
+        emit(sink, authority, TYPE, uri(MADSRDF + "Authority"));
+        emit(sink, authority, AUTH_LABEL, literal(words(3)));
+    }
+
+    private void topic(StreamRDF sink, long i) {
+        Node topic = uri(BASE + "topic" + i);
+        emit(sink, topic, TYPE, uri(LD4L + "Topic"));
+        emit(sink, topic, PREF_LABEL, literal(words(2)));
+    }
+
+    private void identifier(StreamRDF sink, long i) {
+        Node identifier = uri(BASE + "identifier" + i);
+        emit(sink, identifier, TYPE, uri(LD4L + "Identifier"));
+        emit(sink, identifier, VALUE,
+                literal(Long.toString(random.nextInt(100000000))));
+    }
+
+    private void contribution(StreamRDF sink, long i) {
+        Node contribution = uri(BASE + "contribution" + i);
+        emit(sink, contribution, TYPE, uri(LD4L + "Contribution"));
+        emit(sink, contribution, LABEL,
+                literal(ROLES[random.nextInt(ROLES.length)]));
+    }
+
+    private void emit(StreamRDF sink, Node s, Node p, Node o) {
+        sink.triple(Triple.create(s, p, o));
+        count++;
+    }
+
+    private String words(int n) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < n; i++) {
+            if (i > 0) {
+                sb.append(' ');
+            }
+            sb.append(WORDS[random.nextInt(WORDS.length)]);
+        }
+        return sb.toString();
+    }
+
+    private static Node uri(String uri) {
+        return NodeFactory.createURI(uri);
+    }
+
+    private static Node literal(String lexicalForm) {
+        return NodeFactory.createLiteral(lexicalForm);
+    }
+}
@@ -39,29 +39,329 @@ public class AddRdfsLabels {
             return;
         }
 
-        String absInputPath = getAbsoluteInputPath(cmd.getOptionValue("input"));                
-        if (absInputPath == null) {
-            return;
+        boolean serve = cmd.hasOption("serve");
+        int port = 0;
+        if (serve) {
+            port = getPositiveInt("port", cmd.getOptionValue("serve"), 0);
+            if (port < 1) {
+                return;
+            }
+        }
+        
+        String absInputPath = null;
+        if (! serve || cmd.hasOption("input")) {
+            absInputPath = getAbsoluteInputPath(cmd.getOptionValue("input"));
+            if (absInputPath == null) {
+                return;
+            }
         }
 
-        String absOutputDir = 
-                createOutputDir(cmd.getOptionValue("outdir"));
-        if (absOutputDir == null) {
-            LOGGER.error("Can't create output directory. Aborting.");
+        String absOutputDir = null;
+        if (! serve) {
+            if (cmd.hasOption("resume")) {
+                absOutputDir = getResumeDir(cmd.getOptionValue("resume"));
+                if (absOutputDir == null) {
+                    return;
+                }
+            } else if (cmd.hasOption("outdir")) {
+                absOutputDir = createOutputDir(cmd.getOptionValue("outdir"));
+                if (absOutputDir == null) {
+                    LOGGER.error("Can't create output directory. Aborting.");
+                    return;
+                }
+            } else {
+                LOGGER.fatal("Missing required option: o or resume");
+                printHelp(options);
+                return;
+            }
+        }
+           
+        int threads = getPositiveInt("number of threads", 
+                cmd.getOptionValue("threads"), 1);
+        if (threads < 1) {
             return;
         }
+        
+        int parseThreads = getPositiveInt("number of parse threads", 
+                cmd.getOptionValue("parse_threads"), 1);
+        if (parseThreads < 1) {
+            return;
+        }
+        
+        int graphThreads = getPositiveInt("number of graph threads", 
+                cmd.getOptionValue("graph_threads"), 
+                Runtime.getRuntime().availableProcessors());
+        if (graphThreads < 1) {
+            return;
+        }
+        
+        int sortMemory = 0;
+        if (cmd.hasOption("sort_memory")) {
+            sortMemory = getPositiveInt("sort memory", 
+                    cmd.getOptionValue("sort_memory"), 0);
+            if (sortMemory < 1) {
+                return;
+            }
+        }
+        
+        int traceSample = getPositiveInt("trace sample", 
+                cmd.getOptionValue("trace_sample"), 1);
+        if (traceSample < 1) {
+            return;
+        }
+        
+        int progressInterval = getPositiveInt("progress interval", 
+                cmd.getOptionValue("progress"), 60);
+        if (progressInterval < 1) {
+            return;
+        }
+        
+        int batchSize = getPositiveInt("batch size", 
+                cmd.getOptionValue("batch_size"), 10000);
+        if (batchSize < 1) {
+            return;
+        }
+        
+        int mergeSize = 0;
+        if (cmd.hasOption("merge_size")) {
+            mergeSize = getPositiveInt("merge size", 
+                    cmd.getOptionValue("merge_size"), 0);
+            if (mergeSize < 1) {
+                return;
+            }
+        }
+        
+        int shardSize = 0;
+        if (cmd.hasOption("shard_size")) {
+            shardSize = getPositiveInt("shard size", 
+                    cmd.getOptionValue("shard_size"), 0);
+            if (shardSize < 1) {
+                return;
+            }
+        }
+        
+        int batchRequests = getPositiveInt("batch of requests", 
+                cmd.getOptionValue("batch_requests"), 32);
+        if (batchRequests < 1) {
+            return;
+        }
+        
+        int cacheSize = 100000;
+        if (cmd.hasOption("cache_size")) {
+            try {
+                cacheSize = Integer.parseInt(cmd.getOptionValue("cache_size"));
+            } catch (NumberFormatException e) {
+                cacheSize = -1;
+            }
+            if (cacheSize < 0) {
+                LOGGER.fatal("Invalid cache size: " 
+                        + cmd.getOptionValue("cache_size"));
+                return;
+            }
+        }
+        
+        boolean graphs = cmd.hasOption("graphs");
+        OutputFormat format = getOutputFormat(cmd.getOptionValue("format"), 
+                graphs);
+        if (format == null) {
+            return;
+        }
+        if (graphs && ! format.quads) {
+            LOGGER.fatal("Output format " + format + " can't hold named "
+                    + "graphs. Use nquads, trig or thrift.");
+            return;
+        }
+        
+        LabelRules labelRules = null;
+        if (cmd.hasOption("label_rules")) {
+            labelRules = getLabelRules(cmd.getOptionValue("label_rules"));
+            if (labelRules == null) {
+                return;
+            }
+        }
+        
+        LabelModifier labelModifier = null;
+        if (cmd.hasOption("modify_labels")) {
+            labelModifier = getLabelModifier(
+                    cmd.getOptionValue("modify_labels"));
+            if (labelModifier == null) {
+                return;
+            }
+        }
+        
+        LabelDictionary.Storage internStorage = null;
+        if (cmd.hasOption("intern")) {
+            internStorage = getInternStorage(cmd.getOptionValue("intern"));
+            if (internStorage == null) {
+                return;
+            }
+        }
+        
+        LabelledSubjects.Mode dedup = null;
+        if (cmd.hasOption("dedup")) {
+            dedup = getSubjectsMode("dedup", 
+                    cmd.getOptionValue("dedup", "exact"));
+            if (dedup == null) {
+                return;
+            }
+        }
+        
+        LabelledSubjects.Mode prescan = null;
+        if (cmd.hasOption("prescan")) {
+            prescan = getSubjectsMode("prescan", 
+                    cmd.getOptionValue("prescan", "exact"));
+            if (prescan == null) {
+                return;
+            }
+        }
            
         // Log application configuration settings
         LOGGER.info("Settings: ");
-        LOGGER.info("Input path: " + absInputPath);
-        LOGGER.info("Output directory path: " + absOutputDir);
+        if (! serve) {
+            LOGGER.info("Input path: " + absInputPath);
+            LOGGER.info("Output directory path: " + absOutputDir);
+        }
+        LOGGER.info("Recursive: " + cmd.hasOption("recursive"));
+        if (cmd.hasOption("include")) {
+            LOGGER.info("Including: " + cmd.getOptionValue("include"));
+        }
+        if (cmd.hasOption("exclude")) {
+            LOGGER.info("Excluding: " + cmd.getOptionValue("exclude"));
+        }
+        LOGGER.info("Threads: " + threads);
+        LOGGER.info("Parse threads per file: " + parseThreads);
+        if (graphs) {
+            LOGGER.info("Labelling named graphs separately on " 
+                    + graphThreads + " threads");
+        }
+        LOGGER.info("Streaming: " + cmd.hasOption("streaming"));
+        if (prescan != null) {
+            LOGGER.info("Prescanning for labelled subjects, by " + prescan);
+        }
+        LOGGER.info("Title index: " + cmd.hasOption("title_index"));
+        LOGGER.info("Set-at-a-time labelling: " + cmd.hasOption("join"));
+        LOGGER.info("Compact graph: " + cmd.hasOption("compact"));
+        LOGGER.info("Output format: " + format);
+        LOGGER.info("Compress output: " + cmd.hasOption("gzip"));
+        LOGGER.info("Delta output: " + cmd.hasOption("delta"));
+        if (mergeSize > 0) {
+            LOGGER.info("Merging input files smaller than " + mergeSize 
+                    + " MB");
+        }
+        if (shardSize > 0) {
+            LOGGER.info("Output shard size: " + shardSize + " MB");
+        }
+        LOGGER.info("Progress interval: " + progressInterval + " seconds");
+        LOGGER.info("Label rules: " + (cmd.hasOption("label_rules") 
+                ? cmd.getOptionValue("label_rules") 
+                : LabelRules.DEFAULT_RULES));
+        if (cmd.hasOption("modify_labels")) {
+            String rules = cmd.getOptionValue("modify_labels");
+            LOGGER.info("Modifying existing labels by rules in " 
+                    + (rules != null ? rules : LabelModifier.DEFAULT_RULES));
+        }
+        if (internStorage != null) {
+            LOGGER.info("Interning literals, index on " + internStorage);
+        }
+        if (dedup != null) {
+            LOGGER.info("Labelling each subject once per run, by " + dedup);
+        }
+        if (traceSample > 1) {
+            LOGGER.info("Per-subject diagnostics for 1 in " + traceSample 
+                    + " subjects");
+        }
+        if (sortMemory > 0) {
+            LOGGER.info("Out-of-core sorting in " + sortMemory + " MB");
+        }
+        if (cmd.hasOption("temp_dir")) {
+            LOGGER.info("Temporary directory: " 
+                    + cmd.getOptionValue("temp_dir"));
+        }
+        if (cmd.hasOption("tdb")) {
+            LOGGER.info("Labelling TDB dataset in place, batch size: " 
+                    + batchSize);
+        }
+        if (cmd.hasOption("previous")) {
+            LOGGER.info("Previous output directory: " 
+                    + cmd.getOptionValue("previous"));
+        }
+        if (cmd.hasOption("resume")) {
+            LOGGER.info("Resuming run in output directory");
+        }
+        if (serve) {
+            LOGGER.info("Serving on port " + port + ", batches of up to " 
+                    + batchRequests + " requests, label cache of " 
+                    + cacheSize);
+        }
         
         Labeller labeller = new Labeller(absInputPath, absOutputDir); 
+        labeller.setRecursive(cmd.hasOption("recursive"));
+        labeller.setInclude(cmd.getOptionValue("include"));
+        labeller.setExclude(cmd.getOptionValue("exclude"));
+        labeller.setMergeSize(mergeSize);
+        labeller.setShardSize(shardSize);
+        labeller.setThreads(threads);
+        labeller.setParseThreads(parseThreads);
+        labeller.setGraphs(graphs);
+        labeller.setGraphThreads(graphThreads);
+        labeller.setStreaming(cmd.hasOption("streaming"));
+        labeller.setPrescan(prescan);
+        labeller.setTitleIndex(cmd.hasOption("title_index"));
+        labeller.setJoin(cmd.hasOption("join"));
+        labeller.setCompact(cmd.hasOption("compact"));
+        labeller.setOutputFormat(format);
+        labeller.setCompress(cmd.hasOption("gzip"));
+        labeller.setDelta(cmd.hasOption("delta"));
+        labeller.setPreviousOutputDir(cmd.getOptionValue("previous"));
+        labeller.setResume(cmd.hasOption("resume"));
+        labeller.setTraceSample(traceSample);
+        labeller.setProgressInterval(progressInterval);
+        labeller.setInternStorage(internStorage);
+        labeller.setDedup(dedup);
+        if (labelRules != null) {
+            labeller.setLabelRules(labelRules);
+        }
+        labeller.setLabelModifier(labelModifier);
+        labeller.setSortMemory(sortMemory);
+        labeller.setTempDir(cmd.getOptionValue("temp_dir"));
+        if (cmd.hasOption("tdb")) {
+            labeller.setTdbBatchSize(batchSize);
+        }
+        if (serve) {
+            serve(labeller, format, threads, batchRequests, cacheSize, port,
+                    absInputPath);
+            return;
+        }
         labeller.getLabels();  
         LOGGER.info("Done!");
    
     }
   
+    /**
+     * Serve labelling requests until the process is stopped. See 
+     * LabelServer.
+     */
+    private static void serve(Labeller labeller, OutputFormat format, 
+            int workers, int batchSize, int cacheSize, int port, 
+            String pathRoot) {
+        
+        if (pathRoot != null && ! new File(pathRoot).isDirectory()) {
+            LOGGER.fatal("Input directory not found: " + pathRoot);
+            return;
+        }
+        LabelServer server = new LabelServer(labeller, format, workers, 
+                batchSize, cacheSize, 
+                pathRoot != null ? new File(pathRoot) : null);
+        try {
+            server.start(port);
+        } catch (IOException e) {
+            LOGGER.fatal("Can't serve on port " + port + ": " 
+                    + e.getMessage());
+            return;
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread(server::stop));
+    }
+    
     /**
      * Check for valid input directory. Return the absolute path to the input 
      * directory if it exists, otherwise log an error and return null. 
@@ -82,6 +382,148 @@ public class AddRdfsLabels {
         return absInputPath;
     }
     
+    /**
+     * Parse a numeric option. Return the default if the option was not 
+     * specified, otherwise log an error and return 0 if the value is not a
+     * positive integer.
+     * @param name - the name of the option, for the error message
+     * @param value - the value of the option, or null
+     * @param defaultValue - the value if the option was not specified
+     * @return the value, or 0 if the value is invalid
+     */
+    private static int getPositiveInt(
+            String name, String value, int defaultValue) {
+        
+        if (value == null) {
+            return defaultValue;
+        }
+        
+        int number = 0;
+        try {
+            number = Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            // Fall through to error below
+        }
+        
+        if (number < 1) {
+            LOGGER.fatal("Invalid " + name + ": " + value);
+            number = 0;
+        }
+        
+        return number;
+    }
+    
+    /**
+     * Parse the output format. Return N-Triples if the option was not
+     * specified, otherwise log an error and return null if the value is not
+     * a known format.
+     * @param value - the value of the format option, or null
+     * @param graphs - whether named graphs are kept, for which the default 
+     * is N-Quads
+     * @return the output format, or null if the value is invalid
+     */
+    private static OutputFormat getOutputFormat(String value, 
+            boolean graphs) {
+        
+        if (value == null) {
+            return graphs ? OutputFormat.nquads : OutputFormat.ntriples;
+        }
+        
+        try {
+            return OutputFormat.valueOf(value);
+        } catch (IllegalArgumentException e) {
+            LOGGER.fatal("Invalid output format: " + value);
+            return null;
+        }
+    }
+    
+    /**
+     * Load the label modification rules from the file, or the default rules
+     * if no file was specified. Log an error and return null if they can't
+     * be loaded.
+     * @param rules - the path to the rules file, or null
+     * @return the modifier, or null if the rules can't be loaded
+     */
+    private static LabelModifier getLabelModifier(String rules) {
+        
+        try {
+            return rules != null 
+                    ? LabelModifier.load(new File(rules)) 
+                    : LabelModifier.load();
+        } catch (IOException e) {
+            LOGGER.fatal("Can't load label modification rules: " 
+                    + e.getMessage());
+            return null;
+        }
+    }
+    
+    /**
+     * Load the rules for making labels. Log an error and return null if 
+     * they can't be read or are invalid.
+     * @param rules - the path to the rules file
+     * @return the rules, or null
+     */
+    private static LabelRules getLabelRules(String rules) {
+        
+        try {
+            return LabelRules.load(new File(rules));
+        } catch (IOException e) {
+            LOGGER.fatal("Can't load label rules: " + e.getMessage());
+            return null;
+        }
+    }
+    
+    /**
+     * Parse the storage of the literal dictionary. Log an error and return 
+     * null if the value is not a known storage.
+     * @param value - the value of the intern option
+     * @return the storage, or null if the value is invalid
+     */
+    private static LabelDictionary.Storage getInternStorage(String value) {
+        
+        try {
+            return LabelDictionary.Storage.valueOf(value);
+        } catch (IllegalArgumentException e) {
+            LOGGER.fatal("Invalid intern storage: " + value);
+            return null;
+        }
+    }
+    
+    private static LabelledSubjects.Mode getSubjectsMode(String name, 
+            String value) {
+        
+        try {
+            return LabelledSubjects.Mode.valueOf(value);
+        } catch (IllegalArgumentException e) {
+            LOGGER.fatal("Invalid " + name + " mode: " + value);
+            return null;
+        }
+    }
+    
+    /**
+     * Check the output directory of a run to resume. Return its canonical 
+     * path if it exists, otherwise log an error and return null.
+     * @param dirName - absolute or relative path to the output directory of
+     * the run, including the datetime directory
+     * @return the output directory if it exists, otherwise null
+     */
+    private static String getResumeDir(String dirName) {
+        
+        File dir = new File(dirName);
+        if (! dir.isDirectory()) {
+            LOGGER.fatal("Output directory of run to resume not found: " 
+                    + dirName);
+            return null;
+        }
+        
+        try {
+            return dir.getCanonicalPath();
+        } catch (IOException e) {
+            e.printStackTrace();
+            return dir.getAbsolutePath();
+        }
+    }
+    
     /**
      * Make output directory and any intermediate directories. Return the 
      * output directory if it was successfully created, otherwise log an error
@@ -170,11 +612,293 @@ public class AddRdfsLabels {
         
         options.addOption(Option.builder("o")
                 .longOpt("outdir")
-                .required()
                 .hasArg()
                 .argName("output_directory")
                 .desc("Absolute or relative path to output directory. "
-                        + "Will be created if it does not exist.")
+                        + "Will be created if it does not exist. Required "
+                        + "unless --resume is specified.")
+                .build());
+        
+        options.addOption(Option.builder()
+                .longOpt("resume")
+                .hasArg()
+                .argName("run_output_directory")
+                .desc("Resume a run that died, in its output directory "
+                        + "(the datetime directory). Input files whose "
+                        + "outputs it completed, and that are unchanged "
+                        + "since, are not processed again. Use the same "
+                        + "input and output options as the run.")
+                .build());
+
+        options.addOption(Option.builder()
+                .longOpt("serve")
+                .hasArg()
+                .argName("port")
+                .desc("Serve labelling requests over HTTP on the port of "
+                        + "localhost instead of labelling files: POST RDF, "
+                        + "or ?path=file, to /label. -t requests are "
+                        + "labelled at once. ?path= may only name files in "
+                        + "the -i directory, and is refused without one. "
+                        + "-o isn't used.")
+                .build());
+        
+        options.addOption(Option.builder()
+                .longOpt("batch_requests")
+                .hasArg()
+                .argName("n")
+                .desc("With --serve, the most waiting requests a worker "
+                        + "takes at once. Defaults to 32.")
+                .build());
+        
+        options.addOption(Option.builder()
+                .longOpt("cache_size")
+                .hasArg()
+                .argName("labels")
+                .desc("With --serve, the number of labels made to cache by "
+                        + "client and IRI, for resources that recur without "
+                        + "their triples in the later requests of a client "
+                        + "named by ?client=. 0 for none. Defaults to "
+                        + "100000.")
+                .build());
+
+        options.addOption(Option.builder("r")
+                .longOpt("recursive")
+                .desc("Process the input files in subdirectories of the "
+                        + "input directory too.")
+                .build());
+
+        options.addOption(Option.builder()
+                .longOpt("include")
+                .hasArg()
+                .argName("glob")
+                .desc("Process only the input files whose paths relative "
+                        + "to the input directory match the glob, e.g. "
+                        + "**.nt.")
+                .build());
+
+        options.addOption(Option.builder()
+                .longOpt("exclude")
+                .hasArg()
+                .argName("glob")
+                .desc("Skip the input files whose paths relative to the "
+                        + "input directory match the glob.")
+                .build());
+
+        options.addOption(Option.builder()
+                .longOpt("merge_size")
+                .hasArg()
+                .argName("megabytes")
+                .desc("Label input files smaller than this together, up to "
+                        + "this size per group, each group into one output.")
+                .build());
+
+        options.addOption(Option.builder()
+                .longOpt("shard_size")
+                .hasArg()
+                .argName("megabytes")
+                .desc("Split each output into files of about this size, "
+                        + "before compression.")
+                .build());
+
+        options.addOption(Option.builder("t")
+                .longOpt("threads")
+                .hasArg()
+                .argName("threads")
+                .desc("Number of input files to process concurrently. "
+                        + "Defaults to 1.")
+                .build());
+        
+        options.addOption(Option.builder("P")
+                .longOpt("parse_threads")
+                .hasArg()
+                .argName("parse_threads")
+                .desc("Number of threads to parse each N-Triples or N-Quads "
+                        + "input file on. The file is memory-mapped and "
+                        + "split into chunks on line boundaries, which are "
+                        + "parsed in parallel. Defaults to 1.")
+                .build());
+        
+        options.addOption(Option.builder()
+                .longOpt("graphs")
+                .desc("Keep the named graphs of N-Quads and TriG input, and "
+                        + "label each graph on its own, from its own "
+                        + "triples, in parallel. The output format must "
+                        + "hold graph names, and defaults to nquads. Only "
+                        + "when files are read into memory.")
+                .build());
+        
+        options.addOption(Option.builder()
+                .longOpt("graph_threads")
+                .hasArg()
+                .argName("graph_threads")
+                .desc("Number of threads to label the graphs of the input "
+                        + "files on, with --graphs, shared by the files. "
+                        + "Defaults to the number of processors.")
+                .build());
+        
+        options.addOption(Option.builder("s")
+                .longOpt("streaming")
+                .desc("Stream each input file through to the output instead "
+                        + "of reading it into memory. Memory use then depends "
+                        + "on the number of subjects rather than the number "
+                        + "of triples.")
+                .build());
+        
+        options.addOption(Option.builder()
+                .longOpt("prescan")
+                .hasArg()
+                .optionalArg(true)
+                .argName("exact|fingerprint")
+                .desc("With -s, first read each file for the subjects that "
+                        + "have an rdfs:label, so that nothing is held for "
+                        + "them, telling them apart exactly, by keeping them "
+                        + "in a temporary file (the default), or by a 64-bit "
+                        + "fingerprint alone, which can leave a subject "
+                        + "unlabelled. Saves heap when many subjects are "
+                        + "labelled, but reads each file twice, so is slower.")
+                .build());
+        
+        options.addOption(Option.builder("x")
+                .longOpt("title_index")
+                .desc("Index the labels in all input files in a first pass, "
+                        + "so that Works and Instances get labels from titles "
+                        + "in other files.")
+                .build());
+        
+        options.addOption(Option.builder("f")
+                .longOpt("format")
+                .hasArg()
+                .argName("format")
+                .desc("Output format: ntriples, nquads, turtle, trig, "
+                        + "thrift, patch (RDF Patch) or sparql (SPARQL "
+                        + "Update INSERT DATA). Defaults to ntriples.")
+                .build());
+        
+        options.addOption(Option.builder("z")
+                .longOpt("gzip")
+                .desc("Gzip the output files.")
+                .build());
+        
+        options.addOption(Option.builder("d")
+                .longOpt("delta")
+                .desc("Write only the new rdfs:label triples, not the whole "
+                        + "input.")
+                .build());
+        
+        options.addOption(Option.builder("p")
+                .longOpt("previous")
+                .hasArg()
+                .argName("previous_output_directory")
+                .desc("Output directory of a previous run. Input files that "
+                        + "are unchanged since that run are not processed; "
+                        + "their previous outputs are linked into the new "
+                        + "output directory.")
+                .build());
+        
+        options.addOption(Option.builder("m")
+                .longOpt("sort_memory")
+                .hasArg()
+                .argName("megabytes")
+                .desc("Out-of-core mode: sort what is needed to make the "
+                        + "labels by subject, in this much heap, spilling to "
+                        + "temporary files. For input files whose subjects "
+                        + "don't fit in memory.")
+                .build());
+        
+        options.addOption(Option.builder()
+                .longOpt("temp_dir")
+                .hasArg()
+                .argName("temp_dir")
+                .desc("Directory for temporary files. Defaults to sort-tmp "
+                        + "in the output directory.")
+                .build());
+        
+        options.addOption(Option.builder()
+                .longOpt("trace_sample")
+                .hasArg()
+                .argName("n")
+                .desc("Log per-subject debug and trace messages for only 1 "
+                        + "in n subjects. Defaults to 1, every subject.")
+                .build());
+        
+        options.addOption(Option.builder()
+                .longOpt("join")
+                .desc("Make the labels of each file set-at-a-time, joining "
+                        + "the triples of each predicate the rules use, "
+                        + "rather than subject by subject. Only when files "
+                        + "are read into memory.")
+                .build());
+        
+        options.addOption(Option.builder()
+                .longOpt("compact")
+                .desc("Read each file into a compact, dictionary-encoded "
+                        + "graph instead of Jena's default graph, to fit "
+                        + "larger files in the heap. Only when files are "
+                        + "read into memory.")
+                .build());
+        
+        options.addOption(Option.builder()
+                .longOpt("label_rules")
+                .hasArg()
+                .argName("rules_file")
+                .desc("Make labels by the rules in the file instead of the "
+                        + "default rules for LD4L ontology v1.")
+                .build());
+        
+        options.addOption(Option.builder()
+                .longOpt("modify_labels")
+                .hasArg()
+                .optionalArg(true)
+                .argName("rules_file")
+                .desc("Rewrite existing labels by the rules in the file, "
+                        + "or by the default rules, which add Contribution "
+                        + "or Provision to role names. Only when files are "
+                        + "read into memory.")
+                .build());
+        
+        options.addOption(Option.builder()
+                .longOpt("intern")
+                .hasArg()
+                .argName("heap|offheap")
+                .desc("Intern the literals of each file, so that repeated "
+                        + "values are held once, with the dictionary's "
+                        + "index on the heap or off it. Applies when the "
+                        + "file is read into memory or streamed.")
+                .build());
+        
+        options.addOption(Option.builder()
+                .longOpt("dedup")
+                .hasArg()
+                .optionalArg(true)
+                .argName("exact|fingerprint")
+                .desc("Label each URI subject only in the first file that "
+                        + "labels it, telling subjects apart exactly, by "
+                        + "keeping their URIs in a temporary file (the "
+                        + "default), or by a 64-bit fingerprint alone, which "
+                        + "can leave a subject unlabelled. Not with --tdb.")
+                .build());
+        
+        options.addOption(Option.builder()
+                .longOpt("progress")
+                .hasArg()
+                .argName("seconds")
+                .desc("Interval at which to log progress, with an estimate "
+                        + "of the time remaining. Defaults to 60.")
+                .build());
+        
+        options.addOption(Option.builder("T")
+                .longOpt("tdb")
+                .desc("The input is a TDB dataset directory. Add labels to "
+                        + "its default graph in place; nothing is written "
+                        + "to the output directory.")
+                .build());
+        
+        options.addOption(Option.builder("b")
+                .longOpt("batch_size")
+                .hasArg()
+                .argName("batch_size")
+                .desc("Number of labels to add per write transaction with "
+                        + "--tdb. Defaults to 10000.")
                 .build());
  
         return options;
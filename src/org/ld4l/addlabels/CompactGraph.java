@@ -0,0 +1,441 @@
+package org.ld4l.addlabels;
+
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+
+import org.apache.jena.graph.Capabilities;
+import org.apache.jena.graph.GraphEvents;
+import org.apache.jena.graph.Node;
+import org.apache.jena.graph.Triple;
+import org.apache.jena.graph.impl.AllCapabilities;
+import org.apache.jena.graph.impl.GraphBase;
+import org.apache.jena.util.iterator.ExtendedIterator;
+import org.apache.jena.util.iterator.NiceIterator;
+
+/**
+ * A graph for the label pass over a file read into memory, which needs far
+ * less heap per triple than Jena's default graph. The default graph holds
+ * each Triple and indexes it three ways, by subject, predicate and object,
+ * in hash tables of Triples; but labelling looks statements up only by
+ * subject, or scans them for a predicate (see LabelMaker.Join).
+ *
+ * Each distinct node is held once, in a dictionary that gives it an int id,
+ * with an open addressing table of ids from the node's hash. A triple is
+ * three ids in parallel int arrays, which are sorted by subject, predicate
+ * and object before the graph is first read, so that a subject's triples
+ * are found by binary search. Triples are made on the fly as they are
+ * found. A triple is then 12 bytes, plus its share of the nodes, which the
+ * triples of a bib2lod file share heavily, rather than the hundreds of
+ * bytes of the default graph.
+ *
+ * The graph is built to be filled and then read. Triples added after it has
+ * been read are appended, and the arrays are sorted again before the next
+ * read, which suits adding the new labels of a file in one go. Deleted
+ * triples are marked, and dropped when the arrays are next sorted. Nodes
+ * are matched by term equality: unlike the default graph, a typed literal
+ * doesn't match another with the same value but a different lexical form.
+ *
+ * Not thread-safe, and not to be added to while it is being iterated.
+ */
+class CompactGraph extends GraphBase {
+
+    private static final int INITIAL_CAPACITY = 1 << 10;
+
+    // Marks a deleted triple in the predicates array.
+    private static final int DELETED = -1;
+
+    // A wildcard in a pattern of ids.
+    private static final int ANY = -1;
+    private static final int MISSING = -2;
+
+    private static final Capabilities CAPABILITIES = new AllCapabilities() {
+        @Override
+        public boolean handlesLiteralTyping() {
+            return false;
+        }
+    };
+
+    // The dictionary: nodes by id, and the ids + 1 by hash, 0 if empty.
+    private Node[] nodes;
+    private int nodeCount;
+    private int[] table;
+    private int mask;
+
+    // The triples: ids, sorted if sorted is true.
+    private int[] subjects;
+    private int[] predicates;
+    private int[] objects;
+    private int tripleCount;
+    private int deletedCount;
+    private boolean sorted;
+
+    CompactGraph() {
+        clearTriples();
+    }
+
+    private void clearTriples() {
+
+        nodes = new Node[INITIAL_CAPACITY];
+        nodeCount = 0;
+        table = new int[INITIAL_CAPACITY * 2];
+        mask = table.length - 1;
+        subjects = new int[INITIAL_CAPACITY];
+        predicates = new int[INITIAL_CAPACITY];
+        objects = new int[INITIAL_CAPACITY];
+        tripleCount = 0;
+        deletedCount = 0;
+        sorted = true;
+    }
+
+    @Override
+    public void performAdd(Triple triple) {
+
+        if (tripleCount == subjects.length) {
+            int capacity = grow(subjects.length);
+            subjects = Arrays.copyOf(subjects, capacity);
+            predicates = Arrays.copyOf(predicates, capacity);
+            objects = Arrays.copyOf(objects, capacity);
+        }
+        subjects[tripleCount] = intern(triple.getSubject());
+        predicates[tripleCount] = intern(triple.getPredicate());
+        objects[tripleCount] = intern(triple.getObject());
+        tripleCount++;
+        sorted = false;
+    }
+
+    @Override
+    public void performDelete(Triple triple) {
+
+        int index = indexOf(triple);
+        if (index >= 0) {
+            delete(index);
+        }
+    }
+
+    private void delete(int index) {
+        predicates[index] = DELETED;
+        deletedCount++;
+    }
+
+    @Override
+    public void clear() {
+        clearTriples();
+        getEventManager().notifyEvent(this, GraphEvents.removeAll);
+    }
+
+    @Override
+    protected int graphBaseSize() {
+        sort();
+        return tripleCount - deletedCount;
+    }
+
+    @Override
+    protected boolean graphBaseContains(Triple triple) {
+        if (triple.isConcrete()) {
+            return indexOf(triple) >= 0;
+        }
+        return containsByFind(triple);
+    }
+
+    @Override
+    protected ExtendedIterator<Triple> graphBaseFind(Triple pattern) {
+
+        sort();
+        int subject = patternId(pattern.getSubject());
+        int predicate = patternId(pattern.getPredicate());
+        int object = patternId(pattern.getObject());
+        // A concrete node that isn't in the dictionary matches nothing.
+        if (subject == MISSING || predicate == MISSING || object == MISSING) {
+            return NiceIterator.emptyIterator();
+        }
+        if (subject == ANY) {
+            return new Find(0, tripleCount, predicate, object);
+        }
+        int start = firstOf(subject);
+        int end = start;
+        while (end < tripleCount && subjects[end] == subject) {
+            end++;
+        }
+        return new Find(start, end, predicate, object);
+    }
+
+    /**
+     * Return the distinct subjects of the graph, each once. Unlike
+     * listing them from the triples, which collects them in a set, this
+     * takes no memory, as the triples are sorted by subject.
+     */
+    ExtendedIterator<Node> listSubjects() {
+
+        sort();
+        return new NiceIterator<Node>() {
+
+            private int next = skipDeleted(0);
+
+            @Override
+            public boolean hasNext() {
+                return next < tripleCount;
+            }
+
+            @Override
+            public Node next() {
+                if (! hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                int subject = subjects[next];
+                int index = next;
+                while (index < tripleCount && subjects[index] == subject) {
+                    index++;
+                }
+                next = skipDeleted(index);
+                return nodes[subject];
+            }
+        };
+    }
+
+    private int skipDeleted(int index) {
+        while (index < tripleCount && predicates[index] == DELETED) {
+            index++;
+        }
+        return index;
+    }
+
+    @Override
+    public Capabilities getCapabilities() {
+        return CAPABILITIES;
+    }
+
+    /**
+     * Return the id of a node of a pattern: ANY for a wildcard, MISSING if
+     * the node isn't in the dictionary.
+     */
+    private int patternId(Node node) {
+        if (node == null || ! node.isConcrete()) {
+            return ANY;
+        }
+        int id = id(node);
+        return id < 0 ? MISSING : id;
+    }
+
+    /**
+     * Iterates the triples in a range of indexes that match a predicate
+     * and object, either of which may be ANY.
+     */
+    private class Find extends NiceIterator<Triple> {
+
+        private final int end;
+        private final int predicate;
+        private final int object;
+        private int next;
+        private int current = -1;
+
+        private Find(int start, int end, int predicate, int object) {
+            this.end = end;
+            this.predicate = predicate;
+            this.object = object;
+            this.next = advance(start);
+        }
+
+        private int advance(int index) {
+            while (index < end && (predicates[index] == DELETED
+                    || predicate != ANY && predicates[index] != predicate
+                    || object != ANY && objects[index] != object)) {
+                index++;
+            }
+            return index;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next < end;
+        }
+
+        @Override
+        public Triple next() {
+            if (! hasNext()) {
+                throw new NoSuchElementException();
+            }
+            current = next;
+            next = advance(next + 1);
+            return Triple.create(nodes[subjects[current]],
+                    nodes[predicates[current]], nodes[objects[current]]);
+        }
+
+        @Override
+        public void remove() {
+            if (current < 0 || predicates[current] == DELETED) {
+                throw new IllegalStateException();
+            }
+            Triple triple = Triple.create(nodes[subjects[current]],
+                    nodes[predicates[current]], nodes[objects[current]]);
+            delete(current);
+            notifyDelete(triple);
+        }
+    }
+
+    /**
+     * Return the index of the triple, or -1 if the graph doesn't hold it.
+     */
+    private int indexOf(Triple triple) {
+
+        sort();
+        int subject = id(triple.getSubject());
+        int predicate = id(triple.getPredicate());
+        int object = id(triple.getObject());
+        if (subject < 0 || predicate < 0 || object < 0) {
+            return -1;
+        }
+        for (int i = firstOf(subject);
+                i < tripleCount && subjects[i] == subject; i++) {
+            if (predicates[i] == predicate && objects[i] == object) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Return the index of the first triple of the subject, or of the
+     * triple it would be inserted before.
+     */
+    private int firstOf(int subject) {
+
+        int low = 0;
+        int high = tripleCount;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (subjects[middle] < subject) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Sort the triples by subject, predicate and object, if triples have
+     * been added since they were last sorted, dropping duplicates and
+     * deleted triples.
+     */
+    private void sort() {
+
+        if (sorted) {
+            return;
+        }
+
+        // Sort by subject, carrying each triple's index...
+        long[] keys = new long[tripleCount];
+        for (int i = 0; i < tripleCount; i++) {
+            keys[i] = (long) subjects[i] << 32 | i;
+        }
+        Arrays.sort(keys);
+        int[] sortedPredicates = new int[predicates.length];
+        int[] sortedObjects = new int[objects.length];
+        for (int i = 0; i < tripleCount; i++) {
+            int index = (int) keys[i];
+            subjects[i] = (int) (keys[i] >>> 32);
+            sortedPredicates[i] = predicates[index];
+            sortedObjects[i] = objects[index];
+        }
+        predicates = sortedPredicates;
+        objects = sortedObjects;
+
+        // ...then each subject's triples by predicate and object, keeping
+        // each triple once.
+        int count = 0;
+        int start = 0;
+        while (start < tripleCount) {
+            int subject = subjects[start];
+            int end = start;
+            while (end < tripleCount && subjects[end] == subject) {
+                keys[end] = (long) predicates[end] << 32
+                        | (objects[end] & 0xffffffffL);
+                end++;
+            }
+            Arrays.sort(keys, start, end);
+            for (int i = start; i < end; i++) {
+                int predicate = (int) (keys[i] >> 32);
+                if (predicate == DELETED || (i > start
+                        && keys[i] == keys[i - 1])) {
+                    continue;
+                }
+                subjects[count] = subject;
+                predicates[count] = predicate;
+                objects[count] = (int) keys[i];
+                count++;
+            }
+            start = end;
+        }
+        tripleCount = count;
+        deletedCount = 0;
+        sorted = true;
+    }
+
+    /**
+     * Return the id of the node, adding it to the dictionary if it is new.
+     */
+    private int intern(Node node) {
+
+        for (int slot = hash(node) & mask; ; slot = (slot + 1) & mask) {
+            int stored = table[slot];
+            if (stored == 0) {
+                if (nodeCount == nodes.length) {
+                    nodes = Arrays.copyOf(nodes, grow(nodes.length));
+                }
+                int id = nodeCount++;
+                nodes[id] = node;
+                table[slot] = id + 1;
+                // Keep the table at most half full.
+                if (nodeCount * 2 > mask) {
+                    rehash();
+                }
+                return id;
+            }
+            if (nodes[stored - 1].equals(node)) {
+                return stored - 1;
+            }
+        }
+    }
+
+    /**
+     * Return the id of the node, or -1 if it isn't in the dictionary.
+     */
+    private int id(Node node) {
+
+        for (int slot = hash(node) & mask; ; slot = (slot + 1) & mask) {
+            int stored = table[slot];
+            if (stored == 0) {
+                return -1;
+            }
+            if (nodes[stored - 1].equals(node)) {
+                return stored - 1;
+            }
+        }
+    }
+
+    private static int hash(Node node) {
+        // Spread the bits of String hashes, whose low bits cluster.
+        int hash = node.hashCode() * 0x9e3779b9;
+        return hash ^ (hash >>> 16);
+    }
+
+    private void rehash() {
+
+        table = new int[table.length * 2];
+        mask = table.length - 1;
+        for (int id = 0; id < nodeCount; id++) {
+            int slot = hash(nodes[id]) & mask;
+            while (table[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            table[slot] = id + 1;
+        }
+    }
+
+    private static int grow(int capacity) {
+        if (capacity >= Integer.MAX_VALUE / 2) {
+            throw new IllegalStateException("Graph too large");
+        }
+        return capacity * 2;
+    }
+}
@@ -0,0 +1,234 @@
+package org.ld4l.addlabels;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import org.apache.jena.graph.Graph;
+import org.apache.jena.graph.Node;
+import org.apache.jena.graph.Triple;
+import org.apache.jena.rdf.model.Model;
+import org.apache.jena.riot.system.StreamRDF;
+import org.apache.jena.riot.system.StreamRDFBase;
+import org.apache.jena.sparql.core.Quad;
+import org.apache.jena.util.iterator.ExtendedIterator;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import org.ld4l.addlabels.LabelStats.Stage;
+
+/**
+ * Labels a file of named graphs, such as N-Quads or TriG with a graph per
+ * source record, keeping each triple in its graph. Each graph is read into
+ * a Model of its own and labelled from its own triples, as a file would be,
+ * so that the graphs of a file are labelled in parallel on an executor
+ * shared by the files, and a file of many graphs isn't labelled on one
+ * thread. Triples outside any named graph are labelled as the default
+ * graph. The labelled graphs are written out as quads, graph by graph, in
+ * the order in which each graph was first read.
+ */
+class DatasetLabeller {
+
+    private static final Logger LOGGER =
+            LogManager.getLogger(DatasetLabeller.class);
+
+    // Tasks to split a file's graphs into per thread, so that a file of
+    // many small graphs isn't a task per graph, but threads that finish
+    // early still find work.
+    private static final int TASKS_PER_THREAD = 4;
+
+    private final Labeller labeller;
+    private final ExecutorService executor;
+    private final int threads;
+
+    /**
+     * @param labeller - reads the files, and labels each graph, with its
+     * label rules, modifier, delta and compact settings
+     * @param executor - the executor to label the graphs on
+     * @param threads - the number of threads of the executor
+     */
+    DatasetLabeller(Labeller labeller, ExecutorService executor,
+            int threads) {
+        this.labeller = labeller;
+        this.executor = executor;
+        this.threads = threads;
+    }
+
+    /**
+     * Write the graphs of the input files to the output, adding an
+     * rdfs:label to each subject of each graph that doesn't have one there,
+     * where possible.
+     * @param input - the input files
+     * @param output - the output, in a format that holds graph names
+     * @param dictionary - the dictionary to intern the literals of the
+     * input in, or null
+     * @param stats - counts for this input
+     * @return the output files
+     * @throws IOException if a file can't be read or the output written
+     */
+    List<File> addLabelsToFile(InputFiles.Input input, RdfOutput output,
+            LabelDictionary dictionary, LabelStats stats)
+            throws IOException {
+
+        long parseStart = System.nanoTime();
+        GraphCollector collector = new GraphCollector();
+        labeller.read(input, dictionary != null
+                ? dictionary.intern(collector) : collector);
+        stats.time(Stage.parse, parseStart);
+
+        List<Node> names = new ArrayList<Node>(collector.graphs.keySet());
+        List<Model> graphs = new ArrayList<Model>(collector.graphs.values());
+        for (Model graph : graphs) {
+            stats.triples(graph.size());
+        }
+        stats.graphs(graphs.size());
+        LOGGER.debug("Labelling " + graphs.size() + " graphs of " + input);
+
+        // New labels are made without the dictionary, which isn't
+        // thread-safe.
+        List<Model> labelled = labelGraphs(graphs, stats);
+        if (dictionary != null) {
+            dictionary.addTo(stats);
+        }
+
+        long writeStart = System.nanoTime();
+        List<File> outFiles;
+        try (RdfOutput.Shards shards =
+                output.openShards(input.getBasename())) {
+            StreamRDF stream = shards.getStream();
+            stream.start();
+            for (Map.Entry<String, String> prefix
+                    : collector.prefixes.entrySet()) {
+                stream.prefix(prefix.getKey(), prefix.getValue());
+            }
+            for (int i = 0; i < names.size(); i++) {
+                writeGraph(names.get(i), labelled.get(i).getGraph(), stream);
+            }
+            stream.finish();
+            outFiles = shards.commit();
+        }
+        stats.time(Stage.write, writeStart);
+        return outFiles;
+    }
+
+    /**
+     * Label the graphs on the executor, and return the labelled graphs, in
+     * the same order.
+     */
+    private List<Model> labelGraphs(List<Model> graphs, LabelStats stats)
+            throws IOException {
+
+        Model[] labelled = new Model[graphs.size()];
+        int tasks = threads * TASKS_PER_THREAD;
+        int size = Math.max(1, (graphs.size() + tasks - 1) / tasks);
+        List<Future<LabelStats>> futures = new ArrayList<Future<LabelStats>>();
+
+        for (int start = 0; start < graphs.size(); start += size) {
+            int from = start;
+            int to = Math.min(start + size, graphs.size());
+            futures.add(executor.submit(() -> {
+                // LabelStats isn't thread-safe until it is added.
+                LabelStats taskStats = new LabelStats();
+                for (int i = from; i < to; i++) {
+                    labelled[i] = labeller.getLabels(
+                            graphs.get(i), taskStats, null);
+                }
+                return taskStats;
+            }));
+        }
+
+        try {
+            for (Future<LabelStats> future : futures) {
+                stats.merge(future.get());
+            }
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            for (Future<LabelStats> future : futures) {
+                future.cancel(true);
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IOException(cause);
+        } catch (InterruptedException e) {
+            for (Future<LabelStats> future : futures) {
+                future.cancel(true);
+            }
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException(
+                    "Interrupted while labelling graphs");
+        }
+
+        return Arrays.asList(labelled);
+    }
+
+    /**
+     * Write the graph's triples as quads, those of the default graph in
+     * Quad.defaultGraphNodeGenerated, the node by which the writers of
+     * quads recognise it, so that a format written in blocks, such as TriG,
+     * gets a block per graph rather than triples between them.
+     */
+    private static void writeGraph(Node name, Graph graph, StreamRDF stream) {
+
+        Node graphName = Quad.isDefaultGraph(name) 
+                ? Quad.defaultGraphNodeGenerated : name;
+        ExtendedIterator<Triple> triples = graph.find(Node.ANY, Node.ANY,
+                Node.ANY);
+        try {
+            while (triples.hasNext()) {
+                stream.quad(new Quad(graphName, triples.next()));
+            }
+        } finally {
+            triples.close();
+        }
+    }
+
+    /**
+     * Collects the triples of each graph in a Model, by graph name, in the
+     * order each graph is first read, and the prefixes, for the output.
+     */
+    private class GraphCollector extends StreamRDFBase {
+
+        private final Map<Node, Model> graphs =
+                new LinkedHashMap<Node, Model>();
+        private final Map<String, String> prefixes =
+                new LinkedHashMap<String, String>();
+
+        @Override
+        public void triple(Triple triple) {
+            getGraph(Quad.defaultGraphNodeGenerated).add(triple);
+        }
+
+        @Override
+        public void quad(Quad quad) {
+            getGraph(quad.isDefaultGraph()
+                    ? Quad.defaultGraphNodeGenerated : quad.getGraph())
+                    .add(quad.asTriple());
+        }
+
+        @Override
+        public void prefix(String prefix, String iri) {
+            prefixes.put(prefix, iri);
+        }
+
+        private Graph getGraph(Node name) {
+            Model model = graphs.get(name);
+            if (model == null) {
+                model = labeller.createModel();
+                graphs.put(name, model);
+            }
+            return model.getGraph();
+        }
+    }
+}
@@ -0,0 +1,466 @@
+package org.ld4l.addlabels;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import org.apache.jena.datatypes.TypeMapper;
+import org.apache.jena.graph.Node;
+import org.apache.jena.graph.NodeFactory;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Sorts records by key within a fixed memory budget. Records are buffered
+ * until their estimated size reaches the budget, then sorted and written to
+ * a run file in the temporary directory; the runs are merged when the
+ * records are read back. At most MAX_FAN_IN runs are merged at once, each
+ * read through its own buffer; if there are more, consecutive runs are 
+ * first merged into longer ones, in as many passes as it takes, so that 
+ * neither the heap nor the open files grow with the input. Records with 
+ * equal keys come back in the order they were added. The temporary space
+ * used is counted, and a run is not written if the file system hasn't 
+ * room for it.
+ */
+class ExternalSorter implements AutoCloseable {
+
+    private static final Logger LOGGER =
+            LogManager.getLogger(ExternalSorter.class);
+
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    // The most runs read at once: 4 MB of buffers
+    static final int MAX_FAN_IN = 64;
+
+    private static final Comparator<Record> BY_KEY =
+            (a, b) -> a.key.compareTo(b.key);
+
+    /**
+     * A record: a key, a kind, and any number of nodes.
+     */
+    static class Record {
+
+        final String key;
+        final byte kind;
+        final Node[] nodes;
+
+        Record(String key, byte kind, Node... nodes) {
+            this.key = key;
+            this.kind = kind;
+            this.nodes = nodes;
+        }
+
+        /**
+         * Return a rough estimate of the heap used by the record.
+         */
+        private long size() {
+            long size = 80 + 2 * key.length();
+            for (Node node : nodes) {
+                size += 64 + 2 * (node.isURI() ? node.getURI().length()
+                        : node.isBlank() ? node.getBlankNodeLabel().length()
+                        : node.getLiteralLexicalForm().length());
+            }
+            return size;
+        }
+    }
+
+    /**
+     * Reads the sorted records. Must be closed.
+     */
+    interface RecordIterator extends AutoCloseable {
+
+        boolean hasNext();
+
+        Record next() throws IOException;
+
+        @Override
+        void close() throws IOException;
+    }
+
+    private final File tempDir;
+    private final long memoryBudget;
+    private final List<File> runs;
+    private List<Record> buffer;
+    private long bufferSize;
+    private long recordCount;
+    private int runCount;
+    private int mergePasses;
+    private long tempBytes;
+
+    /**
+     * @param tempDir - the directory for the run files. Will be created if
+     * it does not exist.
+     * @param memoryBudget - the estimated heap, in bytes, to buffer records
+     * in before writing them to a run
+     */
+    ExternalSorter(File tempDir, long memoryBudget) {
+        this.tempDir = tempDir;
+        this.memoryBudget = memoryBudget;
+        this.runs = new ArrayList<File>();
+        this.buffer = new ArrayList<Record>();
+    }
+
+    void add(Record record) throws IOException {
+
+        buffer.add(record);
+        bufferSize += record.size();
+        recordCount++;
+        if (bufferSize >= memoryBudget) {
+            spill();
+        }
+    }
+
+    long getRecordCount() {
+        return recordCount;
+    }
+
+    /**
+     * Return the estimated heap used by the records buffered since the last
+     * run was written.
+     */
+    long getBufferSize() {
+        return bufferSize;
+    }
+
+    /**
+     * Write the buffered records to a run, so that sorters that share a
+     * budget can make room for each other's records.
+     * @throws IOException
+     */
+    void flush() throws IOException {
+        if (! buffer.isEmpty()) {
+            spill();
+        }
+    }
+
+    /**
+     * Return the number of runs written from the buffer.
+     */
+    int getRunCount() {
+        return runCount;
+    }
+
+    /**
+     * Return the number of passes that merged runs into longer ones.
+     */
+    int getMergePasses() {
+        return mergePasses;
+    }
+
+    /**
+     * Return the number of bytes written to run files.
+     */
+    long getTempBytes() {
+        return tempBytes;
+    }
+
+    /**
+     * Return the records in key order. No more records may be added.
+     * @throws IOException
+     */
+    RecordIterator sorted() throws IOException {
+
+        if (runs.isEmpty()) {
+            buffer.sort(BY_KEY);
+            List<Record> records = buffer;
+            buffer = null;
+            return new BufferIterator(records);
+        }
+        if (! buffer.isEmpty()) {
+            spill();
+        }
+        buffer = null;
+        while (runs.size() > MAX_FAN_IN) {
+            mergePass();
+        }
+        return new MergeIterator(runs);
+    }
+
+    /**
+     * Merge each MAX_FAN_IN consecutive runs into one, in place of them,
+     * so that records with equal keys keep their order.
+     */
+    private void mergePass() throws IOException {
+
+        List<File> merged = new ArrayList<File>();
+        try {
+            for (int i = 0; i < runs.size(); i += MAX_FAN_IN) {
+                List<File> group = runs.subList(i, 
+                        Math.min(i + MAX_FAN_IN, runs.size()));
+                merged.add(group.size() > 1 ? merge(group) : group.get(0));
+            }
+        } catch (IOException e) {
+            // The runs are left to close().
+            for (File run : merged) {
+                if (! runs.contains(run)) {
+                    run.delete();
+                }
+            }
+            throw e;
+        }
+        for (File run : runs) {
+            if (! merged.contains(run)) {
+                run.delete();
+            }
+        }
+        runs.clear();
+        runs.addAll(merged);
+        mergePasses++;
+        LOGGER.debug("Merge pass " + mergePasses + " left " + runs.size() 
+                + " runs");
+    }
+
+    private File merge(List<File> group) throws IOException {
+
+        long size = 0;
+        for (File run : group) {
+            size += run.length();
+        }
+        if (tempDir.getUsableSpace() < size) {
+            throw new IOException("Not enough temporary space in " + tempDir
+                    + " to merge " + (size >> 20) + " MB of runs; "
+                    + (tempBytes >> 20) + " MB already used");
+        }
+
+        File run = File.createTempFile("merge", ".bin", tempDir);
+        try (RecordIterator records = new MergeIterator(group);
+                DataOutputStream out = new DataOutputStream(
+                        new BufferedOutputStream(new FileOutputStream(run),
+                                BUFFER_SIZE))) {
+            while (records.hasNext()) {
+                write(out, records.next());
+            }
+        } catch (IOException e) {
+            run.delete();
+            throw e;
+        }
+        tempBytes += run.length();
+        return run;
+    }
+
+    /**
+     * Delete the run files.
+     */
+    @Override
+    public void close() {
+        for (File run : runs) {
+            if (! run.delete() && run.exists()) {
+                LOGGER.warn("Can't delete temporary file " + run);
+            }
+        }
+        runs.clear();
+    }
+
+    private void spill() throws IOException {
+
+        buffer.sort(BY_KEY);
+
+        tempDir.mkdirs();
+        // The heap estimate is larger than the serialized records.
+        if (tempDir.getUsableSpace() < bufferSize) {
+            throw new IOException("Not enough temporary space in " + tempDir
+                    + " for " + (bufferSize >> 20) + " MB; "
+                    + (tempBytes >> 20) + " MB already used");
+        }
+
+        File run = File.createTempFile("run", ".bin", tempDir);
+        runs.add(run);
+        runCount++;
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(run),
+                        BUFFER_SIZE))) {
+            for (Record record : buffer) {
+                write(out, record);
+            }
+        }
+        tempBytes += run.length();
+        LOGGER.debug("Wrote run " + runCount + " of " + buffer.size()
+                + " records, " + run.length() + " bytes");
+
+        buffer = new ArrayList<Record>();
+        bufferSize = 0;
+    }
+
+    /**
+     * Write the record. Also for other classes that spill records.
+     */
+    static void write(DataOutputStream out, Record record)
+            throws IOException {
+
+        writeString(out, record.key);
+        out.writeByte(record.kind);
+        out.writeByte(record.nodes.length);
+        for (Node node : record.nodes) {
+            if (node.isURI()) {
+                out.writeByte('U');
+                writeString(out, node.getURI());
+            } else if (node.isBlank()) {
+                out.writeByte('B');
+                writeString(out, node.getBlankNodeLabel());
+            } else {
+                out.writeByte('L');
+                writeString(out, node.getLiteralLexicalForm());
+                writeString(out, node.getLiteralLanguage());
+                String datatype = node.getLiteralDatatypeURI();
+                writeString(out, datatype == null ? "" : datatype);
+            }
+        }
+    }
+
+    /**
+     * Read a record, or return null at the end of the run.
+     */
+    static Record read(DataInputStream in) throws IOException {
+
+        String key;
+        try {
+            key = readString(in);
+        } catch (EOFException e) {
+            return null;
+        }
+        byte kind = in.readByte();
+        Node[] nodes = new Node[in.readByte()];
+        for (int i = 0; i < nodes.length; i++) {
+            byte type = in.readByte();
+            if (type == 'U') {
+                nodes[i] = NodeFactory.createURI(readString(in));
+            } else if (type == 'B') {
+                nodes[i] = NodeFactory.createBlankNode(readString(in));
+            } else {
+                String lexicalForm = readString(in);
+                String language = readString(in);
+                String datatype = readString(in);
+                nodes[i] = ! language.isEmpty() || datatype.isEmpty()
+                        ? NodeFactory.createLiteral(lexicalForm, language)
+                        : NodeFactory.createLiteral(lexicalForm,
+                                TypeMapper.getInstance()
+                                        .getSafeTypeByName(datatype));
+            }
+        }
+        return new Record(key, kind, nodes);
+    }
+
+    // DataOutputStream.writeUTF is limited to 64 KB.
+    private static void writeString(DataOutputStream out, String string)
+            throws IOException {
+
+        byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static class BufferIterator implements RecordIterator {
+
+        private final List<Record> records;
+        private int next;
+
+        private BufferIterator(List<Record> records) {
+            this.records = records;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next < records.size();
+        }
+
+        @Override
+        public Record next() {
+            // Let the records go as they are read.
+            return records.set(next++, null);
+        }
+
+        @Override
+        public void close() {
+            records.clear();
+        }
+    }
+
+    /**
+     * Merges the runs. Of records with equal keys, those from earlier runs
+     * come first.
+     */
+    private static class MergeIterator implements RecordIterator {
+
+        private static class Head {
+
+            private final DataInputStream in;
+            private final int run;
+            private Record record;
+
+            private Head(DataInputStream in, int run) {
+                this.in = in;
+                this.run = run;
+            }
+        }
+
+        private final List<DataInputStream> inputs;
+        private final PriorityQueue<Head> heads;
+
+        private MergeIterator(List<File> runs) throws IOException {
+
+            inputs = new ArrayList<DataInputStream>(runs.size());
+            heads = new PriorityQueue<Head>(Math.max(1, runs.size()),
+                    (a, b) -> {
+                        int order = a.record.key.compareTo(b.record.key);
+                        return order != 0 ? order : a.run - b.run;
+                    });
+            try {
+                for (int i = 0; i < runs.size(); i++) {
+                    DataInputStream in = new DataInputStream(
+                            new BufferedInputStream(new FileInputStream(
+                                    runs.get(i)), BUFFER_SIZE));
+                    inputs.add(in);
+                    advance(new Head(in, i));
+                }
+            } catch (IOException e) {
+                close();
+                throw e;
+            }
+        }
+
+        private void advance(Head head) throws IOException {
+            head.record = read(head.in);
+            if (head.record != null) {
+                heads.add(head);
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return ! heads.isEmpty();
+        }
+
+        @Override
+        public Record next() throws IOException {
+            Head head = heads.remove();
+            Record record = head.record;
+            advance(head);
+            return record;
+        }
+
+        @Override
+        public void close() throws IOException {
+            for (DataInputStream in : inputs) {
+                in.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,39 @@
+package org.ld4l.addlabels;
+
+/**
+ * 64-bit fingerprints of URIs, for compact sets and indexes that don't hold
+ * the URI strings themselves. At 64 bits the chance of two distinct URIs
+ * sharing a fingerprint is negligible even for hundreds of millions of
+ * URIs. Zero is never returned, so it can mark an empty slot.
+ */
+final class Fingerprint {
+
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private Fingerprint() {
+    }
+
+    static long of(String uri) {
+
+        // FNV-1a over the UTF-16 code units...
+        long hash = FNV_OFFSET_BASIS;
+        for (int i = 0; i < uri.length(); i++) {
+            char c = uri.charAt(i);
+            hash ^= (c & 0xff);
+            hash *= FNV_PRIME;
+            hash ^= (c >>> 8);
+            hash *= FNV_PRIME;
+        }
+
+        // ...followed by the MurmurHash3 finalizer, so that URIs differing
+        // only near the end are spread over all 64 bits.
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+
+        return hash == 0 ? 1 : hash;
+    }
+}
@@ -0,0 +1,288 @@
+package org.ld4l.addlabels;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.apache.commons.io.FilenameUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Finds the input files of a run and names their outputs. An input
+ * directory is listed, or walked recursively, and its regular files are
+ * filtered by optional include and exclude globs, matched against each
+ * file's path relative to the directory (so *.nt matches only at the top,
+ * and **.nt at any depth). Files are taken in order of relative path.
+ *
+ * Each file's output is named for its relative path without the extension,
+ * with directory separators replaced by "__": sub/a.ttl is written to
+ * sub__a.nt. Files whose names would collide, such as a.rdf and a.ttl, keep
+ * their extensions (a.rdf.nt and a.ttl.nt), and any that still collide are
+ * numbered in path order, so that the names depend only on the set of
+ * input paths, and no output overwrites another.
+ *
+ * With a merge size, consecutive files smaller than it are grouped, up to
+ * that many bytes of input per group, and each group is labelled as one
+ * input, into an output named for its first and last files, separated by
+ * "--". Labels are then also made from the other files of the group.
+ */
+class InputFiles {
+
+    private static final Logger LOGGER =
+            LogManager.getLogger(InputFiles.class);
+
+    // Separate the directories of a relative path in an output name, and
+    // the first and last files of a group.
+    static final String SEPARATOR = "__";
+    static final String GROUP_SEPARATOR = "--";
+
+    /**
+     * One or more input files labelled together into one output.
+     */
+    static class Input {
+
+        private final List<File> files;
+        private final List<String> names;
+        private final String basename;
+
+        private Input(List<File> files, List<String> names, String basename) {
+            this.files = files;
+            this.names = names;
+            this.basename = basename;
+        }
+
+        List<File> getFiles() {
+            return files;
+        }
+
+        /**
+         * Return the basename of the output.
+         */
+        String getBasename() {
+            return basename;
+        }
+
+        /**
+         * Return the basename for the file's rejected lines. See
+         * RecoveringParser.
+         * @param index - the index of the file in getFiles()
+         */
+        String getRejectBasename(int index) {
+            return names.get(index);
+        }
+
+        long getSize() {
+            long size = 0;
+            for (File file : files) {
+                size += file.length();
+            }
+            return size;
+        }
+
+        /**
+         * Return the name of the input, for messages: the name of its file,
+         * or of the first and last of a group.
+         */
+        @Override
+        public String toString() {
+            return files.size() == 1 ? files.get(0).getName()
+                    : files.get(0).getName() + ".."
+                            + files.get(files.size() - 1).getName()
+                            + " (" + files.size() + " files)";
+        }
+    }
+
+    private InputFiles() {
+    }
+
+    /**
+     * Find the input files and group them into inputs.
+     * @param input - an input file or directory
+     * @param recursive - walk subdirectories of the input directory
+     * @param include - the glob of the relative paths to include, or null
+     * for all
+     * @param exclude - the glob of the relative paths to exclude, or null
+     * @param mergeSize - the bytes of input per group of small files, or 0
+     * not to group them
+     * @return the inputs, in order of relative path
+     * @throws IOException if the input directory can't be read
+     */
+    static List<Input> find(File input, boolean recursive, String include,
+            String exclude, long mergeSize) throws IOException {
+
+        if (! input.isDirectory()) {
+            String basename = FilenameUtils.getBaseName(input.getName());
+            return Collections.singletonList(new Input(
+                    Collections.singletonList(input),
+                    Collections.singletonList(basename), basename));
+        }
+
+        Path dir = input.toPath();
+        PathMatcher includer = include != null
+                ? FileSystems.getDefault().getPathMatcher("glob:" + include)
+                : null;
+        PathMatcher excluder = exclude != null
+                ? FileSystems.getDefault().getPathMatcher("glob:" + exclude)
+                : null;
+        List<Path> paths;
+        try (Stream<Path> walk = Files.walk(dir, recursive
+                ? Integer.MAX_VALUE : 1)) {
+            paths = walk.filter(Files::isRegularFile)
+                    .map(dir::relativize)
+                    .filter(path -> includer == null
+                            || includer.matches(path))
+                    .filter(path -> excluder == null
+                            || ! excluder.matches(path))
+                    .sorted()
+                    .collect(Collectors.toList());
+        }
+
+        List<String> names = getBasenames(paths);
+        List<Input> inputs = new ArrayList<Input>();
+        List<File> files = new ArrayList<File>();
+        List<String> groupNames = new ArrayList<String>();
+        long groupSize = 0;
+        for (int i = 0; i < paths.size(); i++) {
+            File file = dir.resolve(paths.get(i)).toFile();
+            long size = file.length();
+            if (! files.isEmpty() && (size >= mergeSize
+                    || groupSize + size > mergeSize)) {
+                inputs.add(group(files, groupNames));
+                files = new ArrayList<File>();
+                groupNames = new ArrayList<String>();
+                groupSize = 0;
+            }
+            files.add(file);
+            groupNames.add(names.get(i));
+            groupSize += size;
+        }
+        if (! files.isEmpty()) {
+            inputs.add(group(files, groupNames));
+        }
+
+        // A group's name may be taken by a file.
+        List<String> basenames = new ArrayList<String>();
+        for (Input group : inputs) {
+            basenames.add(group.basename);
+        }
+        basenames = number(basenames);
+        for (int i = 0; i < inputs.size(); i++) {
+            Input group = inputs.get(i);
+            if (! group.basename.equals(basenames.get(i))) {
+                inputs.set(i, new Input(group.files, group.names,
+                        basenames.get(i)));
+            }
+        }
+
+        if (inputs.size() < paths.size()) {
+            LOGGER.info("Merged " + paths.size() + " input files into "
+                    + inputs.size() + " inputs");
+        }
+        return inputs;
+    }
+
+    private static Input group(List<File> files, List<String> names) {
+
+        String basename = files.size() == 1 ? names.get(0) : names.get(0)
+                + GROUP_SEPARATOR + names.get(names.size() - 1);
+        return new Input(Collections.unmodifiableList(files),
+                Collections.unmodifiableList(names), basename);
+    }
+
+    /**
+     * Return the output basename of each relative path.
+     */
+    private static List<String> getBasenames(List<Path> paths) {
+
+        List<String> names = new ArrayList<String>(paths.size());
+        for (Path path : paths) {
+            names.add(FilenameUtils.removeExtension(join(path)));
+        }
+
+        // Keep the extensions of colliding names...
+        Map<String, Integer> counts = count(names);
+        for (int i = 0; i < names.size(); i++) {
+            if (counts.get(names.get(i)) > 1) {
+                names.set(i, join(paths.get(i)));
+            }
+        }
+
+        // ...and number any that still collide.
+        return number(names);
+    }
+
+    /**
+     * Number the names that occur more than once, in order, skipping
+     * numbered names that are taken.
+     */
+    private static List<String> number(List<String> names) {
+
+        Map<String, Integer> counts = count(names);
+        Set<String> taken = new HashSet<String>(names);
+        Map<String, Integer> numbers = new HashMap<String, Integer>();
+        List<String> numbered = new ArrayList<String>(names.size());
+        for (String name : names) {
+            if (counts.get(name) == 1) {
+                numbered.add(name);
+                continue;
+            }
+            int number = numbers.getOrDefault(name, 0);
+            String candidate;
+            do {
+                number++;
+                candidate = name + "-" + number;
+            } while (taken.contains(candidate));
+            numbers.put(name, number);
+            taken.add(candidate);
+            numbered.add(candidate);
+        }
+        return numbered;
+    }
+
+    private static String join(Path path) {
+
+        StringBuilder name = new StringBuilder();
+        for (Path element : path) {
+            if (name.length() > 0) {
+                name.append(SEPARATOR);
+            }
+            name.append(element.toString());
+        }
+        return name.toString();
+    }
+
+    private static Map<String, Integer> count(List<String> names) {
+
+        Map<String, Integer> counts = new HashMap<String, Integer>();
+        for (String name : names) {
+            counts.put(name, counts.getOrDefault(name, 0) + 1);
+        }
+        return counts;
+    }
+
+    /**
+     * Return all the files of the inputs, in order.
+     * @param inputs
+     */
+    static File[] getFiles(List<Input> inputs) {
+
+        List<File> files = new ArrayList<File>();
+        for (Input input : inputs) {
+            files.addAll(input.files);
+        }
+        return files.toArray(new File[files.size()]);
+    }
+}
@@ -0,0 +1,79 @@
+package org.ld4l.addlabels;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A bounded cache of the labels made for resources, by client and IRI, for
+ * a server that labels many small graphs from a client in which the same
+ * entities recur, such as agents and authorities. When the cache is full
+ * the least recently used label is dropped. A label is only ever returned
+ * to the client whose triples it was made from, and only for a resource
+ * that the client's later graph can't label itself: what a graph says
+ * about a resource always wins. Blank nodes, which are local to a graph,
+ * aren't cached.
+ *
+ * Thread-safe.
+ */
+class LabelCache {
+
+    private final int capacity;
+    private final Map<String, String> labels;
+    private long hits;
+    private long misses;
+
+    /**
+     * @param capacity - the maximum number of labels held
+     */
+    LabelCache(int capacity) {
+
+        this.capacity = capacity;
+        // Access order, so that the eldest entry is the least recently used.
+        this.labels = new LinkedHashMap<String, String>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(
+                    Map.Entry<String, String> eldest) {
+                return size() > LabelCache.this.capacity;
+            }
+        };
+    }
+
+    /**
+     * Return the label of the resource cached for the client, or null.
+     * @param client - the name of the client
+     * @param uri - the resource's IRI
+     */
+    synchronized String get(String client, String uri) {
+
+        String label = labels.get(key(client, uri));
+        if (label != null) {
+            hits++;
+        } else {
+            misses++;
+        }
+        return label;
+    }
+
+    synchronized void put(String client, String uri, String label) {
+        labels.put(key(client, uri), label);
+    }
+
+    synchronized int size() {
+        return labels.size();
+    }
+
+    synchronized long getHits() {
+        return hits;
+    }
+
+    synchronized long getMisses() {
+        return misses;
+    }
+
+    // An IRI can't hold a newline, so the key is unambiguous.
+    private static String key(String client, String uri) {
+        return client + "\n" + uri;
+    }
+}
@@ -0,0 +1,216 @@
+package org.ld4l.addlabels;
+
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.jena.graph.Node;
+import org.apache.jena.graph.NodeFactory;
+import org.apache.jena.graph.Triple;
+import org.apache.jena.riot.system.StreamRDF;
+import org.apache.jena.riot.system.StreamRDFWrapper;
+import org.apache.jena.sparql.core.Quad;
+
+/**
+ * Interns the literals of a file, so that a value that is repeated, such as
+ * a role name like "Author", an agent's name or a topic's skos:prefLabel,
+ * is held as a single Node and String however many triples it appears in,
+ * and the new rdfs:label of each subject shares the Node of the value it
+ * was made from. Each file gets its own dictionary, which is dropped with
+ * the file's model, so that values unique to one file aren't kept for the
+ * rest of the run.
+ *
+ * The index from a value to its Node is either a HashMap, or, with
+ * off-heap storage, an open addressing table of 64-bit fingerprints and
+ * positions in a direct buffer, which leaves only an array of the Nodes on
+ * the heap. A fingerprint match is confirmed against the Node, so that a
+ * collision costs only the sharing of that value.
+ *
+ * Not thread-safe: a file's statements are sent to the sink on the calling
+ * thread.
+ */
+class LabelDictionary {
+
+    /**
+     * Where the dictionary's index is held.
+     */
+    static enum Storage {
+        heap,
+        offheap;
+    }
+
+    // A rough estimate of the heap of a literal Node with its label and
+    // lexical form, apart from the characters, which take two bytes each
+    // on Java 8.
+    private static final int LITERAL_BYTES = 88;
+
+    private static final int SLOT_LONGS = 2;
+
+    private final Map<Node, Node> map;
+    private final List<Node> nodes;
+    private LongBuffer table;
+    private int mask;
+
+    private long lookups;
+    private long savedBytes;
+
+    /**
+     * @param storage - where to hold the index
+     */
+    LabelDictionary(Storage storage) {
+
+        if (storage == Storage.heap) {
+            map = new HashMap<Node, Node>();
+            nodes = null;
+        } else {
+            map = null;
+            nodes = new ArrayList<Node>();
+            allocate(1 << 12);
+        }
+    }
+
+    /**
+     * Return a stream that interns the literal object of each statement
+     * before sending it on to the sink.
+     * @param sink
+     */
+    StreamRDF intern(StreamRDF sink) {
+
+        return new StreamRDFWrapper(sink) {
+
+            @Override
+            public void triple(Triple triple) {
+                super.triple(intern(triple));
+            }
+
+            @Override
+            public void quad(Quad quad) {
+                Node object = quad.getObject();
+                Node interned = intern(object);
+                super.quad(interned == object ? quad : new Quad(
+                        quad.getGraph(), quad.getSubject(),
+                        quad.getPredicate(), interned));
+            }
+        };
+    }
+
+    /**
+     * Return the triple with its object interned, if it is a literal.
+     * @param triple
+     */
+    Triple intern(Triple triple) {
+
+        Node object = triple.getObject();
+        Node interned = intern(object);
+        return interned == object ? triple : Triple.create(
+                triple.getSubject(), triple.getPredicate(), interned);
+    }
+
+    /**
+     * Return the plain literal for a label.
+     * @param label
+     */
+    Node literal(String label) {
+        return intern(NodeFactory.createLiteral(label));
+    }
+
+    /**
+     * Return the interned copy of a literal, interning it if it is new.
+     * Other nodes are returned as they are.
+     * @param node
+     */
+    Node intern(Node node) {
+
+        if (! node.isLiteral()) {
+            return node;
+        }
+        lookups++;
+
+        Node interned = map != null ? internInMap(node) : internInTable(node);
+        if (interned != node) {
+            savedBytes += LITERAL_BYTES
+                    + 2 * node.getLiteralLexicalForm().length();
+        }
+        return interned;
+    }
+
+    private Node internInMap(Node node) {
+
+        Node interned = map.get(node);
+        if (interned == null) {
+            map.put(node, node);
+            return node;
+        }
+        return interned;
+    }
+
+    private Node internInTable(Node node) {
+
+        long fingerprint = fingerprint(node);
+        for (int slot = (int) fingerprint & mask; ;
+                slot = (slot + 1) & mask) {
+            long stored = table.get(slot * SLOT_LONGS);
+            if (stored == 0) {
+                table.put(slot * SLOT_LONGS, fingerprint);
+                table.put(slot * SLOT_LONGS + 1, nodes.size());
+                nodes.add(node);
+                // Keep the table at most half full.
+                if (nodes.size() * 2 > mask) {
+                    grow();
+                }
+                return node;
+            }
+            if (stored == fingerprint) {
+                Node interned =
+                        nodes.get((int) table.get(slot * SLOT_LONGS + 1));
+                return interned.equals(node) ? interned : node;
+            }
+        }
+    }
+
+    private static long fingerprint(Node node) {
+
+        String datatype = node.getLiteralDatatypeURI();
+        long fingerprint = Fingerprint.of(node.getLiteralLexicalForm())
+                ^ (31L * node.getLiteralLanguage().hashCode()
+                        + (datatype == null ? 0 : datatype.hashCode()))
+                        * 0x9e3779b97f4a7c15L;
+        return fingerprint == 0 ? 1 : fingerprint;
+    }
+
+    private void allocate(int capacity) {
+        table = ByteBuffer.allocateDirect(capacity * SLOT_LONGS * 8)
+                .asLongBuffer();
+        mask = capacity - 1;
+    }
+
+    private void grow() {
+
+        LongBuffer old = table;
+        allocate((mask + 1) * 2);
+        for (int i = 0; i < old.capacity(); i += SLOT_LONGS) {
+            long fingerprint = old.get(i);
+            if (fingerprint == 0) {
+                continue;
+            }
+            int slot = (int) fingerprint & mask;
+            while (table.get(slot * SLOT_LONGS) != 0) {
+                slot = (slot + 1) & mask;
+            }
+            table.put(slot * SLOT_LONGS, fingerprint);
+            table.put(slot * SLOT_LONGS + 1, old.get(i + 1));
+        }
+    }
+
+    /**
+     * Add the dictionary's statistics to the counts for its file.
+     * @param stats
+     */
+    void addTo(LabelStats stats) {
+        stats.interned(lookups, map != null ? map.size() : nodes.size(),
+                savedBytes);
+    }
+}
@@ -1,12 +1,22 @@
 package org.ld4l.addlabels;
 
-import java.lang.reflect.Method;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
 
+import org.apache.jena.graph.Graph;
+import org.apache.jena.graph.Node;
+import org.apache.jena.graph.NodeFactory;
+import org.apache.jena.graph.Triple;
+import org.apache.jena.rdf.model.Model;
 import org.apache.jena.rdf.model.Property;
 import org.apache.jena.rdf.model.Resource;
-import org.apache.jena.rdf.model.ResourceFactory;
 import org.apache.jena.rdf.model.Statement;
 import org.apache.jena.rdf.model.StmtIterator;
+import org.apache.jena.util.iterator.ExtendedIterator;
 import org.apache.jena.vocabulary.RDF;
 import org.apache.jena.vocabulary.RDFS;
 import org.apache.logging.log4j.LogManager;
@@ -17,191 +27,300 @@ public class LabelMaker {
     private static final Logger LOGGER = 
             LogManager.getLogger(LabelMaker.class); 
     
-    private static enum Namespace {
-        foaf("http://xmlns.com/foaf/0.1/"),
-        ld4l("http://bib.ld4l.org/ontology/"),
-        lingvo("http://www.lingvoj.org/ontology#"),
-        madsrdf("http://www.loc.gov/mads/rdf/v1#"),
-        prov("http://www.w3.org/ns/prov#"),
-        rdf("http://www.w3.org/1999/02/22-rdf-syntax-ns#"),
-        skos("http://www.w3.org/2004/02/skos/core#");
-        
-        private final String uri;
-        
-        Namespace(String uri) {
-            this.uri = uri;
-        }
-    }
+    private static final Node LABEL = RDFS.label.asNode();
+    private static final Node TYPE = RDF.type.asNode();
     
-    private static enum Type {
-        // Order is crucial!
-        work(Namespace.ld4l, "Work"),
-        instance(Namespace.ld4l, "Instance"),
-        person(Namespace.foaf, "Person"),
-        organization(Namespace.foaf, "Organization"),
-        agent(Namespace.foaf, "Agent"),
-        authority(Namespace.madsrdf, "Authority"), 
-        topic(Namespace.ld4l, "Topic"),
-        location(Namespace.prov, "Location");
+    /**
+     * A strategy registered for a type, with the type's priority: when a 
+     * resource has several types with strategies, the one with the lowest
+     * priority is used. Labels made by the strategy are counted under the
+     * local name of the type. A strategy made from a type rule keeps the 
+     * rule, so that a Join can follow its paths.
+     */
+    private static class TypeStrategy {
         
-        private final String uri;
-        private final String localname;
+        private final String typeUri;
+        private final String name;
+        private final int priority;
+        private final LabelStrategy strategy;
+        private final LabelRules.TypeRule rule;
         
-        Type(Namespace namespace, String localname) {
-            this.localname = localname;
-            uri = namespace.uri + localname;
+        private TypeStrategy(String typeUri, int priority, 
+                LabelStrategy strategy, LabelRules.TypeRule rule) {
+            this.typeUri = typeUri;
+            this.name = typeUri.substring(Math.max(
+                    typeUri.lastIndexOf('/'), typeUri.lastIndexOf('#')) + 1);
+            this.priority = priority;
+            this.strategy = strategy;
+            this.rule = rule;
         }
     }
     
-    private static enum LabelProperty {
-        authLabel(Namespace.madsrdf, "authoritativeLabel"),
-        name(Namespace.foaf, "name"),
-        prefLabel(Namespace.skos, "prefLabel"),
-        title(Namespace.ld4l, "hasTitle"),
-        type(Namespace.rdf, "type"),
-        value(Namespace.rdf, "value");
-        
-        private final String uri;
-        
-        LabelProperty(Namespace namespace, String localname) {
-            uri = namespace.uri + localname;
-        }
-    }
+    private final LabelRules rules;
+    
+    // Whether a path of the rules starts with rdf:type
+    private final boolean typePaths;
+    
+    private TitleIndex titleIndex;
     
+    // Keyed by type node, so that each rdf:type value costs one hash lookup.
+    private final Map<Node, TypeStrategy> strategies;
+    
+    /**
+     * Make labels by the default rules. See LabelRules.
+     */
     LabelMaker() {
-        // TODO Auto-generated constructor stub
+        this(loadDefaultRules());
     }
     
-    String makeLabel(Resource resource) {
+    /**
+     * Make labels by the specified rules. A strategy is registered for each
+     * type rule, in priority order.
+     * @param rules
+     */
+    LabelMaker(LabelRules rules) {
         
-        String label = makeLabelFromType(resource);               
-
-        if (label == null) {
-            label = makeLabelFromRdfValue(resource);
-        }
+        this.rules = rules;
+        strategies = new HashMap<Node, TypeStrategy>();
         
-        if (label != null) {
-            LOGGER.trace("Made new label \"" + label + "\" for " 
-                    + resource.getURI());                
-        } else {
-            LOGGER.trace("No label made for " + resource.getURI());  
-                                
+        boolean typePaths = hasTypePath(rules.getFallback());
+        for (LabelRules.TypeRule typeRule : rules.getTypeRules()) {
+            addStrategy(typeRule.getTypeUri(), 
+                    resource -> makeLabelFromRule(resource, typeRule), 
+                    typeRule);
+            typePaths |= hasTypePath(typeRule.getPaths());
         }
-        
-        return label;
+        this.typePaths = typePaths;
     }
     
-    private String makeLabelFromType(Resource resource) {
-
-        String label = null;
+    private static boolean hasTypePath(List<LabelRules.Path> paths) {
         
-        StmtIterator stmts = resource.listProperties(RDF.type);
-
-        typestatements:
-        while (stmts.hasNext()) {
-            Resource resourceType = stmts.next().getResource();
-            for (Type type : Type.values()) {
-                if (resourceType.getURI().equals(type.uri)) {
-                    LOGGER.trace("Resource " + resource.getURI() 
-                        + " is a " + type.uri);
-                    String methodName = getMethodName(type);
-                    try {
-                        Method method = this.getClass().getDeclaredMethod(
-                                methodName, Resource.class);
-                        LOGGER.trace("Got method " + method.getName());
-                        label = (String) method.invoke(this, resource);
-                    } catch (Exception e) {
-                        // TODO Auto-generated catch block
-                        e.printStackTrace();
-                    }  
-                    // Don't look at any other types for this resource (for
-                    // example, don't look at ld4l:Text type for an ld4l:Work).
-                    break typestatements;
-                }                
+        for (LabelRules.Path path : paths) {
+            if (path.getProperty().asNode().equals(TYPE)) {
+                return true;
             }
         }
-        
-        return label;
-        
+        return false;
     }
-
-    private String getMethodName(Type type) {
-        return "make" + type.localname + "Label";
+    
+    private static LabelRules loadDefaultRules() {
+        try {
+            return LabelRules.load();
+        } catch (IOException e) {
+            throw new IllegalStateException(
+                    "Can't load default label rules: " + e.getMessage(), e);
+        }
     }
     
-    @SuppressWarnings("unused")
-    private String makeWorkLabel(Resource resource) {
-        return makeLabelFromTitle(resource);
+    LabelRules getRules() {
+        return rules;
     }
     
-    @SuppressWarnings("unused")
-    private String makeInstanceLabel(Resource resource) {
-        return makeLabelFromTitle(resource);
+    /** 
+     * Return the predicates whose values may be used to make a label, apart
+     * from rdfs:label itself. Processing modes that don't hold the whole 
+     * graph in memory need to retain only triples with these predicates.
+     * Strategies registered with addStrategy() should use only these.
+     */
+    Set<Node> getLabelPredicates() {
+        return rules.getLabelPredicates();
     }
     
-    @SuppressWarnings("unused")
-    private String makePersonLabel(Resource resource) {
-        return makeLabelFromFoafName(resource);
+    /**
+     * Return the predicates, such as ld4l:hasTitle, whose object's 
+     * rdfs:label may be used as the label of the subject. 
+     */
+    Set<Node> getLinkPredicates() {
+        return rules.getLinkPredicates();
     }
     
-    @SuppressWarnings("unused")
-    private String makeOrganizationLabel(Resource resource) {
-        return makeLabelFromFoafName(resource);
+    /**
+     * Register the strategy used to label resources of the specified type. 
+     * A type that already has a strategy keeps its priority; a new type gets
+     * a lower priority than all the types registered before it.
+     * @param typeUri - the URI of the type
+     * @param strategy - the strategy
+     */
+    void addStrategy(String typeUri, LabelStrategy strategy) {
+        addStrategy(typeUri, strategy, null);
     }
     
-    @SuppressWarnings("unused")
-    private String makeAgentLabel(Resource resource) {
-        return makeLabelFromFoafName(resource);
+    private void addStrategy(String typeUri, LabelStrategy strategy, 
+            LabelRules.TypeRule rule) {
+        
+        Node type = NodeFactory.createURI(typeUri);
+        TypeStrategy existing = strategies.get(type);
+        int priority = existing != null 
+                ? existing.priority : strategies.size();
+        strategies.put(type, 
+                new TypeStrategy(typeUri, priority, strategy, rule));
     }
     
-    @SuppressWarnings("unused")
-    private String makeLocationLabel(Resource resource) {
-        return makeLabelFromFoafName(resource);
+    /**
+     * Set an index of labels from all input files, used when a linked 
+     * resource, such as the title of a Work or Instance, has no label in 
+     * the resource's own model.
+     * @param titleIndex
+     */
+    void setTitleIndex(TitleIndex titleIndex) {
+        this.titleIndex = titleIndex;
     }
-
-    @SuppressWarnings("unused")
-    private String makeAuthorityLabel(Resource resource) {
-        return makeLabelFromDatatypeProperty(resource, LabelProperty.authLabel);
+    
+    String makeLabel(Resource resource) {
+        return makeLabel(resource, null);
     }
-
-    @SuppressWarnings("unused")
-    private String makeTopicLabel(Resource resource) {
+    
+    /**
+     * Make a label for the resource, counting the source of a new label.
+     * @param resource
+     * @param stats - counts for the file, or null
+     * @return the label, or null if none can be made
+     */
+    String makeLabel(Resource resource, LabelStats stats) {
         
         String label = null;
+        String source = null;
         
-        label = makeLabelFromDatatypeProperty(
-                resource, LabelProperty.prefLabel);
-        
+        TypeStrategy match = getTypeStrategy(resource);
+        if (match != null) {
+            label = match.strategy.makeLabel(resource);
+            source = match.name;
+        }
+
         if (label == null) {
-            LOGGER.warn("FOUND TOPIC WITH NO skos:prefLabel");
-        }   
+            List<LabelRules.Path> fallback = rules.getFallback();
+            // Indexed, so that no iterator is allocated per resource.
+            for (int i = 0; i < fallback.size(); i++) {
+                LabelRules.Path path = fallback.get(i);
+                label = makeLabelFromPath(resource, path);
+                if (label != null) {
+                    source = path.toString();
+                    break;
+                }
+            }
+        }
         
-        return label;
+        return made(resource, label, source, stats);
     }
+    
+    /**
+     * Count the source of a new label, and trace it.
+     */
+    private static String made(Resource resource, String label, 
+            String source, LabelStats stats) {
+        
+        if (label != null && stats != null) {
+            stats.labelSource(source);
+        }
+        
+        if (isTraced(resource)) {
+            if (label != null) {
+                LOGGER.trace("Made new label \"" + label + "\" for " 
+                        + resource.getURI());                
+            } else {
+                LOGGER.trace("No label made for " + resource.getURI());  
+            }
+        }
         
-    private String makeLabelFromFoafName(Resource resource) {        
-        return makeLabelFromDatatypeProperty(resource, LabelProperty.name);
+        return label;
     }
     
-    private String makeLabelFromDatatypeProperty(
-            Resource resource, LabelProperty labelProperty) {
-
-        Property property = ResourceFactory.createProperty(labelProperty.uri);
-        return makeLabelFromDatatypeProperty(resource, property);       
+    /**
+     * Return true if per-subject trace messages are to be logged for the 
+     * resource. Trace messages are built only if this is true; see 
+     * TraceSampler.
+     */
+    private static boolean isTraced(Resource resource) {
+        return LOGGER.isTraceEnabled() && TraceSampler.isSampled(resource);
     }
+    
+    /**
+     * Return the strategy of the resource's highest priority type, or null
+     * if none of its types has one.
+     */
+    private TypeStrategy getTypeStrategy(Resource resource) {
 
+        TypeStrategy match = null;
+        
+        StmtIterator stmts = resource.listProperties(RDF.type);
+        try {
+            while (stmts.hasNext()) {
+                TypeStrategy typeStrategy = 
+                        strategies.get(stmts.next().getObject().asNode());
+                // Use only the highest priority type (for example, don't 
+                // look at ld4l:Text type for an ld4l:Work).
+                if (typeStrategy != null && (match == null 
+                        || typeStrategy.priority < match.priority)) {
+                    match = typeStrategy;
+                }
+            }
+        } finally {
+            stmts.close();
+        }
+        
+        if (match != null && isTraced(resource)) {
+            LOGGER.trace("Resource " + resource.getURI() + " is a " 
+                    + match.typeUri);
+        }
+        return match;
+        
+    }
+    
+    /**
+     * Make a label from the first of the type rule's paths that has a 
+     * value.
+     */
+    private String makeLabelFromRule(
+            Resource resource, LabelRules.TypeRule typeRule) {
+        
+        List<LabelRules.Path> paths = typeRule.getPaths();
+        for (int i = 0; i < paths.size(); i++) {
+            String label = makeLabelFromPath(resource, paths.get(i));
+            if (label != null) {
+                return label;
+            }
+        }
+        
+        warnIfRequired(typeRule);
+        return null;
+    }
+    
+    private static void warnIfRequired(LabelRules.TypeRule typeRule) {
+        
+        if (typeRule.isRequired()) {
+            LOGGER.warn("Found " + typeRule.getName() + " with no " 
+                    + typeRule.getPaths().stream().map(Object::toString)
+                            .collect(Collectors.joining(" or ")));
+        }   
+    }
+    
+    private String makeLabelFromPath(
+            Resource resource, LabelRules.Path path) {
+        
+        return path.isLinked() 
+                ? makeLabelFromLink(resource, path.getProperty())
+                : makeLabelFromDatatypeProperty(resource, path.getProperty());
+    }
+    
     private String makeLabelFromDatatypeProperty(
             Resource resource, Property property) {
 
         String label = null;
-        LOGGER.trace("Looking for property " + property + " of resource " 
-                + resource.getURI());
+        boolean traced = isTraced(resource);
+        if (traced) {
+            LOGGER.trace("Looking for property " + property 
+                    + " of resource " + resource.getURI());
+        }
         Statement stmt = resource.getProperty(property);
-        if (stmt != null) {
+        if (stmt != null && ! stmt.getObject().isLiteral()) {
+            warnNotLiteral(resource, property);
+        } else if (stmt != null) {
             label = stmt.getString();
-            LOGGER.trace("Found value " + label + " of property " + property 
-                    + " for resource " + resource.getURI());
-        } else {
+            if (traced) {
+                LOGGER.trace("Found value " + label + " of property " 
+                        + property + " for resource " + resource.getURI());
+            }
+        } else if (traced) {
             LOGGER.trace("No value found for property " + property 
                     + " and resource " + resource.getURI());
         }
@@ -209,45 +328,248 @@ public class LabelMaker {
         return label;
         
     }    
-    private String makeLabelFromTitle(Resource resource) {
+    
+    private static void warnNotLiteral(Resource resource, Property property) {
+        LOGGER.warn("Value of property " + property + " for resource " 
+                + resource.getURI() + " is not a literal");
+    }
+    
+    /**
+     * Make a label from the rdfs:label of the resource's value of the 
+     * property, such as its ld4l:hasTitle, from the index of all input files
+     * if the value has no label in the resource's model.
+     */
+    private String makeLabelFromLink(Resource resource, Property property) {
         
         String label = null;
+        boolean traced = isTraced(resource);
         
-        Property titleProperty = 
-                ResourceFactory.createProperty(LabelProperty.title.uri);
-        Resource title = resource.getPropertyResourceValue(titleProperty);
-        if (title != null) {
-            LOGGER.trace("Found title " + title.getURI() + " for resource " 
+        Resource value = resource.getPropertyResourceValue(property);
+        if (value != null) {
+            if (traced) {
+                LOGGER.trace("Found " + property + " value " + value.getURI()
+                        + " for resource " + resource.getURI() + " in a model"
+                        + " of " + resource.getModel().size() + " statements");
+            }
+            label = makeLabelFromDatatypeProperty(value, RDFS.label);
+            if (label == null && titleIndex != null && value.isURIResource()) {
+                label = titleIndex.getLabel(value.getURI());
+                if (traced) {
+                    LOGGER.trace("Found label " + label + " for " 
+                            + value.getURI() + " in title index");
+                }
+            }
+        } else if (traced) {
+            LOGGER.trace("No " + property + " value found for resource " 
                     + resource.getURI());
-            LOGGER.trace("Resource model" + resource.getModel().toString());
-            label = makeLabelFromDatatypeProperty(title, RDFS.label);
-        } else {
-            LOGGER.trace("Not title found for resource " + resource.getURI());
         }
         
         return label;
     }
     
-    private String makeLabelFromRdfValue(Resource resource) {
-
-//        String label = null;
-//        
-//        String value = 
-//                makeLabelFromDatatypeProperty(resource, LabelProperty.value);
-//        
-//        if (value != null) {
-//            label = value;
-//            Resource type = resource.getPropertyResourceValue(RDF.type);
-//            if (type != null) {               
-//                String typeLocalName = type.getLocalName().replaceAll(
-//                        "([a-z])([A-Z])", "$1 $2");
-//                label = label + " (" + typeLocalName + ")";
-//            }           
-//        }
-//                
-//        return label;        
-        
-        return makeLabelFromDatatypeProperty(resource, LabelProperty.value);
+    /**
+     * Prepare to label the subjects of the model set-at-a-time. See Join.
+     * @param model
+     */
+    Join join(Model model) {
+        return new Join(model);
+    }
+    
+    /**
+     * Makes the labels of the subjects of a model set-at-a-time. Rather than
+     * navigating from each subject to its rdfs:label, its types and the 
+     * value of each path of its type rule, which probes the graph's indexes
+     * several times per subject, a Join scans the triples of each predicate
+     * the rules use once, when it is created, and joins them on subject in 
+     * hash maps: the first rdfs:label of each subject, the highest priority 
+     * type strategy of each unlabelled subject, and the first value of each
+     * path's property for each unlabelled subject. Labels are then made 
+     * from the maps by the same rules, in the same order, as by makeLabel().
+     * A type whose strategy was registered with addStrategy() rather than 
+     * made from a rule is labelled by its strategy, from the model.
+     *
+     * As with makeLabel(), which of several values of a property is used 
+     * depends on the order of the graph's indexes. Not thread-safe.
+     */
+    class Join {
+        
+        private final Model model;
+        // The first rdfs:label of each subject that has one
+        private final Map<Node, Node> labels;
+        // The highest priority type strategy of each unlabelled subject
+        private final Map<Node, TypeStrategy> matches;
+        // By property: its first value for each unlabelled subject, and, 
+        // for link predicates, its first value that isn't a literal
+        private final Map<Node, Map<Node, Node>> values;
+        private final Map<Node, Map<Node, Node>> links;
+        
+        private Join(Model model) {
+            
+            this.model = model;
+            Graph graph = model.getGraph();
+            labels = new HashMap<Node, Node>();
+            matches = new HashMap<Node, TypeStrategy>();
+            values = new HashMap<Node, Map<Node, Node>>();
+            links = new HashMap<Node, Map<Node, Node>>();
+            
+            ExtendedIterator<Triple> triples = 
+                    graph.find(Node.ANY, LABEL, Node.ANY);
+            try {
+                while (triples.hasNext()) {
+                    Triple triple = triples.next();
+                    labels.putIfAbsent(
+                            triple.getSubject(), triple.getObject());
+                }
+            } finally {
+                triples.close();
+            }
+            
+            triples = graph.find(Node.ANY, TYPE, Node.ANY);
+            try {
+                while (triples.hasNext()) {
+                    Triple triple = triples.next();
+                    Node subject = triple.getSubject();
+                    TypeStrategy typeStrategy = 
+                            strategies.get(triple.getObject());
+                    if (typeStrategy == null 
+                            || labels.containsKey(subject)) {
+                        continue;
+                    }
+                    TypeStrategy match = matches.get(subject);
+                    if (match == null 
+                            || typeStrategy.priority < match.priority) {
+                        matches.put(subject, typeStrategy);
+                    }
+                }
+            } finally {
+                triples.close();
+            }
+            
+            Set<Node> linkPredicates = rules.getLinkPredicates();
+            for (Node predicate : rules.getLabelPredicates()) {
+                // rdf:type is always a label predicate, for the strategies,
+                // but its values are only needed by a path.
+                if (predicate.equals(TYPE) && ! typePaths) {
+                    continue;
+                }
+                Map<Node, Node> firstValues = new HashMap<Node, Node>();
+                Map<Node, Node> firstLinks = new HashMap<Node, Node>();
+                boolean link = linkPredicates.contains(predicate);
+                triples = graph.find(Node.ANY, predicate, Node.ANY);
+                try {
+                    while (triples.hasNext()) {
+                        Triple triple = triples.next();
+                        Node subject = triple.getSubject();
+                        if (labels.containsKey(subject)) {
+                            continue;
+                        }
+                        Node object = triple.getObject();
+                        firstValues.putIfAbsent(subject, object);
+                        if (link && ! object.isLiteral()) {
+                            firstLinks.putIfAbsent(subject, object);
+                        }
+                    }
+                } finally {
+                    triples.close();
+                }
+                values.put(predicate, firstValues);
+                links.put(predicate, firstLinks);
+            }
+        }
+        
+        /**
+         * Return the subject's first rdfs:label statement, or null if it 
+         * has none.
+         * @param resource
+         */
+        Statement getLabelStatement(Resource resource) {
+            
+            Node subject = resource.asNode();
+            Node label = labels.get(subject);
+            return label == null ? null : model.asStatement(
+                    Triple.create(subject, LABEL, label));
+        }
+        
+        /**
+         * Make a label for the resource, counting the source of a new 
+         * label, as makeLabel() does.
+         * @param resource - a subject of the model
+         * @param stats - counts for the file, or null
+         * @return the label, or null if none can be made
+         */
+        String makeLabel(Resource resource, LabelStats stats) {
+            
+            String label = null;
+            String source = null;
+            
+            TypeStrategy match = matches.get(resource.asNode());
+            if (match != null && match.rule == null) {
+                label = match.strategy.makeLabel(resource);
+                source = match.name;
+            } else if (match != null) {
+                List<LabelRules.Path> paths = match.rule.getPaths();
+                for (int i = 0; i < paths.size() && label == null; i++) {
+                    label = makeLabelFromPath(resource, paths.get(i));
+                }
+                if (label == null) {
+                    warnIfRequired(match.rule);
+                }
+                source = match.name;
+            }
+            
+            if (label == null) {
+                List<LabelRules.Path> fallback = rules.getFallback();
+                for (int i = 0; i < fallback.size(); i++) {
+                    LabelRules.Path path = fallback.get(i);
+                    label = makeLabelFromPath(resource, path);
+                    if (label != null) {
+                        source = path.toString();
+                        break;
+                    }
+                }
+            }
+            
+            return made(resource, label, source, stats);
+        }
+        
+        private String makeLabelFromPath(
+                Resource resource, LabelRules.Path path) {
+            
+            Property property = path.getProperty();
+            Node predicate = property.asNode();
+            if (! path.isLinked()) {
+                return getString(resource, property, 
+                        values.get(predicate).get(resource.asNode()));
+            }
+            
+            Node value = links.get(predicate).get(resource.asNode());
+            if (value == null) {
+                return null;
+            }
+            String label = getString(model.wrapAsResource(value), 
+                    RDFS.label, labels.get(value));
+            if (label == null && titleIndex != null && value.isURI()) {
+                label = titleIndex.getLabel(value.getURI());
+            }
+            return label;
+        }
+        
+        /**
+         * Return the lexical form of the value, or null, warning if it 
+         * isn't a literal.
+         */
+        private String getString(
+                Resource resource, Property property, Node value) {
+            
+            if (value == null) {
+                return null;
+            }
+            if (! value.isLiteral()) {
+                warnNotLiteral(resource, property);
+                return null;
+            }
+            return value.getLiteralLexicalForm();
+        }
     }
 
 }
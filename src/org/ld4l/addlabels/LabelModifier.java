@@ -1,67 +1,238 @@
 package org.ld4l.addlabels;
 
-import java.lang.reflect.Method;
-
-import org.apache.jena.rdf.model.Property;
-import org.apache.jena.rdf.model.Resource;
-import org.apache.jena.rdf.model.ResourceFactory;
-import org.apache.jena.rdf.model.Statement;
-import org.apache.jena.rdf.model.StmtIterator;
-import org.apache.jena.vocabulary.RDF;
-import org.apache.jena.vocabulary.RDFS;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+/**
+ * Rewrites existing labels by rules read from a file. Each line of the file
+ * holds a rule: its kind, a pattern and a replacement, separated by tabs.
+ * Blank lines and lines beginning with # are ignored.
+ *
+ *   exact   the label equals the pattern; it is replaced by the replacement
+ *   prefix  the label begins with the pattern; the pattern is replaced by
+ *           the replacement and the rest of the label is kept
+ *   regex   the whole label matches the regular expression; it is replaced
+ *           by the replacement, in which $n refers to the expression's
+ *           groups
+ *
+ * The exact rules are compiled into a hash map, and the prefix and regex
+ * rules into a single pattern of alternatives, so that a label costs one
+ * hash lookup and, only if there are other rules and no exact rule
+ * applies, one match. Of the prefix and regex rules, the first in the file
+ * that matches applies. The default rules, in label-modifications.tsv on
+ * the classpath, add the kind of node to the role names that bib2lod uses
+ * as the labels of Contributions and Provisions.
+ */
 public class LabelModifier {
 
-    private static final Logger LOGGER = 
-            LogManager.getLogger(LabelModifier.class); 
-    
-    private static enum Namespace {
-        foaf("http://xmlns.com/foaf/0.1/"),
-        ld4l("http://bib.ld4l.org/ontology/"),
-        lingvo("http://www.lingvoj.org/ontology#"),
-        madsrdf("http://www.loc.gov/mads/rdf/v1#"),
-        prov("http://www.w3.org/ns/prov#"),
-        rdf("http://www.w3.org/1999/02/22-rdf-syntax-ns#"),
-        skos("http://www.w3.org/2004/02/skos/core#");
-        
-        private final String uri;
-        
-        Namespace(String uri) {
-            this.uri = uri;
+    private static final Logger LOGGER =
+            LogManager.getLogger(LabelModifier.class);
+
+    static final String DEFAULT_RULES = "/label-modifications.tsv";
+
+    private static final Pattern GROUP_REFERENCE = Pattern.compile("\\$(\\d)");
+
+    private final Map<String, String> exact;
+    private final Pattern combined;
+    // The name of each alternative's group in the combined pattern, and
+    // the replacement, with group references renumbered to match.
+    private final String[] groups;
+    private final String[] replacements;
+    private final long fingerprint;
+
+    private LabelModifier(Map<String, String> exact, List<String> patterns,
+            List<String> replacements, long fingerprint) {
+
+        this.exact = exact;
+        this.fingerprint = fingerprint;
+        this.groups = new String[patterns.size()];
+        this.replacements = new String[patterns.size()];
+        if (patterns.isEmpty()) {
+            this.combined = null;
+            return;
+        }
+
+        StringBuilder regex = new StringBuilder();
+        // Group 0 is the whole match.
+        int groupCount = 0;
+        for (int i = 0; i < patterns.size(); i++) {
+            String pattern = patterns.get(i);
+            groups[i] = "r" + i;
+            if (i > 0) {
+                regex.append('|');
+            }
+            regex.append("(?<").append(groups[i]).append('>')
+                    .append(pattern).append(')');
+            // The rule's own groups follow its named group.
+            int offset = groupCount + 1;
+            this.replacements[i] = renumber(replacements.get(i), offset);
+            groupCount = offset
+                    + Pattern.compile(pattern).matcher("").groupCount();
         }
+        this.combined = Pattern.compile(regex.toString());
     }
-    
-    
-    LabelModifier() {
-        // TODO Auto-generated constructor stub
+
+    /**
+     * Return the modifier with the default rules.
+     * @throws IOException if the rules can't be read
+     */
+    static LabelModifier load() throws IOException {
+
+        InputStream in = LabelModifier.class.getResourceAsStream(
+                DEFAULT_RULES);
+        if (in == null) {
+            throw new IOException("Default rules not found: "
+                    + DEFAULT_RULES);
+        }
+        return load(in, DEFAULT_RULES);
+    }
+
+    /**
+     * Return the modifier with the rules in the specified file.
+     * @param file
+     * @throws IOException if the file can't be read or a rule is invalid
+     */
+    static LabelModifier load(File file) throws IOException {
+        return load(new FileInputStream(file), file.toString());
     }
-    
-    String modifyLabel(Resource resource, String label) {
-        
-        // Contributions
-        if (label.equals("Author")) {
-            label = "Author Contribution";
-        } else if (label.equals("Composer")) {
-            label = "Composer Contribution";
-        } else if (label.equals("Conductor")) {
-            label = "Conductor Contribution";
-        } else if (label.equals("Creator")) {
-            label = "Creator Contribution";  
-        } else if (label.equals("Editor")) {
-            label = "Editor Contribution";        
-        } else if (label.equals("Narrator")) {
-            label = "Narrator Contribution";            
-        } else if (label.equals("Performer")) {
-            label = "Performer Contribution";
-            
-        // Provisions
-        } else if (label.equals("Publisher")) {
-            label = "Publisher Provision";
-        }      
-        
+
+    private static LabelModifier load(InputStream in, String name)
+            throws IOException {
+
+        Map<String, String> exact = new HashMap<String, String>();
+        List<String> patterns = new ArrayList<String>();
+        List<String> replacements = new ArrayList<String>();
+        StringBuilder text = new StringBuilder();
+
+        try (BufferedReader reader = new BufferedReader(
+                new InputStreamReader(in, StandardCharsets.UTF_8))) {
+            int lineNumber = 0;
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                if (line.trim().isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                text.append(line).append('\n');
+                String[] fields = line.split("\t", -1);
+                if (fields.length != 3) {
+                    throw new IOException(name + " line " + lineNumber
+                            + ": expected kind, pattern and replacement "
+                            + "separated by tabs");
+                }
+                String kind = fields[0];
+                String pattern = fields[1];
+                String replacement = fields[2];
+                if (kind.equals("exact")) {
+                    if (! exact.containsKey(pattern)) {
+                        exact.put(pattern, replacement);
+                    }
+                } else if (kind.equals("prefix")) {
+                    patterns.add(Pattern.quote(pattern) + "(.*)");
+                    replacements.add(
+                            Matcher.quoteReplacement(replacement) + "$1");
+                } else if (kind.equals("regex")) {
+                    try {
+                        Pattern.compile(pattern);
+                    } catch (PatternSyntaxException e) {
+                        throw new IOException(name + " line " + lineNumber
+                                + ": " + e.getDescription());
+                    }
+                    patterns.add(pattern);
+                    replacements.add(replacement);
+                } else {
+                    throw new IOException(name + " line " + lineNumber
+                            + ": unknown kind of rule: " + kind);
+                }
+            }
+        }
+
+        LOGGER.debug("Read " + (exact.size() + patterns.size())
+                + " label modification rules from " + name);
+        try {
+            return new LabelModifier(exact, patterns, replacements,
+                    Fingerprint.of(text.toString()));
+        } catch (PatternSyntaxException e) {
+            // E.g., two expressions with a group of the same name
+            throw new IOException(name + ": " + e.getDescription());
+        }
+    }
+
+    /**
+     * Return the label as modified by the first rule that applies, or the
+     * label itself if none does.
+     * @param label
+     */
+    String modifyLabel(String label) {
+
+        String modified = exact.get(label);
+        if (modified != null) {
+            return modified;
+        }
+        if (combined == null) {
+            return label;
+        }
+
+        Matcher matcher = combined.matcher(label);
+        if (! matcher.matches()) {
+            return label;
+        }
+        for (int i = 0; i < groups.length; i++) {
+            if (matcher.start(groups[i]) >= 0) {
+                StringBuffer buffer = new StringBuffer();
+                matcher.appendReplacement(buffer, replacements[i]);
+                return buffer.toString();
+            }
+        }
         return label;
     }
 
+    /**
+     * Return a fingerprint of the rules, so that a run can tell whether it
+     * used the same rules as another.
+     */
+    long getFingerprint() {
+        return fingerprint;
+    }
+
+    /**
+     * Add the offset to the group numbers in the replacement.
+     */
+    private static String renumber(String replacement, int offset) {
+
+        Matcher matcher = GROUP_REFERENCE.matcher(replacement);
+        StringBuffer buffer = new StringBuffer();
+        while (matcher.find()) {
+            // An escaped $ is left alone.
+            int backslashes = 0;
+            for (int i = matcher.start() - 1;
+                    i >= 0 && replacement.charAt(i) == '\\'; i--) {
+                backslashes++;
+            }
+            String reference = backslashes % 2 == 1 ? matcher.group()
+                    : "\\$" + (offset + Integer.parseInt(matcher.group(1)));
+            matcher.appendReplacement(buffer,
+                    backslashes % 2 == 1
+                            ? Matcher.quoteReplacement(reference)
+                            : reference);
+        }
+        matcher.appendTail(buffer);
+        return buffer.toString();
+    }
+
 }
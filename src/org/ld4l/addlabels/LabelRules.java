@@ -0,0 +1,357 @@
+package org.ld4l.addlabels;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.jena.graph.Node;
+import org.apache.jena.rdf.model.Property;
+import org.apache.jena.rdf.model.ResourceFactory;
+import org.apache.jena.vocabulary.RDF;
+import org.apache.jena.vocabulary.RDFS;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * The rules by which LabelMaker makes labels, read from a file, so that
+ * another version of the ontology, or another ontology, can be labelled
+ * without code changes. Each line of the file holds a rule: its kind and
+ * its fields, separated by tabs. Blank lines and lines beginning with # are
+ * ignored.
+ *
+ *   prefix    name, namespace  declares a prefix for the lines that follow
+ *   type      type, path ...   labels resources of the type from the first
+ *                              of the paths that has a value
+ *   required  type, path ...   the same, warning of a resource of the type
+ *                              that none of the paths gives a label for
+ *   fallback  path ...         labels any resource that no type rule gave
+ *                              a label for
+ *
+ * Types and properties are written as prefix:localname or <IRI>. A path is
+ * either a property whose literal value is the label, or a property
+ * followed by /rdfs:label, in which case the label is the rdfs:label of the
+ * property's object, as for ld4l:hasTitle/rdfs:label. Longer paths aren't
+ * supported, as the streaming and out-of-core modes join only the linked
+ * resources' rdfs:labels. The type rules are in priority order: a resource
+ * with several of the types is labelled by the first.
+ *
+ * The properties of the paths are built once, when the rules are read, so
+ * that following a path costs only the lookups of its statements. The
+ * default rules, in label-rules.tsv on the classpath, are for LD4L
+ * ontology v1.
+ */
+class LabelRules {
+
+    private static final Logger LOGGER =
+            LogManager.getLogger(LabelRules.class);
+
+    static final String DEFAULT_RULES = "/label-rules.tsv";
+
+    private static final String LABEL_URI = RDFS.label.getURI();
+
+    /**
+     * A path to a label from the resource being labelled.
+     */
+    static class Path {
+
+        private final String text;
+        private final Property property;
+        private final boolean linked;
+
+        private Path(String text, Property property, boolean linked) {
+            this.text = text;
+            this.property = property;
+            this.linked = linked;
+        }
+
+        /**
+         * Return the property of the path's first step.
+         */
+        Property getProperty() {
+            return property;
+        }
+
+        /**
+         * Return true if the label is the rdfs:label of the property's
+         * object, rather than the property's value.
+         */
+        boolean isLinked() {
+            return linked;
+        }
+
+        /**
+         * Return the path as written in the rules, which is also the
+         * source under which labels made from a fallback path are counted.
+         */
+        @Override
+        public String toString() {
+            return text;
+        }
+    }
+
+    /**
+     * The paths to the label of resources of a type.
+     */
+    static class TypeRule {
+
+        private final String name;
+        private final String typeUri;
+        private final List<Path> paths;
+        private final boolean required;
+
+        private TypeRule(String name, String typeUri, List<Path> paths,
+                boolean required) {
+            this.name = name;
+            this.typeUri = typeUri;
+            this.paths = paths;
+            this.required = required;
+        }
+
+        /**
+         * Return the type as written in the rules.
+         */
+        String getName() {
+            return name;
+        }
+
+        String getTypeUri() {
+            return typeUri;
+        }
+
+        List<Path> getPaths() {
+            return paths;
+        }
+
+        /**
+         * Return true if a resource of the type that none of the paths
+         * gives a label for is to be warned of.
+         */
+        boolean isRequired() {
+            return required;
+        }
+    }
+
+    private final List<TypeRule> typeRules;
+    private final List<Path> fallback;
+    private final Set<Node> labelPredicates;
+    private final Set<Node> linkPredicates;
+    private final long fingerprint;
+
+    private LabelRules(List<TypeRule> typeRules, List<Path> fallback,
+            long fingerprint) {
+
+        this.typeRules = Collections.unmodifiableList(typeRules);
+        this.fallback = Collections.unmodifiableList(fallback);
+        this.fingerprint = fingerprint;
+
+        Set<Node> labelPredicates = new HashSet<Node>();
+        Set<Node> linkPredicates = new HashSet<Node>();
+        labelPredicates.add(RDF.type.asNode());
+        List<Path> paths = new ArrayList<Path>(fallback);
+        for (TypeRule typeRule : typeRules) {
+            paths.addAll(typeRule.paths);
+        }
+        for (Path path : paths) {
+            labelPredicates.add(path.property.asNode());
+            if (path.linked) {
+                linkPredicates.add(path.property.asNode());
+            }
+        }
+        this.labelPredicates = Collections.unmodifiableSet(labelPredicates);
+        this.linkPredicates = Collections.unmodifiableSet(linkPredicates);
+    }
+
+    /**
+     * Return the default rules.
+     * @throws IOException if the rules can't be read
+     */
+    static LabelRules load() throws IOException {
+
+        InputStream in = LabelRules.class.getResourceAsStream(DEFAULT_RULES);
+        if (in == null) {
+            throw new IOException("Default rules not found: "
+                    + DEFAULT_RULES);
+        }
+        return load(in, DEFAULT_RULES);
+    }
+
+    /**
+     * Return the rules in the specified file.
+     * @param file
+     * @throws IOException if the file can't be read or a rule is invalid
+     */
+    static LabelRules load(File file) throws IOException {
+        return load(new FileInputStream(file), file.toString());
+    }
+
+    private static LabelRules load(InputStream in, String name)
+            throws IOException {
+
+        Map<String, String> prefixes = new HashMap<String, String>();
+        List<TypeRule> typeRules = new ArrayList<TypeRule>();
+        Set<String> types = new HashSet<String>();
+        List<Path> fallback = new ArrayList<Path>();
+        StringBuilder text = new StringBuilder();
+
+        try (BufferedReader reader = new BufferedReader(
+                new InputStreamReader(in, StandardCharsets.UTF_8))) {
+            int lineNumber = 0;
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                if (line.trim().isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                text.append(line).append('\n');
+                String[] fields = line.split("\t", -1);
+                String kind = fields[0];
+                String where = name + " line " + lineNumber + ": ";
+                if (kind.equals("prefix")) {
+                    if (fields.length != 3) {
+                        throw new IOException(where + "expected prefix, "
+                                + "name and namespace separated by tabs");
+                    }
+                    prefixes.put(fields[1], fields[2]);
+                } else if (kind.equals("type") || kind.equals("required")) {
+                    if (fields.length < 3) {
+                        throw new IOException(where + "expected " + kind
+                                + ", type and paths separated by tabs");
+                    }
+                    String typeUri = expand(fields[1], prefixes, where);
+                    if (! types.add(typeUri)) {
+                        throw new IOException(where + "type " + fields[1]
+                                + " already has a rule");
+                    }
+                    typeRules.add(new TypeRule(fields[1], typeUri,
+                            parsePaths(fields, 2, prefixes, where),
+                            kind.equals("required")));
+                } else if (kind.equals("fallback")) {
+                    if (fields.length < 2) {
+                        throw new IOException(where
+                                + "expected fallback and paths separated "
+                                + "by tabs");
+                    }
+                    fallback.addAll(parsePaths(fields, 1, prefixes, where));
+                } else {
+                    throw new IOException(where + "unknown kind of rule: "
+                            + kind);
+                }
+            }
+        }
+
+        LOGGER.debug("Read " + typeRules.size() + " type rules and "
+                + fallback.size() + " fallback paths from " + name);
+        return new LabelRules(typeRules, fallback,
+                Fingerprint.of(text.toString()));
+    }
+
+    private static List<Path> parsePaths(String[] fields, int start,
+            Map<String, String> prefixes, String where) throws IOException {
+
+        List<Path> paths = new ArrayList<Path>();
+        for (int i = start; i < fields.length; i++) {
+            paths.add(parsePath(fields[i], prefixes, where));
+        }
+        return Collections.unmodifiableList(paths);
+    }
+
+    private static Path parsePath(String text, Map<String, String> prefixes,
+            String where) throws IOException {
+
+        // Split at the slashes that aren't within an <IRI>.
+        List<String> steps = new ArrayList<String>();
+        int start = 0;
+        boolean inIri = false;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '<') {
+                inIri = true;
+            } else if (c == '>') {
+                inIri = false;
+            } else if (c == '/' && ! inIri) {
+                steps.add(text.substring(start, i));
+                start = i + 1;
+            }
+        }
+        steps.add(text.substring(start));
+
+        if (steps.size() > 2 || (steps.size() == 2
+                && ! expand(steps.get(1), prefixes, where).equals(LABEL_URI))) {
+            throw new IOException(where + "unsupported path " + text
+                    + ": expected a property, or a property followed by "
+                    + "/rdfs:label");
+        }
+        Property property = ResourceFactory.createProperty(
+                expand(steps.get(0), prefixes, where));
+        return new Path(text, property, steps.size() == 2);
+    }
+
+    /**
+     * Return the IRI written as prefix:localname or <IRI>.
+     */
+    private static String expand(String name, Map<String, String> prefixes,
+            String where) throws IOException {
+
+        if (name.startsWith("<") && name.endsWith(">") && name.length() > 2) {
+            return name.substring(1, name.length() - 1);
+        }
+        int colon = name.indexOf(':');
+        String namespace = colon < 0
+                ? null : prefixes.get(name.substring(0, colon));
+        if (namespace == null) {
+            throw new IOException(where + "undeclared prefix or invalid "
+                    + "name: " + name);
+        }
+        return namespace + name.substring(colon + 1);
+    }
+
+    /**
+     * Return the type rules, in priority order.
+     */
+    List<TypeRule> getTypeRules() {
+        return typeRules;
+    }
+
+    /**
+     * Return the paths to try for a resource that no type rule gave a label
+     * for.
+     */
+    List<Path> getFallback() {
+        return fallback;
+    }
+
+    /**
+     * Return the predicates whose values may be used to make a label, apart
+     * from rdfs:label itself: rdf:type and the first step of each path.
+     */
+    Set<Node> getLabelPredicates() {
+        return labelPredicates;
+    }
+
+    /**
+     * Return the predicates of the paths followed by /rdfs:label, whose
+     * objects' rdfs:labels may be used to make a label.
+     */
+    Set<Node> getLinkPredicates() {
+        return linkPredicates;
+    }
+
+    /**
+     * Return a fingerprint of the rules, so that a run can tell whether it
+     * used the same rules as another.
+     */
+    long getFingerprint() {
+        return fingerprint;
+    }
+}
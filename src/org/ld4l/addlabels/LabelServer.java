@@ -0,0 +1,456 @@
+package org.ld4l.addlabels;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.jena.rdf.model.Model;
+import org.apache.jena.riot.Lang;
+import org.apache.jena.riot.RDFDataMgr;
+import org.apache.jena.riot.RDFLanguages;
+import org.apache.jena.riot.RiotException;
+import org.apache.jena.riot.system.StreamOps;
+import org.apache.jena.riot.system.StreamRDF;
+import org.apache.jena.riot.system.StreamRDFLib;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Labels graphs sent over HTTP on localhost, so that a pipeline that labels
+ * many small batches pays for JVM startup, Jena initialisation and JIT
+ * warm-up once, rather than once per batch.
+ *
+ *   POST /label   labels the RDF in the request body, in the syntax of its
+ *                 Content-Type (N-Triples if it has none, or one that isn't
+ *                 an RDF syntax, such as curl's default), or, with
+ *                 ?path=file, the file, in the syntax of its extension.
+ *                 The file must be in the directory the server was given
+ *                 for them, as a path relative to it or an absolute one;
+ *                 without one, ?path= is refused.
+ *                 Returns the labelled graph, or with ?delta=true only the
+ *                 new labels, in the server's output format, or that of
+ *                 ?format=. The X-New-Labels header gives the number of
+ *                 new labels. With ?client=name, labels are cached for
+ *                 the client's later requests.
+ *   GET  /stats   returns the server's counts as JSON.
+ *
+ * Requests are queued, and each of a fixed number of workers takes the
+ * requests that are waiting, up to a batch size, and labels them one after
+ * another, so that a burst of requests is handled in a few batches rather
+ * than on as many threads. The queue holds as many requests as the workers
+ * take in one batch each; a request that finds it full is refused with
+ * 503, so that the number of graphs in memory is bounded. When the server
+ * stops, the requests still waiting are answered with 503 too.
+ * Each request is still labelled on its own, so that its labels are made
+ * from its own triples; but the labels made for a named client are kept
+ * in a LabelCache, so that a resource that recurs without its triples in
+ * the client's later requests, such as an agent or an authority, is
+ * labelled from the cache. A request without a client name, or from
+ * another client, never sees them.
+ */
+class LabelServer {
+
+    private static final Logger LOGGER =
+            LogManager.getLogger(LabelServer.class);
+
+    static final String LABEL_PATH = "/label";
+    static final String STATS_PATH = "/stats";
+
+    static final String NEW_LABELS_HEADER = "X-New-Labels";
+
+    // Threads reading requests and writing responses, which mostly wait
+    // on the workers.
+    private static final int HTTP_THREADS = 16;
+
+    /**
+     * A request, labelled by a worker.
+     */
+    private static class Job {
+
+        private final byte[] body;
+        private final File file;
+        private final Lang lang;
+        private final boolean delta;
+        private final String client;
+        private final LabelStats stats = new LabelStats();
+        private final CompletableFuture<Model> result =
+                new CompletableFuture<Model>();
+
+        private Job(byte[] body, File file, Lang lang, boolean delta,
+                String client) {
+            this.body = body;
+            this.file = file;
+            this.lang = lang;
+            this.delta = delta;
+            this.client = client;
+        }
+    }
+
+    private final Labeller labeller;
+    private final OutputFormat format;
+    private final int workers;
+    private final int batchSize;
+    private final LabelCache cache;
+    private final BlockingQueue<Job> queue;
+    private File pathRoot;
+
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLong newLabels = new AtomicLong();
+
+    private HttpServer server;
+    private ExecutorService httpExecutor;
+    private ExecutorService workerExecutor;
+    private volatile boolean stopping;
+
+    /**
+     * @param labeller - labels the graphs, with its label rules, modifier,
+     * delta and compact settings
+     * @param format - the format of the responses
+     * @param workers - the number of requests to label at once
+     * @param batchSize - the most requests a worker takes at once
+     * @param cacheSize - the most labels to cache, or 0 for no cache
+     * @param pathRoot - the directory whose files ?path= may name, or null
+     * to refuse ?path=
+     */
+    LabelServer(Labeller labeller, OutputFormat format, int workers,
+            int batchSize, int cacheSize, File pathRoot) {
+
+        this.labeller = labeller;
+        this.format = format;
+        this.workers = workers;
+        this.batchSize = batchSize;
+        this.cache = cacheSize > 0 ? new LabelCache(cacheSize) : null;
+        this.queue = new ArrayBlockingQueue<Job>(workers * batchSize);
+        this.pathRoot = pathRoot;
+        labeller.setLabelCache(cache);
+    }
+
+    /**
+     * Start serving on the port of the loopback address.
+     * @param port - the port, or 0 for any free port
+     * @return the port
+     * @throws IOException if the port can't be bound
+     */
+    int start(int port) throws IOException {
+
+        if (pathRoot != null) {
+            // So that a path is checked against where its links lead
+            pathRoot = pathRoot.getCanonicalFile();
+        }
+        server = HttpServer.create(new InetSocketAddress(
+                InetAddress.getLoopbackAddress(), port), 0);
+        server.createContext(LABEL_PATH, this::handleLabel);
+        server.createContext(STATS_PATH, this::handleStats);
+        httpExecutor = Executors.newFixedThreadPool(HTTP_THREADS);
+        server.setExecutor(httpExecutor);
+
+        workerExecutor = Executors.newFixedThreadPool(workers);
+        for (int i = 0; i < workers; i++) {
+            workerExecutor.execute(this::work);
+        }
+        server.start();
+
+        int boundPort = server.getAddress().getPort();
+        LOGGER.info("Serving on http://localhost:" + boundPort + LABEL_PATH
+                + " with " + workers + " workers, batches of up to "
+                + batchSize);
+        return boundPort;
+    }
+
+    /**
+     * Stop accepting requests, answer those still waiting with 503, and stop
+     * the workers once the requests being labelled have been answered.
+     */
+    void stop() {
+
+        if (server == null) {
+            return;
+        }
+        stopping = true;
+        List<Job> waiting = new ArrayList<Job>();
+        queue.drainTo(waiting);
+        for (Job job : waiting) {
+            job.result.cancel(false);
+        }
+        server.stop(1);
+        httpExecutor.shutdown();
+        workerExecutor.shutdownNow();
+        LOGGER.info("Stopped after " + requests.get() + " requests");
+    }
+
+    private void work() {
+
+        List<Job> batch = new ArrayList<Job>(batchSize);
+        try {
+            while (! Thread.currentThread().isInterrupted()) {
+                batch.add(queue.take());
+                queue.drainTo(batch, batchSize - 1);
+                batches.incrementAndGet();
+                LOGGER.debug("Labelling a batch of " + batch.size()
+                        + " requests");
+                for (Job job : batch) {
+                    try {
+                        label(job);
+                    } catch (Error e) {
+                        // Such as an OutOfMemoryError from a graph too big
+                        // for the heap, which is gone once it's dropped.
+                        LOGGER.error("ERROR: labelling failed: " + e, e);
+                    }
+                }
+                batch.clear();
+            }
+        } catch (InterruptedException e) {
+            // Stopped
+        }
+    }
+
+    private void label(Job job) {
+
+        try {
+            Model model = labeller.createModel();
+            StreamRDF sink = StreamRDFLib.graph(model.getGraph());
+            long start = System.nanoTime();
+            if (job.file != null) {
+                RDFDataMgr.parse(sink, job.file.toString(), job.lang);
+            } else {
+                RDFDataMgr.parse(sink, new ByteArrayInputStream(job.body),
+                        job.lang);
+            }
+            job.stats.time(LabelStats.Stage.parse, start);
+            job.stats.triples(model.size());
+            Model labelled = labeller.getLabels(
+                    model, job.stats, null, job.delta, job.client);
+            job.stats.log(LOGGER);
+            job.result.complete(labelled);
+        } catch (RuntimeException e) {
+            job.result.completeExceptionally(e);
+        } finally {
+            // After an Error, so that the request isn't left waiting.
+            // Does nothing if the result is already set.
+            job.result.completeExceptionally(new IllegalStateException(
+                    "labelling ended with an error"));
+        }
+    }
+
+    private void handleLabel(HttpExchange exchange) throws IOException {
+
+        try {
+            if (! exchange.getRequestMethod().equals("POST")) {
+                send(exchange, 405, "Use POST");
+                return;
+            }
+            requests.incrementAndGet();
+            if (stopping) {
+                fail(exchange, 503, "Server stopping");
+                return;
+            }
+            Map<String, String> params =
+                    getParams(exchange.getRequestURI().getRawQuery());
+
+            OutputFormat responseFormat = format;
+            if (params.containsKey("format")) {
+                try {
+                    responseFormat = OutputFormat.valueOf(
+                            params.get("format"));
+                } catch (IllegalArgumentException e) {
+                    fail(exchange, 400, "Unknown format: "
+                            + params.get("format"));
+                    return;
+                }
+            }
+            boolean delta = params.containsKey("delta")
+                    ? Boolean.parseBoolean(params.get("delta"))
+                    : labeller.isDelta();
+            String client = params.get("client");
+
+            Job job;
+            String path = params.get("path");
+            if (path != null) {
+                File file = resolve(path);
+                if (file == null) {
+                    fail(exchange, 403, "Not in the server's input "
+                            + "directory: " + path);
+                    return;
+                }
+                if (! file.isFile()) {
+                    fail(exchange, 400, "No such file: " + path);
+                    return;
+                }
+                job = new Job(null, file, RDFLanguages.filenameToLang(
+                        path, Lang.NTRIPLES), delta, client);
+            } else {
+                Lang lang = getLang(
+                        exchange.getRequestHeaders().getFirst("Content-Type"));
+                job = new Job(IOUtils.toByteArray(
+                        exchange.getRequestBody()), null, lang,
+                        delta, client);
+            }
+
+            if (! queue.offer(job)) {
+                exchange.getResponseHeaders().set("Retry-After", "1");
+                fail(exchange, 503, "Too many requests waiting");
+                return;
+            }
+            if (stopping && queue.remove(job)) {
+                // Queued after stop() answered those waiting
+                fail(exchange, 503, "Server stopping");
+                return;
+            }
+            Model model;
+            try {
+                model = job.result.get();
+            } catch (CancellationException e) {
+                fail(exchange, 503, "Server stopping");
+                return;
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof RiotException) {
+                    fail(exchange, 400, "RDF parsing error: "
+                            + cause.getMessage());
+                } else {
+                    LOGGER.error("ERROR: labelling failed: " + cause, cause);
+                    fail(exchange, 500, "Labelling failed: " + cause);
+                }
+                return;
+            }
+
+            newLabels.addAndGet(job.stats.getNewLabel());
+            exchange.getResponseHeaders().set("Content-Type",
+                    responseFormat.contentType);
+            exchange.getResponseHeaders().set(NEW_LABELS_HEADER,
+                    Integer.toString(job.stats.getNewLabel()));
+            exchange.sendResponseHeaders(200, 0);
+            try (OutputStream out = exchange.getResponseBody()) {
+                StreamOps.graphToStream(model.getGraph(),
+                        RdfOutput.getWriterStream(out, responseFormat));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            fail(exchange, 503, "Server stopping");
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private void handleStats(HttpExchange exchange) throws IOException {
+
+        try {
+            StringBuilder json = new StringBuilder();
+            json.append("{\"requests\": ").append(requests.get())
+                    .append(", \"failures\": ").append(failures.get())
+                    .append(", \"batches\": ").append(batches.get())
+                    .append(", \"queued\": ").append(queue.size())
+                    .append(", \"newLabels\": ").append(newLabels.get());
+            if (cache != null) {
+                json.append(", \"cacheSize\": ").append(cache.size())
+                        .append(", \"cacheHits\": ").append(cache.getHits())
+                        .append(", \"cacheMisses\": ")
+                        .append(cache.getMisses());
+            }
+            json.append("}\n");
+            exchange.getResponseHeaders().set("Content-Type",
+                    "application/json");
+            send(exchange, 200, json.toString());
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private void fail(HttpExchange exchange, int status, String message)
+            throws IOException {
+
+        failures.incrementAndGet();
+        LOGGER.warn("Request failed with " + status + ": " + message);
+        send(exchange, status, message + "\n");
+    }
+
+    private static void send(HttpExchange exchange, int status,
+            String message) throws IOException {
+
+        byte[] bytes = message.getBytes(StandardCharsets.UTF_8);
+        if (! exchange.getResponseHeaders().containsKey("Content-Type")) {
+            exchange.getResponseHeaders().set("Content-Type",
+                    "text/plain; charset=utf-8");
+        }
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    /**
+     * Return the file that ?path= names, relative to the server's input
+     * directory if it isn't absolute, or null if there is no input directory
+     * or the file isn't in it.
+     */
+    private File resolve(String path) throws IOException {
+
+        if (pathRoot == null) {
+            return null;
+        }
+        File file = new File(path);
+        if (! file.isAbsolute()) {
+            file = new File(pathRoot, path);
+        }
+        file = file.getCanonicalFile();
+        return file.toPath().startsWith(pathRoot.toPath()) ? file : null;
+    }
+
+    /**
+     * Return the syntax of a Content-Type, or N-Triples if there is none, 
+     * or it isn't an RDF syntax.
+     */
+    private static Lang getLang(String contentType) {
+
+        if (contentType == null) {
+            return Lang.NTRIPLES;
+        }
+        int semicolon = contentType.indexOf(';');
+        if (semicolon >= 0) {
+            contentType = contentType.substring(0, semicolon);
+        }
+        Lang lang = RDFLanguages.contentTypeToLang(contentType.trim());
+        return lang != null ? lang : Lang.NTRIPLES;
+    }
+
+    private static Map<String, String> getParams(String query)
+            throws UnsupportedEncodingException {
+
+        Map<String, String> params = new HashMap<String, String>();
+        if (query == null) {
+            return params;
+        }
+        for (String param : query.split("&")) {
+            int equals = param.indexOf('=');
+            String name = equals < 0 ? param : param.substring(0, equals);
+            String value = equals < 0 ? "" : param.substring(equals + 1);
+            params.put(URLDecoder.decode(name, "UTF-8"),
+                    URLDecoder.decode(value, "UTF-8"));
+        }
+        return params;
+    }
+}
@@ -0,0 +1,298 @@
+package org.ld4l.addlabels;
+
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Counts of resources processed by a labelling pass. Each file gets its own
+ * instance; the per-file counts are then added into a run-wide instance,
+ * which may be shared between worker threads. New labels are also counted
+ * by the LabelMaker type strategy that made them, and the time spent in
+ * each stage is recorded, so that rates can be reported.
+ */
+class LabelStats {
+
+    /**
+     * The stages of labelling a file. In streaming and out-of-core modes
+     * the input is copied to the output as it is parsed, so that writing
+     * the input is counted as parsing; write is then the time to write out
+     * the new labels and close the file.
+     */
+    static enum Stage {
+        parse,
+        label,
+        write;
+    }
+
+    private int fileCount;
+    private int graphCount;
+    private long tripleCount;
+    private int subjectCount;
+    private int existingLabel;
+    private int modifiedLabel;
+    private int newLabel;
+    private int noLabelMade;
+    private int duplicateLabel;
+    private int skippedBlankNode;
+    private final Map<String, Integer> newLabelsBySource;
+    private final long[] stageNanos;
+    private long internLookups;
+    private long internDistinct;
+    private long internSavedBytes;
+
+    LabelStats() {
+        newLabelsBySource = new TreeMap<String, Integer>();
+        stageNanos = new long[Stage.values().length];
+    }
+
+    void triples(long count) {
+        tripleCount += count;
+    }
+
+    /**
+     * Count the named graphs of a file, each labelled on its own. See
+     * DatasetLabeller.
+     * @param count
+     */
+    void graphs(int count) {
+        graphCount += count;
+    }
+
+    void subject() {
+        subjectCount++;
+    }
+
+    void existingLabel() {
+        existingLabel++;
+    }
+
+    /**
+     * Count subjects that have an rdfs:label, which weren't counted one by
+     * one.
+     * @param count
+     */
+    void existingLabels(int count) {
+        subjectCount += count;
+        existingLabel += count;
+    }
+
+    void newLabel() {
+        newLabel++;
+    }
+
+    /**
+     * Count an existing label that was rewritten by a LabelModifier.
+     */
+    void modifiedLabel() {
+        modifiedLabel++;
+    }
+
+    /**
+     * Count the source of a new label: the local name of the type whose
+     * strategy made it, or the property it was taken from. Called by
+     * LabelMaker, in addition to newLabel() by the labelling pass.
+     * @param source
+     */
+    void labelSource(String source) {
+        Integer count = newLabelsBySource.get(source);
+        newLabelsBySource.put(source, count == null ? 1 : count + 1);
+    }
+
+    void noLabelMade() {
+        noLabelMade++;
+    }
+
+    /**
+     * Count a URI subject not labelled because another file labelled it.
+     * See LabelledSubjects.
+     */
+    void duplicateLabel() {
+        duplicateLabel++;
+    }
+
+    /**
+     * Count a blank node subject not labelled because the output is a 
+     * delta, in which a blank node can't refer to a node of the input.
+     */
+    void skippedBlankNode() {
+        skippedBlankNode++;
+    }
+
+    /**
+     * Add the statistics of a file's LabelDictionary.
+     * @param lookups - the number of literals looked up
+     * @param distinct - the number of distinct literals
+     * @param savedBytes - the estimated heap saved by sharing literals
+     */
+    void interned(long lookups, long distinct, long savedBytes) {
+        internLookups += lookups;
+        internDistinct += distinct;
+        internSavedBytes += savedBytes;
+    }
+
+    /**
+     * Add time spent in a stage.
+     * @param stage
+     * @param startNanos - the System.nanoTime() at which the stage began
+     */
+    void time(Stage stage, long startNanos) {
+        stageNanos[stage.ordinal()] += System.nanoTime() - startNanos;
+    }
+
+    /**
+     * Add the counts from a single file into this instance.
+     * @param stats - the counts for one file
+     */
+    synchronized void add(LabelStats stats) {
+        fileCount++;
+        merge(stats);
+    }
+
+    /**
+     * Add the counts from part of a file, such as some of its named graphs,
+     * into this instance.
+     * @param stats - the counts for the part
+     */
+    synchronized void merge(LabelStats stats) {
+        graphCount += stats.graphCount;
+        tripleCount += stats.tripleCount;
+        subjectCount += stats.subjectCount;
+        existingLabel += stats.existingLabel;
+        modifiedLabel += stats.modifiedLabel;
+        newLabel += stats.newLabel;
+        noLabelMade += stats.noLabelMade;
+        duplicateLabel += stats.duplicateLabel;
+        skippedBlankNode += stats.skippedBlankNode;
+        for (Map.Entry<String, Integer> entry
+                : stats.newLabelsBySource.entrySet()) {
+            Integer count = newLabelsBySource.get(entry.getKey());
+            newLabelsBySource.put(entry.getKey(), count == null
+                    ? entry.getValue() : count + entry.getValue());
+        }
+        for (int i = 0; i < stageNanos.length; i++) {
+            stageNanos[i] += stats.stageNanos[i];
+        }
+        internLookups += stats.internLookups;
+        internDistinct += stats.internDistinct;
+        internSavedBytes += stats.internSavedBytes;
+    }
+
+    synchronized int getFileCount() {
+        return fileCount;
+    }
+
+    synchronized int getGraphCount() {
+        return graphCount;
+    }
+
+    synchronized long getTripleCount() {
+        return tripleCount;
+    }
+
+    synchronized int getSubjectCount() {
+        return subjectCount;
+    }
+
+    synchronized int getExistingLabel() {
+        return existingLabel;
+    }
+
+    synchronized int getModifiedLabel() {
+        return modifiedLabel;
+    }
+
+    synchronized int getNewLabel() {
+        return newLabel;
+    }
+
+    synchronized int getNoLabelMade() {
+        return noLabelMade;
+    }
+
+    synchronized int getDuplicateLabel() {
+        return duplicateLabel;
+    }
+
+    synchronized int getSkippedBlankNode() {
+        return skippedBlankNode;
+    }
+
+    /**
+     * Return the fraction of the labels wanted that had been made by
+     * another file, so were not made again.
+     */
+    synchronized double getDedupHitRate() {
+        int wanted = newLabel + duplicateLabel;
+        return wanted > 0 ? (double) duplicateLabel / wanted : 0;
+    }
+
+    /**
+     * Return the number of new labels made by each source, by source name.
+     */
+    synchronized Map<String, Integer> getNewLabelsBySource() {
+        return new TreeMap<String, Integer>(newLabelsBySource);
+    }
+
+    /**
+     * Return the time spent in the stage, in milliseconds. For the run-wide
+     * instance, this is summed over the files, and so over the threads that
+     * processed them.
+     * @param stage
+     */
+    synchronized long getMillis(Stage stage) {
+        return stageNanos[stage.ordinal()] / 1000000;
+    }
+
+    synchronized long getInternLookups() {
+        return internLookups;
+    }
+
+    /**
+     * Return the number of distinct literals interned. For the run-wide
+     * instance, this is summed over the files.
+     */
+    synchronized long getInternDistinct() {
+        return internDistinct;
+    }
+
+    synchronized long getInternSavedBytes() {
+        return internSavedBytes;
+    }
+
+    synchronized void log(Logger logger) {
+        if (graphCount > 0) {
+            logger.info("Labelled " + graphCount + " graphs separately.");
+        }
+        logger.info("Processed " + subjectCount + " distinct resources.");
+        logger.info("Retained existing labels for " + existingLabel
+                + " resources.");
+        if (modifiedLabel > 0) {
+            logger.info("Modified existing labels for " + modifiedLabel
+                    + " resources.");
+        }
+        logger.info("Made new labels for " + newLabel + " resources.");
+        logger.info("No label created for " + noLabelMade + " resources.");
+        if (duplicateLabel > 0) {
+            logger.info("Skipped " + duplicateLabel + " resources labelled "
+                    + "by other files (" + String.format(Locale.ROOT, 
+                            "%.1f", getDedupHitRate() * 100) 
+                    + "% of labels).");
+        }
+        if (skippedBlankNode > 0) {
+            logger.warn("Skipped " + skippedBlankNode + " blank node "
+                    + "resources: delta output can't refer to them.");
+        }
+        if (! newLabelsBySource.isEmpty()) {
+            logger.info("New labels by source: " + newLabelsBySource);
+        }
+        if (internLookups > 0) {
+            logger.info("Interned " + internLookups + " literals as "
+                    + internDistinct + " distinct values, saving about "
+                    + (internSavedBytes >> 10) + " KB of heap.");
+        }
+    }
+
+}
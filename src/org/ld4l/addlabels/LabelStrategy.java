@@ -0,0 +1,18 @@
+package org.ld4l.addlabels;
+
+import org.apache.jena.rdf.model.Resource;
+
+/**
+ * Makes a label for a resource of a particular type. LabelMaker holds one
+ * strategy per rdf:type it knows how to label.
+ */
+interface LabelStrategy {
+    
+    /**
+     * Return a label for the resource, or null if none can be made.
+     * @param resource
+     * @return the label or null
+     */
+    String makeLabel(Resource resource);
+
+}
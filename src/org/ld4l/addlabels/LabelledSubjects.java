@@ -0,0 +1,264 @@
+package org.ld4l.addlabels;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * The URI subjects labelled so far in a run, shared by the worker threads,
+ * so that an entity that recurs in many files, such as an agent, an
+ * authority or a topic, is labelled, and its label written, only by the
+ * first file that labels it. Also the subjects of a file that have an 
+ * rdfs:label, found by the prescan of StreamingLabeller, keyed by URI or 
+ * blank node label.
+ *
+ * The set holds the 64-bit Fingerprint of each URI, in open addressing
+ * tables of longs, about 16 to 32 bytes a URI. The tables are striped by
+ * the high bits of the fingerprint, each stripe with its own lock, so that
+ * threads rarely wait on each other. Two distinct URIs are very unlikely to
+ * share a fingerprint, but if they do, the second is taken to be labelled
+ * already and goes without a label. In exact mode, each URI is also
+ * appended to a file, and a fingerprint that matches is confirmed by
+ * reading the URI back, so that no URI is ever skipped wrongly, for 8 more
+ * bytes a URI in the heap and a read for each duplicate found.
+ *
+ * Thread-safe.
+ */
+class LabelledSubjects implements Closeable {
+
+    private static final Logger LOGGER =
+            LogManager.getLogger(LabelledSubjects.class);
+
+    static enum Mode {
+        fingerprint,
+        exact;
+    }
+
+    private static final int STRIPE_BITS = 6;
+    private static final int INITIAL_CAPACITY = 1 << 10;
+
+    // A URI's location in the file: its offset, then its length in bytes,
+    // as in TitleIndex.
+    private static final int LENGTH_BITS = 24;
+    private static final int MAX_LENGTH = (1 << LENGTH_BITS) - 1;
+
+    /**
+     * An open addressing table of fingerprints, 0 if empty, with the
+     * location of each URI in exact mode.
+     */
+    private static class Stripe {
+
+        private long[] fingerprints = new long[INITIAL_CAPACITY];
+        private long[] locations;
+        private int mask = INITIAL_CAPACITY - 1;
+        private int count;
+    }
+
+    private final Stripe[] stripes;
+    private final File file;
+    private final FileChannel uris;
+    private final AtomicLong end = new AtomicLong();
+    private final AtomicLong collisions = new AtomicLong();
+
+    /**
+     * @param mode - whether to confirm fingerprint matches
+     * @param dir - the directory for the file of URIs in exact mode
+     * @throws IOException if the file of URIs can't be created
+     */
+    LabelledSubjects(Mode mode, File dir) throws IOException {
+
+        stripes = new Stripe[1 << STRIPE_BITS];
+        for (int i = 0; i < stripes.length; i++) {
+            stripes[i] = new Stripe();
+        }
+        if (mode == Mode.exact) {
+            dir.mkdirs();
+            file = File.createTempFile("labelled-", ".uris", dir);
+            uris = FileChannel.open(file.toPath(), StandardOpenOption.READ,
+                    StandardOpenOption.WRITE);
+            for (Stripe stripe : stripes) {
+                stripe.locations = new long[INITIAL_CAPACITY];
+            }
+        } else {
+            file = null;
+            uris = null;
+        }
+    }
+
+    /**
+     * Return true if the URI has been added.
+     * @param uri
+     * @throws UncheckedIOException if the file of URIs can't be read
+     */
+    boolean contains(String uri) {
+
+        long fingerprint = Fingerprint.of(uri);
+        Stripe stripe = stripeOf(fingerprint);
+        synchronized (stripe) {
+            return find(stripe, fingerprint, uri) >= 0;
+        }
+    }
+
+    /**
+     * Add the URI. Return false if it had already been added, by another
+     * thread since contains() was called.
+     * @param uri
+     * @throws UncheckedIOException if the file of URIs can't be written
+     * or read
+     */
+    boolean add(String uri) {
+
+        long fingerprint = Fingerprint.of(uri);
+        Stripe stripe = stripeOf(fingerprint);
+        synchronized (stripe) {
+            int slot = find(stripe, fingerprint, uri);
+            if (slot >= 0) {
+                return false;
+            }
+            slot = -slot - 1;
+            stripe.fingerprints[slot] = fingerprint;
+            if (uris != null) {
+                stripe.locations[slot] = write(uri);
+            }
+            // Keep the table at most half full.
+            if (++stripe.count * 2 > stripe.mask) {
+                rehash(stripe);
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Return the number of URIs added.
+     */
+    long size() {
+
+        long size = 0;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                size += stripe.count;
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Return the number of fingerprint matches that turned out, in exact
+     * mode, to be distinct URIs.
+     */
+    long getCollisions() {
+        return collisions.get();
+    }
+
+    @Override
+    public void close() {
+
+        if (uris == null) {
+            return;
+        }
+        try {
+            uris.close();
+        } catch (IOException e) {
+            LOGGER.warn("Can't close " + file + ": " + e.getMessage());
+        }
+        file.delete();
+    }
+
+    private Stripe stripeOf(long fingerprint) {
+        return stripes[(int) (fingerprint >>> (64 - STRIPE_BITS))];
+    }
+
+    /**
+     * Return the slot of the URI, or -(slot + 1) of the empty slot it would
+     * be added in.
+     */
+    private int find(Stripe stripe, long fingerprint, String uri) {
+
+        for (int slot = (int) fingerprint & stripe.mask; ;
+                slot = (slot + 1) & stripe.mask) {
+            long stored = stripe.fingerprints[slot];
+            if (stored == 0) {
+                return -slot - 1;
+            }
+            if (stored == fingerprint) {
+                if (uris == null || matches(stripe.locations[slot], uri)) {
+                    return slot;
+                }
+                collisions.incrementAndGet();
+            }
+        }
+    }
+
+    private void rehash(Stripe stripe) {
+
+        long[] fingerprints = stripe.fingerprints;
+        long[] locations = stripe.locations;
+        stripe.fingerprints = new long[fingerprints.length * 2];
+        stripe.locations = locations != null
+                ? new long[locations.length * 2] : null;
+        stripe.mask = stripe.fingerprints.length - 1;
+        for (int i = 0; i < fingerprints.length; i++) {
+            if (fingerprints[i] == 0) {
+                continue;
+            }
+            int slot = (int) fingerprints[i] & stripe.mask;
+            while (stripe.fingerprints[slot] != 0) {
+                slot = (slot + 1) & stripe.mask;
+            }
+            stripe.fingerprints[slot] = fingerprints[i];
+            if (locations != null) {
+                stripe.locations[slot] = locations[i];
+            }
+        }
+    }
+
+    /**
+     * Append the URI to the file, and return its location.
+     */
+    private long write(String uri) {
+
+        byte[] bytes = toBytes(uri);
+        long position = end.getAndAdd(bytes.length);
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        try {
+            while (buffer.hasRemaining()) {
+                uris.write(buffer, position + buffer.position());
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return position << LENGTH_BITS | bytes.length;
+    }
+
+    private boolean matches(long location, String uri) {
+
+        long position = location >>> LENGTH_BITS;
+        ByteBuffer buffer = ByteBuffer.allocate((int) (location & MAX_LENGTH));
+        try {
+            while (buffer.hasRemaining()) {
+                if (uris.read(buffer, position + buffer.position()) < 0) {
+                    throw new IOException("Truncated " + file);
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return Arrays.equals(buffer.array(), toBytes(uri));
+    }
+
+    private static byte[] toBytes(String uri) {
+        byte[] bytes = uri.getBytes(StandardCharsets.UTF_8);
+        return bytes.length > MAX_LENGTH
+                ? Arrays.copyOf(bytes, MAX_LENGTH) : bytes;
+    }
+}
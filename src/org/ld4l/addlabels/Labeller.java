@@ -1,158 +1,1199 @@
 package org.ld4l.addlabels;
 
 import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.commons.io.FilenameUtils;
+import org.apache.jena.graph.Node;
+import org.apache.jena.graph.NodeFactory;
+import org.apache.jena.graph.Triple;
 import org.apache.jena.rdf.model.Model;
 import org.apache.jena.rdf.model.ModelFactory;
-import org.apache.jena.rdf.model.ResIterator;
 import org.apache.jena.rdf.model.Resource;
 import org.apache.jena.rdf.model.Statement;
 import org.apache.jena.riot.RDFDataMgr;
-import org.apache.jena.riot.RDFFormat;
 import org.apache.jena.riot.RiotException;
+import org.apache.jena.riot.system.StreamRDF;
+import org.apache.jena.riot.system.StreamRDFLib;
+import org.apache.jena.riot.system.StreamRDFWrapper;
+import org.apache.jena.sparql.core.Quad;
 import org.apache.jena.vocabulary.RDFS;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+import org.ld4l.addlabels.LabelStats.Stage;
+
 public class Labeller {
 
     private static final Logger LOGGER = 
             LogManager.getLogger(Labeller.class); 
+    
+    private static final Node LABEL = RDFS.label.asNode();
+    
+    // The source under which labels taken from the cache are counted
+    private static final String LABEL_CACHE_SOURCE = "cache";
 
     private String input;
     private String outputDir;
+    private int threads;
+    private boolean streaming;
+    private boolean titleIndex;
+    private OutputFormat outputFormat;
+    private boolean compress;
+    private boolean delta;
+    private String previousOutputDir;
+    private boolean resume;
+    private boolean join;
+    private boolean compact;
+    private boolean recursive;
+    private String include;
+    private String exclude;
+    private long mergeSize;
+    private long shardSize;
+    private int tdbBatchSize;
+    private int parseThreads;
+    private int sortMemory;
+    private String tempDir;
+    private int progressInterval;
+    private LabelDictionary.Storage internStorage;
+    private RecoveringParser parser;
+    private RdfOutput output;
+    private Manifest manifest;
+    private Manifest previousManifest;
+    private Set<String> resumedFiles;
+    private AtomicInteger reusedFiles;
     private LabelMaker labelMaker;
-    // private LabelModifier labelModifier;
+    private LabelModifier labelModifier;
+    private LabelCache labelCache;
+    private LabelledSubjects.Mode dedup;
+    private LabelledSubjects labelledSubjects;
+    private LabelledSubjects.Mode prescan;
+    private boolean graphs;
+    private int graphThreads;
+    private ExecutorService graphExecutor;
+    private LabelStats totals;
+    private RunMetrics metrics;
 
     
     public Labeller(String input, String outputDir) {
 
         this.input = input;
         this.outputDir = outputDir;
+        this.threads = 1;
+        this.streaming = false;
+        this.titleIndex = false;
+        this.outputFormat = OutputFormat.ntriples;
+        this.compress = false;
+        this.delta = false;
+        this.reusedFiles = new AtomicInteger();
+        this.tdbBatchSize = 0;
+        this.parseThreads = 1;
+        this.graphThreads = 1;
+        this.sortMemory = 0;
+        this.progressInterval = 60;
+        // LabelMaker holds no state, so a single instance is shared by all
+        // worker threads.
         this.labelMaker = new LabelMaker();
-        // this.labelModifier = new LabelModifier();
+        this.totals = new LabelStats();
         
     }
     
+    /**
+     * Set the number of files to process concurrently. Defaults to 1.
+     * @param threads
+     */
+    public void setThreads(int threads) {
+        this.threads = Math.max(1, threads);
+    }
+    
+    /**
+     * Stream each file through to the output instead of reading it into a
+     * Model. See StreamingLabeller.
+     * @param streaming
+     */
+    public void setStreaming(boolean streaming) {
+        this.streaming = streaming;
+    }
+    
+    /**
+     * Index the labels in all input files before labelling, so that Works 
+     * and Instances can be labelled from titles in other files. See 
+     * TitleIndex.
+     * @param titleIndex
+     */
+    public void setTitleIndex(boolean titleIndex) {
+        this.titleIndex = titleIndex;
+    }
+    
+    /**
+     * Set the serialization of the output files. Defaults to N-Triples.
+     * @param outputFormat
+     */
+    public void setOutputFormat(OutputFormat outputFormat) {
+        this.outputFormat = outputFormat;
+    }
+    
+    /**
+     * Gzip the output files.
+     * @param compress
+     */
+    public void setCompress(boolean compress) {
+        this.compress = compress;
+    }
+    
+    /**
+     * Write only the new rdfs:label triples, rather than the whole input 
+     * with the new labels added.
+     * @param delta
+     */
+    public void setDelta(boolean delta) {
+        this.delta = delta;
+    }
+    
+    boolean isDelta() {
+        return delta;
+    }
+    
+    /**
+     * Reuse the outputs of a previous run for input files that haven't
+     * changed since, according to the manifest in its output directory. 
+     * Unchanged files are hard-linked (or copied, where linking isn't 
+     * possible) into the new output directory instead of being processed.
+     * @param previousOutputDir - the output directory of the previous run
+     */
+    public void setPreviousOutputDir(String previousOutputDir) {
+        this.previousOutputDir = previousOutputDir;
+    }
+    
+    /**
+     * Resume a run that died, in its output directory: input files whose
+     * outputs were completed, according to the journal in the directory, 
+     * and that haven't changed since, are not processed again. See 
+     * Manifest.
+     * @param resume
+     */
+    public void setResume(boolean resume) {
+        this.resume = resume;
+    }
+    
+    /**
+     * Treat the input as a TDB dataset directory and label it in place, 
+     * adding the new labels in write transactions of the specified number
+     * of statements. See TdbLabeller. A batch size of 0, the default, means
+     * the input is read from files.
+     * @param tdbBatchSize
+     */
+    public void setTdbBatchSize(int tdbBatchSize) {
+        this.tdbBatchSize = tdbBatchSize;
+    }
+    
+    /**
+     * Set the number of threads to parse each N-Triples or N-Quads file on,
+     * in chunks of lines. Defaults to 1. See RecoveringParser.
+     * @param parseThreads
+     */
+    public void setParseThreads(int parseThreads) {
+        this.parseThreads = Math.max(1, parseThreads);
+    }
+    
+    /**
+     * Keep the named graphs of each file, and label each graph on its own,
+     * from its own triples, on a pool of threads shared by the files. See
+     * DatasetLabeller. Only when files are read into memory; the output 
+     * format must hold graph names.
+     * @param graphs
+     */
+    public void setGraphs(boolean graphs) {
+        this.graphs = graphs;
+    }
+    
+    /**
+     * Set the number of threads to label the graphs of the files on, with 
+     * setGraphs(). Defaults to 1.
+     * @param graphThreads
+     */
+    public void setGraphThreads(int graphThreads) {
+        this.graphThreads = Math.max(1, graphThreads);
+    }
+    
+    /**
+     * Label each file out of core, sorting what LabelMaker needs by subject
+     * in the specified heap, shared by the files processed concurrently. See
+     * SortingLabeller. 0, the default, means the file is read into a Model,
+     * or streamed.
+     * @param sortMemory - the heap for sorting, in MB
+     */
+    public void setSortMemory(int sortMemory) {
+        this.sortMemory = sortMemory;
+    }
+    
+    /**
+     * Set the directory for temporary files. Defaults to a subdirectory of
+     * the output directory.
+     * @param tempDir
+     */
+    public void setTempDir(String tempDir) {
+        this.tempDir = tempDir;
+    }
+    
+    /**
+     * Log per-subject diagnostics for only 1 in the specified number of 
+     * subjects. Defaults to 1, every subject. See TraceSampler.
+     * @param traceSample
+     */
+    public void setTraceSample(int traceSample) {
+        TraceSampler.setInterval(traceSample);
+    }
+    
+    /**
+     * Log progress, with an estimate of the time remaining, at the 
+     * specified interval. Defaults to 60 seconds. See RunMetrics.
+     * @param progressInterval - the interval in seconds
+     */
+    public void setProgressInterval(int progressInterval) {
+        this.progressInterval = progressInterval;
+    }
+    
+    /**
+     * Intern the literals of each file in a LabelDictionary with its index
+     * held in the specified storage, in the modes that hold literals in 
+     * memory. Defaults to null, no interning.
+     * @param internStorage
+     */
+    public void setInternStorage(LabelDictionary.Storage internStorage) {
+        this.internStorage = internStorage;
+    }
+    
+    /**
+     * Rewrite existing labels by the modifier's rules, replacing the 
+     * original label statements. Only when files are read into a Model. 
+     * Defaults to null, no modification.
+     * @param labelModifier
+     */
+    public void setLabelModifier(LabelModifier labelModifier) {
+        this.labelModifier = labelModifier;
+    }
+    
+    /**
+     * Make labels by the specified rules instead of the default rules for 
+     * LD4L ontology v1. See LabelRules.
+     * @param labelRules
+     */
+    public void setLabelRules(LabelRules labelRules) {
+        this.labelMaker = new LabelMaker(labelRules);
+    }
+    
+    /**
+     * Make the labels of each model set-at-a-time, by joining the triples
+     * of the predicates the rules use, rather than subject by subject. 
+     * Applies when files are read into memory. See LabelMaker.Join.
+     * @param join
+     */
+    public void setJoin(boolean join) {
+        this.join = join;
+    }
+    
+    /**
+     * Read each file into a CompactGraph rather than Jena's default graph,
+     * so that files several times larger fit in the heap. 
+     * @param compact
+     */
+    public void setCompact(boolean compact) {
+        this.compact = compact;
+    }
+    
+    /**
+     * Cache the labels made for each client, and take the label of a 
+     * resource that a client's graph can't label from those made for the
+     * client before. For a LabelServer.
+     * @param labelCache - the cache, or null for none
+     */
+    void setLabelCache(LabelCache labelCache) {
+        this.labelCache = labelCache;
+    }
+    
+    /**
+     * Label each URI subject only in the first file that labels it, rather
+     * than in every file it occurs in. See LabelledSubjects.
+     * @param dedup - how to tell subjects apart, or null not to deduplicate
+     */
+    public void setDedup(LabelledSubjects.Mode dedup) {
+        this.dedup = dedup;
+    }
+    
+    /**
+     * Prescan each streamed file for the subjects that have an rdfs:label,
+     * so that nothing is held for them. See StreamingLabeller.
+     * @param prescan - how to tell subjects apart, or null not to prescan
+     */
+    public void setPrescan(LabelledSubjects.Mode prescan) {
+        this.prescan = prescan;
+    }
+    
+    /**
+     * Walk the subdirectories of the input directory for input files. 
+     * See InputFiles.
+     * @param recursive
+     */
+    public void setRecursive(boolean recursive) {
+        this.recursive = recursive;
+    }
+    
+    /**
+     * Process only the input files whose paths relative to the input 
+     * directory match the glob. 
+     * @param include - the glob, or null for all files
+     */
+    public void setInclude(String include) {
+        this.include = include;
+    }
+    
+    /**
+     * Skip the input files whose paths relative to the input directory 
+     * match the glob. 
+     * @param exclude - the glob, or null
+     */
+    public void setExclude(String exclude) {
+        this.exclude = exclude;
+    }
+    
+    /**
+     * Label input files smaller than the merge size together, up to that
+     * size per group, each group into one output. 0, the default, means 
+     * each file is labelled on its own. See InputFiles.
+     * @param mergeSize - the size in MB
+     */
+    public void setMergeSize(int mergeSize) {
+        this.mergeSize = (long) mergeSize << 20;
+    }
+    
+    /**
+     * Split each output into shards of about the shard size. 0, the 
+     * default, means outputs aren't split. See RdfOutput.
+     * @param shardSize - the size in MB, before compression
+     */
+    public void setShardSize(int shardSize) {
+        this.shardSize = (long) shardSize << 20;
+    }
+    
     public void getLabels() {
         
-        File inp = new File(input);
-        File[] inputFiles;
+        if (labelModifier != null) {
+            if (tdbBatchSize > 0 || streaming || sortMemory > 0) {
+                LOGGER.warn("Existing labels are only modified when files "
+                        + "are read into memory. Not modifying labels.");
+            } else if (delta) {
+                LOGGER.warn("Modified labels are written as new labels; "
+                        + "delta output can't remove the labels they "
+                        + "replace.");
+            }
+        }
+        
+        if (prescan != null && (! streaming || tdbBatchSize > 0 
+                || sortMemory > 0)) {
+            LOGGER.warn("Only streamed files are prescanned. Not "
+                    + "prescanning.");
+            prescan = null;
+        } else if (prescan == LabelledSubjects.Mode.fingerprint) {
+            LOGGER.warn("Prescanning by fingerprint alone: an unlabelled "
+                    + "subject whose fingerprint matches that of a labelled "
+                    + "one goes without a label, and the collision can't be "
+                    + "detected. Use exact mode to confirm matches.");
+        }
+        
+        if (graphs && (tdbBatchSize > 0 || streaming || sortMemory > 0)) {
+            LOGGER.warn("Named graphs are only kept when files are read "
+                    + "into memory. Labelling the default graph.");
+            graphs = false;
+        }
         
-        if (inp.isDirectory()) {
-            LOGGER.debug("Got directory of files");
-            inputFiles = inp.listFiles();
+        if (tdbBatchSize > 0) {
+            if (dedup != null) {
+                LOGGER.warn("A TDB dataset holds each subject once. "
+                        + "Not deduplicating.");
+            }
+            new TdbLabeller(labelMaker, tdbBatchSize, getTempDir())
+                    .addLabels(new File(input), totals);
+            if (tempDir == null) {
+                getTempDir().delete();
+            }
+            totals.log(LOGGER);
+            return;
+        }
+        
+        List<InputFiles.Input> inputs;
+        try {
+            inputs = InputFiles.find(new File(input), recursive, include, 
+                    exclude, mergeSize);
+        } catch (IOException e) {
+            LOGGER.error("ERROR: can't list input files: " + e.getMessage() 
+                    + ". Aborting.");
+            return;
+        }
+        File[] inputFiles = InputFiles.getFiles(inputs);
+        LOGGER.debug("Got " + inputFiles.length + " input files");
+        
+        output = new RdfOutput(new File(outputDir), outputFormat, compress);
+        output.setShardSize(shardSize);
+        manifest = new Manifest(getSettings());
+        previousManifest = readPreviousManifest();
+        
+        // Files left incomplete by a run that died
+        output.deleteTempFiles();
+        if (resume) {
+            resumedFiles = readJournal(inputFiles);
+            if (resumedFiles == null) {
+                return;
+            }
+            if (tempDir == null) {
+                deleteSortRuns();
+            }
         } else {
-            inputFiles = new File[] { inp };
+            resumedFiles = Collections.emptySet();
+        }
+        try {
+            manifest.openJournal(new File(outputDir));
+        } catch (IOException e) {
+            LOGGER.error("ERROR: can't write journal: " + e.getMessage() 
+                    + ". Aborting.");
+            return;
+        }
+        
+        metrics = new RunMetrics(inputFiles);
+        metrics.startProgress(progressInterval);
+        
+        ExecutorService parseExecutor = null;
+        if (parseThreads > 1) {
+            parseExecutor = Executors.newFixedThreadPool(parseThreads);
+            parser = new RecoveringParser(parseExecutor, parseThreads);
+        } else {
+            parser = new RecoveringParser();
+        }
+        if (graphs) {
+            graphExecutor = Executors.newFixedThreadPool(graphThreads);
         }
         
-        for (File file : inputFiles) {
-            LOGGER.debug("Processing file " + file.toString());
-            addLabelsToFile(file);
+        TitleIndex index = null;
+        try {
+            if (dedup != null) {
+                if (dedup == LabelledSubjects.Mode.fingerprint) {
+                    LOGGER.warn("Deduplicating by fingerprint alone: a "
+                            + "subject whose fingerprint matches that of "
+                            + "another labelled subject goes without a "
+                            + "label, and the collision can't be detected. "
+                            + "Use exact mode to confirm matches.");
+                }
+                try {
+                    labelledSubjects = new LabelledSubjects(dedup, 
+                            getTempDir());
+                } catch (IOException e) {
+                    LOGGER.error("Can't create labelled subjects file: " 
+                            + e.getMessage() + ". Aborting.");
+                    return;
+                }
+            }
+            if (titleIndex) {
+                try {
+                    index = TitleIndex.build(inputFiles, parser,
+                            new File(outputDir, "title-index"));
+                } catch (IOException e) {
+                    LOGGER.error("Can't build title index: " 
+                            + e.getMessage() + ". Aborting.");
+                    return;
+                }
+                labelMaker.setTitleIndex(index);
+            }
+            
+            if (threads > 1 && inputs.size() > 1) {
+                getLabelsConcurrently(inputs);
+            } else {
+                for (InputFiles.Input input : inputs) {
+                    LOGGER.debug("Processing " + input);
+                    try {
+                        addLabelsToFile(input);
+                    } catch (IOException e) {
+                        LOGGER.error("ERROR: processing of " + input 
+                                + " failed: " + e.getMessage());
+                    } catch (RuntimeException e) {
+                        // As in getLabelsConcurrently(): one bad file 
+                        // doesn't end the run.
+                        LOGGER.error("ERROR: processing of " + input 
+                                + " failed: " + e.getMessage(), e);
+                    }
+                }
+            }
+        } finally {
+            if (index != null) {
+                labelMaker.setTitleIndex(null);
+                index.close();
+            }
+            if (labelledSubjects != null) {
+                LOGGER.info("Labelled " + labelledSubjects.size() 
+                        + " distinct URI subjects"
+                        + (dedup == LabelledSubjects.Mode.exact 
+                                ? ", " + labelledSubjects.getCollisions() 
+                                        + " fingerprint collisions told apart"
+                                        + " by URI" 
+                                : ", fingerprint collisions not detected"));
+                labelledSubjects.close();
+                labelledSubjects = null;
+            }
+            if (parseExecutor != null) {
+                parseExecutor.shutdownNow();
+            }
+            if (graphExecutor != null) {
+                graphExecutor.shutdownNow();
+                graphExecutor = null;
+            }
+            metrics.stop();
+            manifest.closeJournal();
         }
         
+        if (tempDir == null) {
+            // Only if empty: the sorters delete their own files.
+            getTempDir().delete();
+        }
+        
+        try {
+            manifest.write(new File(outputDir));
+        } catch (IOException e) {
+            LOGGER.error("ERROR: can't write manifest: " + e.getMessage());
+        }
+        
+        try {
+            metrics.write(new File(outputDir), totals);
+        } catch (IOException e) {
+            LOGGER.error("ERROR: can't write run report: " + e.getMessage());
+        }
+        
+        if (previousManifest != null) {
+            LOGGER.info("Reused output of previous run for " 
+                    + reusedFiles.get() + " unchanged files.");
+        }
+        LOGGER.info("Run summary for " + totals.getFileCount() + " files:");
+        totals.log(LOGGER);
     }
     
-    private void addLabelsToFile(File file) {
-
-        Model model = readModelFromFile(file.toString());        
-        Model newModel = getLabels(model);
-  
-        String basename = FilenameUtils.getBaseName(file.toString());
-        writeModelToFile(newModel, basename);
+    private File getTempDir() {
+        return tempDir != null 
+                ? new File(tempDir) : new File(outputDir, "sort-tmp");
+    }
+    
+    /**
+     * Return a description of the settings that affect the contents of the 
+     * output files.
+     */
+    private String getSettings() {
+        return "format=" + outputFormat + " gzip=" + compress 
+                + " delta=" + delta + " merge=" + mergeSize 
+                + " shard=" + shardSize + " titles=" + titleIndex 
+                + " rules=" + Long.toHexString(
+                        labelMaker.getRules().getFingerprint())
+                + (labelModifier != null ? " modify=" + Long.toHexString(
+                        labelModifier.getFingerprint()) : "")
+                + (dedup != null ? " dedup=" + dedup : "")
+                + (graphs ? " graphs=true" : "");
+    }
+    
+    /**
+     * Delete the sorters' run files left in the default temporary directory
+     * by a run that died. 
+     */
+    private void deleteSortRuns() {
+        
+        File[] runs = getTempDir().listFiles();
+        if (runs == null) {
+            return;
+        }
+        for (File run : runs) {
+            if (! run.delete()) {
+                LOGGER.warn("Can't delete temporary file " + run);
+            }
+        }
+    }
+    
+    /**
+     * Read the journal of the run being resumed, and add the entries of the
+     * input files it completed, that are unchanged since, to the manifest.
+     * Return the canonical paths of those files, or null if the run can't 
+     * be resumed.
+     */
+    private Set<String> readJournal(File[] inputFiles) {
+        
+        Manifest journal;
+        try {
+            journal = Manifest.readJournal(new File(outputDir));
+        } catch (IOException e) {
+            LOGGER.error("Can't read journal of run to resume: " 
+                    + e.getMessage() + ". Aborting.");
+            return null;
+        }
+        
+        if (! journal.getSettings().equals(manifest.getSettings())) {
+            LOGGER.error("Run to resume used different settings (" 
+                    + journal.getSettings() + "). Aborting.");
+            return null;
+        }
+        
+        Set<String> resumed = new HashSet<String>();
+        try {
+            for (File file : inputFiles) {
+                String inputPath = file.getAbsolutePath();
+                Manifest.Entry entry = 
+                        journal.getUnchanged(file, inputPath);
+                if (entry != null && outputsExist(outputDir, entry)) {
+                    manifest.put(entry);
+                    resumed.add(inputPath);
+                }
+            }
+        } catch (IOException e) {
+            LOGGER.error("Can't check inputs of run to resume: " 
+                    + e.getMessage() + ". Aborting.");
+            return null;
+        }
+        
+        LOGGER.info("Resuming run: " + resumed.size() + " of " 
+                + inputFiles.length + " files already done.");
+        return resumed;
+    }
+    
+    /**
+     * Read the manifest of the previous run, if one was specified. Return
+     * null if there is none, or if its outputs can't be reused by this run.
+     */
+    private Manifest readPreviousManifest() {
+        
+        if (previousOutputDir == null) {
+            return null;
+        }
+        
+        if (titleIndex) {
+            // A file's labels may depend on titles in other files, which 
+            // may have changed.
+            LOGGER.warn("Previous outputs can't be reused with the title "
+                    + "index. Processing all files.");
+            return null;
+        }
+        
+        if (dedup != null) {
+            // A file's labels depend on the files labelled before it.
+            LOGGER.warn("Previous outputs can't be reused when "
+                    + "deduplicating. Processing all files.");
+            return null;
+        }
+        
+        Manifest previous;
+        try {
+            previous = Manifest.read(new File(previousOutputDir));
+        } catch (IOException e) {
+            LOGGER.warn("Can't read manifest of previous run: " 
+                    + e.getMessage() + ". Processing all files.");
+            return null;
+        }
+        
+        if (! previous.getSettings().equals(manifest.getSettings())) {
+            LOGGER.warn("Previous run used different settings (" 
+                    + previous.getSettings() + "). Processing all files.");
+            return null;
+        }
+        
+        return previous;
+    }
+    
+    /**
+     * Process the inputs on a fixed pool of worker threads. When files are
+     * read into models, each worker reserves room in the memory budget 
+     * before reading its input, so the number of models in flight is 
+     * bounded by the heap as well as by the number of threads. Streaming 
+     * and out-of-core workers hold no model, and aren't limited.
+     * @param inputs
+     */
+    private void getLabelsConcurrently(List<InputFiles.Input> inputs) {
+        
+        LOGGER.info("Processing " + inputs.size() + " inputs on " 
+                + threads + " threads");
+        
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        ModelMemoryBudget budget = streaming || sortMemory > 0 
+                ? null : new ModelMemoryBudget(compact);
+        List<Future<?>> futures = new ArrayList<>(inputs.size());
+        
+        for (InputFiles.Input input : inputs) {
+            futures.add(executor.submit(() -> {
+                int cost = budget != null 
+                        ? budget.acquire(input.getSize()) : 0;
+                try {
+                    LOGGER.debug("Processing " + input);
+                    addLabelsToFile(input);
+                } finally {
+                    if (budget != null) {
+                        budget.release(cost);
+                    }
+                }
+                return null;
+            }));
+        }
+        executor.shutdown();
+        
+        for (int i = 0; i < futures.size(); i++) {
+            try {
+                futures.get(i).get();
+            } catch (ExecutionException e) {
+                LOGGER.error("ERROR: processing of " + inputs.get(i) 
+                        + " failed: " + e.getCause().getMessage(), 
+                        e.getCause());
+            } catch (InterruptedException e) {
+                LOGGER.error("Interrupted while waiting for workers. "
+                        + "Aborting.");
+                executor.shutdownNow();
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+    
+    private void addLabelsToFile(InputFiles.Input input) throws IOException {
+        
+        long start = System.nanoTime();
+        List<File> files = input.getFiles();
+        String basename = input.getBasename();
+        
+        if (isResumed(files)) {
+            LOGGER.debug("Already done: " + input);
+            metrics.fileDone(input, null, start);
+            return;
+        }
+        
+        if (reuseOutput(input)) {
+            metrics.fileDone(input, null, start);
+            return;
+        }
+        
+        // Recorded before the files are read, so that a file changed 
+        // while it is processed is processed again by the next run.
+        String[] hashes = new String[files.size()];
+        long[] sizes = new long[files.size()];
+        long[] modified = new long[files.size()];
+        for (int i = 0; i < files.size(); i++) {
+            File file = files.get(i);
+            sizes[i] = file.length();
+            modified[i] = file.lastModified();
+            hashes[i] = hash(file, sizes[i], modified[i]);
+        }
+        
+        LabelStats stats = new LabelStats();
+        List<File> outFiles;
+        
+        try {
+            if (sortMemory > 0) {
+                outFiles = new SortingLabeller(labelMaker, parser, delta, 
+                        ((long) sortMemory << 20) / threads, getTempDir(),
+                        labelledSubjects).addLabelsToFile(
+                                input, output, stats);
+                stats.log(LOGGER);
+            } else if (graphExecutor != null) {
+                outFiles = new DatasetLabeller(this, graphExecutor, 
+                        graphThreads).addLabelsToFile(input, output, 
+                                internStorage != null 
+                                        ? new LabelDictionary(internStorage)
+                                        : null, 
+                                stats);
+                stats.log(LOGGER);
+            } else if (streaming) {
+                outFiles = new StreamingLabeller(labelMaker, parser, delta, 
+                        internStorage, labelledSubjects, prescan, 
+                        getTempDir()).addLabelsToFile(input, output, stats);
+                stats.log(LOGGER);
+            } else {
+                LabelDictionary dictionary = internStorage != null 
+                        ? new LabelDictionary(internStorage) : null;
+                long parseStart = System.nanoTime();
+                Model model = readModel(input, dictionary);
+                stats.time(Stage.parse, parseStart);
+                stats.triples(model.size());
+                
+                Model newModel = getLabels(model, stats, dictionary);
+                stats.log(LOGGER);
+          
+                long writeStart = System.nanoTime();
+                outFiles = output.writeModel(newModel, basename);
+                stats.time(Stage.write, writeStart);
+            }
+        } catch (UncheckedIOException e) {
+            // From an output stream rolling over to a new shard
+            throw e.getCause();
+        }
+        
+        totals.add(stats);
+        String outputs = Manifest.joinOutputs(outFiles);
+        for (int i = 0; i < files.size(); i++) {
+            manifest.put(new Manifest.Entry(files.get(i).getAbsolutePath(),
+                    sizes[i], modified[i], hashes[i], outputs));
+        }
+        metrics.fileDone(input, stats, start);
              
     }
     
-    private Model getLabels(Model model) {
+    /**
+     * Return the hash of an input file for its manifest entry. Hashes are
+     * only needed to tell whether a file touched since a previous run has
+     * changed, so a file is only hashed when this run reuses outputs, and
+     * then only if its size or modification time differ from those of the
+     * previous run; otherwise the previous hash is kept.
+     */
+    private String hash(File file, long size, long modified) 
+            throws IOException {
+        
+        if (previousManifest == null && ! resume) {
+            return Manifest.NO_HASH;
+        }
+        Manifest.Entry previous = previousManifest != null 
+                ? previousManifest.get(file.getAbsolutePath()) : null;
+        if (previous != null && previous.size == size 
+                && previous.modified == modified 
+                && ! previous.hash.equals(Manifest.NO_HASH)) {
+            return previous.hash;
+        }
+        return Manifest.hash(file);
+    }
+    
+    /**
+     * Return true if the run being resumed completed all the files.
+     */
+    private boolean isResumed(List<File> files) {
+        
+        for (File file : files) {
+            if (! resumedFiles.contains(file.getAbsolutePath())) {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    private static boolean outputsExist(String dir, Manifest.Entry entry) {
+        
+        for (String name : entry.getOutputs()) {
+            if (! new File(dir, name).isFile()) {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    /**
+     * If the input's files are unchanged since the previous run, and were
+     * labelled into outputs of the same names, link the previous outputs 
+     * into the output directory and return true.
+     */
+    private boolean reuseOutput(InputFiles.Input input) throws IOException {
+        
+        if (previousManifest == null) {
+            return false;
+        }
+        
+        List<File> files = input.getFiles();
+        List<Manifest.Entry> previousEntries = new ArrayList<>();
+        for (File file : files) {
+            Manifest.Entry previous = previousManifest.getUnchanged(
+                    file, file.getAbsolutePath());
+            if (previous == null || (! previousEntries.isEmpty() 
+                    && ! previous.output.equals(
+                            previousEntries.get(0).output))) {
+                return false;
+            }
+            previousEntries.add(previous);
+        }
+        // The previous outputs must have been made from just these files,
+        // under this input's name.
+        Manifest.Entry first = previousEntries.get(0);
+        String[] names = first.getOutputs();
+        if (previousManifest.countOutput(first.output) != files.size()
+                || ! output.isOutput(input.getBasename(), names)
+                || ! outputsExist(previousOutputDir, first)) {
+            return false;
+        }
+        
+        for (String name : names) {
+            linkPreviousOutput(name);
+        }
+        // And the lines of the input files that couldn't be parsed
+        for (int i = 0; i < files.size(); i++) {
+            String name = output.getRejectFile(
+                    input.getRejectBasename(i)).getName();
+            if (new File(previousOutputDir, name).isFile()) {
+                linkPreviousOutput(name);
+            }
+        }
+        
+        LOGGER.debug("Reused output for unchanged " + input);
+        for (int i = 0; i < files.size(); i++) {
+            Manifest.Entry previous = previousEntries.get(i);
+            manifest.put(new Manifest.Entry(previous.input, previous.size, 
+                    files.get(i).lastModified(), previous.hash, 
+                    previous.output));
+        }
+        reusedFiles.addAndGet(files.size());
+        return true;
+    }
+    
+    /**
+     * Link the file of the previous output directory into the output 
+     * directory, or copy it if it can't be linked.
+     */
+    private void linkPreviousOutput(String name) throws IOException {
+        
+        File outFile = new File(outputDir, name);
+        File previousOutFile = new File(previousOutputDir, name);
+        try {
+            Files.createLink(outFile.toPath(), previousOutFile.toPath());
+        } catch (IOException | UnsupportedOperationException e) {
+            // E.g., the directories are on different file systems
+            Files.copy(previousOutFile.toPath(), 
+                    RdfOutput.getTempFile(outFile).toPath());
+            output.commit(outFile);
+        }
+    }
+    
+    Model getLabels(Model model, LabelStats stats) {
+        return getLabels(model, stats, null);
+    }
+    
+    /**
+     * Make a label for each subject of the model that doesn't have one.
+     * @param model
+     * @param stats - counts for the model's file
+     * @param dictionary - the dictionary the model's literals were interned
+     * in, for the new labels, or null
+     * @return the model with the new labels added, or, for delta output, 
+     * just the new labels
+     */
+    Model getLabels(Model model, LabelStats stats, 
+            LabelDictionary dictionary) {
+        return getLabels(model, stats, dictionary, delta);
+    }
+    
+    /**
+     * Make a label for each subject of the model that doesn't have one.
+     * @param model
+     * @param stats - counts for the model
+     * @param dictionary - the dictionary the model's literals were interned
+     * in, for the new labels, or null
+     * @param delta - return just the new labels
+     * @return the model with the new labels added, or, for delta output, 
+     * just the new labels
+     */
+    Model getLabels(Model model, LabelStats stats, 
+            LabelDictionary dictionary, boolean delta) {
+        return getLabels(model, stats, dictionary, delta, null);
+    }
+    
+    /**
+     * Make a label for each subject of the model that doesn't have one, 
+     * from the model, or, for a URI subject the model can't label, from 
+     * the labels cached for the client. See setLabelCache().
+     * @param model
+     * @param stats - counts for the model
+     * @param dictionary - the dictionary the model's literals were interned
+     * in, for the new labels, or null
+     * @param delta - return just the new labels
+     * @param client - the client the model came from, or null not to use
+     * the cache
+     * @return the model with the new labels added, or, for delta output, 
+     * just the new labels
+     */
+    Model getLabels(Model model, LabelStats stats, 
+            LabelDictionary dictionary, boolean delta, String client) {
  
+        long start = System.nanoTime();
         Model assertions = ModelFactory.createDefaultModel();
         Model retractions = ModelFactory.createDefaultModel();
+        LabelMaker.Join labels = join ? labelMaker.join(model) : null;
         
-        ResIterator subjects = model.listSubjects();
-
-        int subjectCount = 0;
-        int existingLabel = 0;
-        // int modifiedLabel = 0;
-        int newLabel = 0;
-        int noLabelMade = 0;
+        // A CompactGraph lists its subjects without collecting them.
+        Iterator<Resource> subjects = model.getGraph() instanceof CompactGraph
+                ? ((CompactGraph) model.getGraph()).listSubjects()
+                        .mapWith(model::wrapAsResource)
+                : model.listSubjects();
         
         while (subjects.hasNext()) {
-            Resource subject = subjects.nextResource();
-            subjectCount++;
+            Resource subject = subjects.next();
+            stats.subject();
             String subjectUri = subject.getURI();
-            LOGGER.debug("Got subject " + subjectUri);
+            // Per-subject messages are built only for logged subjects.
+            boolean logged = LOGGER.isDebugEnabled() 
+                    && TraceSampler.isSampled(subject);
+            if (logged) {
+                LOGGER.debug("Got subject " + subjectUri);
+            }
             
-            Statement labelStmt = subject.getProperty(RDFS.label);
+            Statement labelStmt = labels != null 
+                    ? labels.getLabelStatement(subject) 
+                    : subject.getProperty(RDFS.label);
 
             // If the resource doesn't already have a label
             if (labelStmt == null) {
-                LOGGER.debug("Getting label for subject " + subjectUri);
-                String label = labelMaker.makeLabel(subject);
-                if (label != null) {
-                    assertions.add(subject, RDFS.label, label);    
-                    newLabel++;
+                if (logged) {
+                    LOGGER.debug("Getting label for subject " + subjectUri);
+                }
+                if (delta && subject.isAnon()) {
+                    // A delta can't refer to a blank node of the input.
+                    stats.skippedBlankNode();
+                    continue;
+                }
+                boolean deduplicated = labelledSubjects != null 
+                        && subject.isURIResource();
+                if (deduplicated && labelledSubjects.contains(subjectUri)) {
+                    // Labelled by another file
+                    stats.duplicateLabel();
+                    continue;
+                }
+                String label = labels != null 
+                        ? labels.makeLabel(subject, stats)
+                        : labelMaker.makeLabel(subject, stats);
+                boolean cached = labelCache != null && client != null
+                        && subject.isURIResource();
+                if (cached && label != null) {
+                    labelCache.put(client, subjectUri, label);
+                } else if (cached) {
+                    // Made from triples of an earlier request by the client
+                    label = labelCache.get(client, subjectUri);
+                    if (label != null) {
+                        stats.labelSource(LABEL_CACHE_SOURCE);
+                    }
+                }
+                if (label != null && deduplicated 
+                        && ! labelledSubjects.add(subjectUri)) {
+                    // Labelled by another file since
+                    stats.duplicateLabel();
+                } else if (label != null) {
+                    Node literal = dictionary != null 
+                            ? dictionary.literal(label) 
+                            : NodeFactory.createLiteral(label);
+                    assertions.getGraph().add(Triple.create(
+                            subject.asNode(), LABEL, literal));    
+                    stats.newLabel();
                 } else {
-                    noLabelMade++;
+                    stats.noLabelMade();
                 }
             } else {
-                LOGGER.debug("Subject " + subjectUri + " already has label \"" 
-                        + labelStmt.getString() + "\"");
-//                String originalLabel = labelStmt.getString();
-//                String label = 
-//                        labelModifier.modifyLabel(subject, originalLabel);
-//                if (! label.equals(originalLabel)) {
-//                    assertions.add(subject, RDFS.label, label);
-//                    retractions.add(labelStmt);
-//                    modifiedLabel++;
-//                } else {
-                existingLabel++;
+                if (logged) {
+                    LOGGER.debug("Subject " + subjectUri 
+                            + " already has label \"" 
+                            + labelStmt.getString() + "\"");
+                }
+                String label = null;
+                if (labelModifier != null 
+                        && labelStmt.getObject().isLiteral()) {
+                    String originalLabel = labelStmt.getString();
+                    label = labelModifier.modifyLabel(originalLabel);
+                    if (label.equals(originalLabel)) {
+                        label = null;
+                    }
+                }
+                if (label != null && delta && subject.isAnon()) {
+                    stats.skippedBlankNode();
+                } else if (label != null) {
+                    Node literal = dictionary != null 
+                            ? dictionary.literal(label) 
+                            : NodeFactory.createLiteral(label);
+                    assertions.getGraph().add(Triple.create(
+                            subject.asNode(), LABEL, literal));
+                    retractions.add(labelStmt);
+                    stats.modifiedLabel();
+                } else {
+                    stats.existingLabel();
+                }
             }       
         }  
         
-        LOGGER.info("Processed " + subjectCount + " distinct resources."); 
-        LOGGER.info("Retained existing labels for " + existingLabel + " resources.");
-        // LOGGER.info("Modified existing labels for " + modifiedLabel + " resources");
-        LOGGER.info("Made new labels for " + newLabel + " resources.");
-        LOGGER.info("No label created for " + noLabelMade + " resources.");
+        stats.time(Stage.label, start);
+        if (dictionary != null) {
+            dictionary.addTo(stats);
+        }
         
-//        return model.remove(retractions)
-//                    .add(assertions);
+        if (delta) {
+            return assertions;
+        }
         
-        return model.add(assertions);
+        return model.remove(retractions)
+                    .add(assertions);
     }
 
 
-    private void writeModelToFile(Model model, String basename) {
-        
-        FileOutputStream outStream;
-        File outFile = new File(outputDir, basename + ".nt");
-        
-        try {
-            outStream = new FileOutputStream(outFile);
-            RDFDataMgr.write(outStream, model, RDFFormat.NTRIPLES);
-        } catch (FileNotFoundException e) {
-            // TODO Auto-generated catch block
-            e.printStackTrace();
-        }        
-    }  
+    /**
+     * Return an empty model for a file to be read into: on a CompactGraph,
+     * if set, otherwise on Jena's default graph.
+     */
+    Model createModel() {
+        return compact 
+                ? ModelFactory.createModelForGraph(new CompactGraph())
+                : ModelFactory.createDefaultModel();
+    }
     
-    private Model readModelFromFile(String filename) {
-        
-        // return RDFDataMgr.loadModel(filename);
-        // LOGGER.debug("Reading file " + filename);
+    private Model readModel(InputFiles.Input input, 
+            LabelDictionary dictionary) throws IOException {
         
-        Model model = ModelFactory.createDefaultModel(); 
-        try {
-            model.read(filename);
-        } catch (RiotException e) {
-           LOGGER.error("ERROR: RDF parsing error in file " 
-                   + FilenameUtils.getName(filename) + ": " + e.getMessage()
-                   + ". Skipping rest of file.");
+        Model model = createModel(); 
+        // Without setGraphs(), the triples of named graphs are labelled 
+        // with those of the default graph, as by the streaming passes.
+        StreamRDF sink = new StreamRDFWrapper(
+                StreamRDFLib.graph(model.getGraph())) {
+            @Override
+            public void quad(Quad quad) {
+                triple(quad.asTriple());
+            }
+        };
+        if (dictionary != null) {
+            sink = dictionary.intern(sink);
         }
+        read(input, sink);
         return model;
     }
     
+    /**
+     * Parse the input files to the sink, each in the syntax of its 
+     * extension. A file that can't be parsed to the end is logged and 
+     * skipped from the error on; the lines of a line-based file that can't
+     * be parsed are written to its reject file.
+     * @param input - the input files
+     * @param sink
+     * @throws IOException if a file can't be read
+     */
+    void read(InputFiles.Input input, StreamRDF sink) throws IOException {
+        
+        List<File> files = input.getFiles();
+        for (int i = 0; i < files.size(); i++) {
+            File file = files.get(i);
+            String filename = file.toString();
+            try {
+                if (RecoveringParser.isLineBased(file)) {
+                    // Each file gets its own blank nodes.
+                    parser.parse(file, sink, UUID.randomUUID(), 
+                            output.getRejectFile(
+                                    input.getRejectBasename(i)));
+                } else {
+                    RDFDataMgr.parse(sink, filename);
+                }
+            } catch (RiotException e) {
+               LOGGER.error("ERROR: RDF parsing error in file " 
+                       + FilenameUtils.getName(filename) + ": " 
+                       + e.getMessage() + ". Skipping rest of file.");
+            }
+        }
+    }
+    
 }
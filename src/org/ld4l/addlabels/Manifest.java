@@ -0,0 +1,321 @@
+package org.ld4l.addlabels;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * A record of the input files processed in a run, written to the output
+ * directory, so that a later run can tell which inputs are unchanged and
+ * reuse their outputs. Each line holds the canonical input path, its size,
+ * last-modified time and SHA-256 hash, or NO_HASH if the run didn't need 
+ * it, and the names of the output files, separated by tabs. An output 
+ * split into shards has several files, whose
+ * names are separated by '/'; input files labelled together share their
+ * outputs. The first line records the settings that affect the
+ * contents of the output files; outputs are only reusable by a run with the
+ * same settings.
+ *
+ * While a run is in flight, each entry is also appended to a journal in the
+ * output directory as its output file is completed, and synced to disk, so
+ * that a run that dies can be resumed. The journal has the same format as 
+ * the manifest.
+ */
+class Manifest {
+
+    private static final Logger LOGGER =
+            LogManager.getLogger(Manifest.class);
+
+    static final String FILENAME = "manifest.tsv";
+    static final String JOURNAL_FILENAME = "journal.tsv";
+    
+    // The hash of an input that wasn't hashed
+    static final String NO_HASH = "-";
+    
+    private static final String OUTPUT_SEPARATOR = "/";
+
+    private static final String SETTINGS_PREFIX = "# settings ";
+
+    static class Entry {
+
+        final String input;
+        final long size;
+        final long modified;
+        final String hash;
+        final String output;
+
+        Entry(String input, long size, long modified, String hash,
+                String output) {
+            this.input = input;
+            this.size = size;
+            this.modified = modified;
+            this.hash = hash;
+            this.output = output;
+        }
+        
+        /**
+         * Return the names of the output files.
+         */
+        String[] getOutputs() {
+            return output.split(OUTPUT_SEPARATOR);
+        }
+    }
+    
+    /**
+     * Return the names of the output files, as recorded in an entry.
+     * @param outputs
+     */
+    static String joinOutputs(List<File> outputs) {
+        
+        StringBuilder names = new StringBuilder();
+        for (File output : outputs) {
+            if (names.length() > 0) {
+                names.append(OUTPUT_SEPARATOR);
+            }
+            names.append(output.getName());
+        }
+        return names.toString();
+    }
+
+    private final String settings;
+    private final Map<String, Entry> entries;
+    private FileOutputStream journalFile;
+    private BufferedWriter journal;
+
+    Manifest(String settings) {
+        this.settings = settings;
+        this.entries = new TreeMap<String, Entry>();
+    }
+
+    /**
+     * Read the manifest in the specified output directory.
+     * @param dir - a previous output directory
+     * @return the manifest
+     * @throws IOException if there is no manifest or it can't be read
+     */
+    static Manifest read(File dir) throws IOException {
+        return readFile(new File(dir, FILENAME));
+    }
+
+    /**
+     * Read the journal in the specified output directory: the entries for 
+     * the files completed by a run that may not have finished.
+     * @param dir - the output directory of the run
+     * @return the journal, as a manifest
+     * @throws IOException if there is no journal or it can't be read
+     */
+    static Manifest readJournal(File dir) throws IOException {
+        return readFile(new File(dir, JOURNAL_FILENAME));
+    }
+
+    private static Manifest readFile(File file) throws IOException {
+
+        try (BufferedReader reader = Files.newBufferedReader(
+                file.toPath(), StandardCharsets.UTF_8)) {
+
+            String line = reader.readLine();
+            if (line == null || ! line.startsWith(SETTINGS_PREFIX)) {
+                throw new IOException("Not a manifest: " + file);
+            }
+            Manifest manifest =
+                    new Manifest(line.substring(SETTINGS_PREFIX.length()));
+
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split("\t");
+                // The last line of a journal may be cut short by a crash.
+                if (fields.length != 5) {
+                    LOGGER.warn("Ignoring bad manifest line: " + line);
+                    continue;
+                }
+                manifest.put(new Entry(fields[0], Long.parseLong(fields[1]),
+                        Long.parseLong(fields[2]), fields[3], fields[4]));
+            }
+            return manifest;
+        }
+    }
+
+    /**
+     * Write the manifest to the specified output directory. Any existing
+     * manifest is replaced, atomically, so that a crash never leaves one
+     * cut short for a later run to trust.
+     * @param dir
+     * @throws IOException
+     */
+    synchronized void write(File dir) throws IOException {
+        writeAtomically(dir, FILENAME);
+    }
+
+    /**
+     * Write the settings and the entries to a temporary file, synced to 
+     * disk, and then move it to the file with the specified name.
+     */
+    private void writeAtomically(File dir, String filename) 
+            throws IOException {
+
+        File file = new File(dir, filename);
+        File temp = new File(dir, filename + RdfOutput.TEMP_SUFFIX);
+        try (FileOutputStream out = new FileOutputStream(temp)) {
+            BufferedWriter writer = new BufferedWriter(
+                    new OutputStreamWriter(out, StandardCharsets.UTF_8));
+            writer.write(SETTINGS_PREFIX + settings);
+            writer.newLine();
+            for (Entry entry : entries.values()) {
+                writer.write(format(entry));
+                writer.newLine();
+            }
+            writer.flush();
+            out.getFD().sync();
+        }
+        Files.move(temp.toPath(), file.toPath(), 
+                StandardCopyOption.ATOMIC_MOVE, 
+                StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private static String format(Entry entry) {
+        return entry.input + "\t" + entry.size + "\t" + entry.modified 
+                + "\t" + entry.hash + "\t" + entry.output;
+    }
+
+    /**
+     * Start a journal in the specified output directory, holding the
+     * entries put so far; entries put from now on are appended to it. Any
+     * existing journal is replaced, atomically.
+     * @param dir
+     * @throws IOException
+     */
+    synchronized void openJournal(File dir) throws IOException {
+
+        writeAtomically(dir, JOURNAL_FILENAME);
+
+        journalFile = new FileOutputStream(
+                new File(dir, JOURNAL_FILENAME), true);
+        journal = new BufferedWriter(new OutputStreamWriter(
+                journalFile, StandardCharsets.UTF_8));
+    }
+
+    synchronized void closeJournal() {
+
+        if (journal == null) {
+            return;
+        }
+        try {
+            journal.close();
+        } catch (IOException e) {
+            LOGGER.warn("Can't close journal: " + e.getMessage());
+        }
+        journal = null;
+    }
+
+    String getSettings() {
+        return settings;
+    }
+
+    synchronized Entry get(String input) {
+        return entries.get(input);
+    }
+
+    /**
+     * Return the number of entries with the specified outputs: the number 
+     * of input files that were labelled together into them.
+     * @param output - the outputs, as recorded in an entry
+     */
+    synchronized int countOutput(String output) {
+        
+        int count = 0;
+        for (Entry entry : entries.values()) {
+            if (entry.output.equals(output)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Add an entry, and append it to the journal, if one is open. 
+     * @param entry
+     * @throws IOException if the journal can't be written
+     */
+    synchronized void put(Entry entry) throws IOException {
+        
+        entries.put(entry.input, entry);
+        if (journal != null) {
+            journal.write(format(entry));
+            journal.newLine();
+            journal.flush();
+            journalFile.getFD().sync();
+        }
+    }
+
+    /**
+     * Return the entry for the file if it is unchanged since the entry was
+     * recorded, otherwise null. Files whose size and modification time
+     * match are taken to be unchanged without reading them; if only the
+     * modification time differs, the content hash decides, if the entry
+     * has one.
+     * @param file - an input file
+     * @param input - the file's canonical path
+     * @return the entry, or null if the file has changed or is not recorded
+     * @throws IOException
+     */
+    Entry getUnchanged(File file, String input) throws IOException {
+
+        Entry entry = get(input);
+        if (entry == null || entry.size != file.length()) {
+            return null;
+        }
+        if (entry.modified == file.lastModified()) {
+            return entry;
+        }
+        if (entry.hash.equals(NO_HASH)) {
+            return null;
+        }
+        return entry.hash.equals(hash(file)) ? entry : null;
+    }
+
+    /**
+     * Return the hex-encoded SHA-256 hash of the file's contents.
+     * @param file
+     * @return the hash
+     * @throws IOException
+     */
+    static String hash(File file) throws IOException {
+
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java platform is required to support SHA-256.
+            throw new IllegalStateException(e);
+        }
+
+        byte[] buffer = new byte[1 << 16];
+        try (InputStream in = new FileInputStream(file)) {
+            int count;
+            while ((count = in.read(buffer)) > 0) {
+                digest.update(buffer, 0, count);
+            }
+        }
+
+        StringBuilder hex = new StringBuilder();
+        for (byte b : digest.digest()) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+}
@@ -0,0 +1,76 @@
+package org.ld4l.addlabels;
+
+import java.util.concurrent.Semaphore;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Limits the number of models held in memory at once when files are 
+ * processed concurrently. The budget is a fraction of the maximum heap, 
+ * counted in megabytes; each file reserves an estimate of the heap its 
+ * model will need before it is read, and releases it when its output has 
+ * been written. A file larger than the whole budget is allowed to run, but
+ * only on its own.
+ */
+class ModelMemoryBudget {
+
+    private static final Logger LOGGER = 
+            LogManager.getLogger(ModelMemoryBudget.class); 
+    
+    private static final long MB = 1024 * 1024;
+    
+    // Fraction of the maximum heap available to models in flight.
+    private static final double HEAP_FRACTION = 0.6;
+    
+    // Rough ratio of in-memory model size to serialized file size. A
+    // default Jena graph indexes every triple three ways, so this errs on 
+    // the generous side.
+    private static final int EXPANSION_FACTOR = 10;
+    
+    // The same for a CompactGraph, which is dominated by the nodes.
+    private static final int COMPACT_EXPANSION_FACTOR = 3;
+    
+    private final int budgetMb;
+    private final int expansionFactor;
+    private final Semaphore permits;
+    
+    /**
+     * @param compact - models are read into CompactGraphs
+     */
+    ModelMemoryBudget(boolean compact) {
+        this(Runtime.getRuntime().maxMemory(), compact);
+    }
+    
+    ModelMemoryBudget(long maxHeapBytes, boolean compact) {
+        expansionFactor = compact 
+                ? COMPACT_EXPANSION_FACTOR : EXPANSION_FACTOR;
+        budgetMb = (int) Math.max(1, 
+                (long) (maxHeapBytes * HEAP_FRACTION) / MB);
+        permits = new Semaphore(budgetMb, true);
+        LOGGER.debug("Memory budget for models in flight: " + budgetMb 
+                + " MB");
+    }
+    
+    /**
+     * Block until there is room in the budget for the model read from 
+     * input files of the specified size.
+     * @param bytes - the size of the input files
+     * @return the number of megabytes reserved, to be passed to release()
+     * @throws InterruptedException
+     */
+    int acquire(long bytes) throws InterruptedException {
+        int cost = estimateMb(bytes);
+        permits.acquire(cost);
+        return cost;
+    }
+    
+    void release(int cost) {
+        permits.release(cost);
+    }
+    
+    private int estimateMb(long bytes) {
+        long estimate = (bytes * expansionFactor) / MB + 1;
+        return (int) Math.min(estimate, budgetMb);
+    }
+}
@@ -0,0 +1,40 @@
+package org.ld4l.addlabels;
+
+import org.apache.jena.riot.RDFFormat;
+
+/**
+ * The serializations the output files can be written in. All of them can
+ * be written as a stream, so output never needs a second in-memory copy of
+ * the model. The last two are updates rather than RDF serializations, and 
+ * are mainly useful with delta output. Only some of the formats can hold
+ * the names of graphs.
+ */
+enum OutputFormat {
+    
+    ntriples(RDFFormat.NTRIPLES, "nt", "application/n-triples", false),
+    nquads(RDFFormat.NQUADS, "nq", "application/n-quads", true),
+    // Turtle written subject by subject, without a model-wide analysis
+    turtle(RDFFormat.TURTLE_BLOCKS, "ttl", "text/turtle", false),
+    // TriG written graph by graph and subject by subject
+    trig(RDFFormat.TRIG_BLOCKS, "trig", "application/trig", true),
+    // Binary RDF Thrift, the fastest format for Jena to reload
+    thrift(RDFFormat.RDF_THRIFT, "trdf", "application/rdf+thrift", true),
+    patch(null, "rdfp", "application/rdf-patch", false),
+    sparql(null, "ru", "application/sparql-update", false);
+    
+    // Null for formats Jena has no stream writer for
+    final RDFFormat format;
+    final String extension;
+    // For responses of a LabelServer
+    final String contentType;
+    // Whether quads are written with their graph names
+    final boolean quads;
+    
+    OutputFormat(RDFFormat format, String extension, String contentType,
+            boolean quads) {
+        this.format = format;
+        this.extension = extension;
+        this.contentType = contentType;
+        this.quads = quads;
+    }
+}
@@ -0,0 +1,396 @@
+package org.ld4l.addlabels;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.commons.io.output.CountingOutputStream;
+import org.apache.jena.graph.Triple;
+import org.apache.jena.rdf.model.Model;
+import org.apache.jena.riot.system.StreamOps;
+import org.apache.jena.riot.system.StreamRDF;
+import org.apache.jena.riot.system.StreamRDFWriter;
+import org.apache.jena.sparql.core.Quad;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Writes output files in the configured format, with large buffered writes
+ * and optional gzip compression. Callers open the Shards of an output, 
+ * write to its stream, and commit it; writeModel() does all three. Until 
+ * they are committed, the files are written under temporary names, so that
+ * a file left by a run that died is never taken for a complete one.
+ *
+ * With a shard size, an output is split into shards of about that many 
+ * bytes before compression, basename-00000, basename-00001 and so on, each
+ * a complete document in the output format, so that bulk loaders get 
+ * evenly sized files. An output that fits in one shard keeps its basename.
+ */
+class RdfOutput {
+
+    private static final Logger LOGGER = 
+            LogManager.getLogger(RdfOutput.class); 
+    
+    // Large enough that each write to the file is a substantial chunk.
+    private static final int BUFFER_SIZE = 1 << 20;
+    
+    static final String TEMP_SUFFIX = ".part";
+    
+    private static final String SHARD_FORMAT = "%s-%05d";
+    
+    private final File outputDir;
+    private final OutputFormat format;
+    private final boolean compress;
+    private long shardSize;
+    
+    RdfOutput(File outputDir, OutputFormat format, boolean compress) {
+        this.outputDir = outputDir;
+        this.format = format;
+        this.compress = compress;
+    }
+    
+    /**
+     * Split each output into shards of about the specified size. Defaults
+     * to 0, not to split them.
+     * @param shardSize - the size in bytes, before compression
+     */
+    void setShardSize(long shardSize) {
+        this.shardSize = shardSize;
+    }
+    
+    /**
+     * The files of an output, written to a stream of triples in the output
+     * format. The caller calls start() and finish() on the stream, and then
+     * commit(); close() deletes the files of an output that wasn't
+     * committed.
+     */
+    class Shards implements Closeable {
+        
+        private final String basename;
+        private final List<File> files;
+        private final Map<String, String> prefixes;
+        private String base;
+        private CountingOutputStream out;
+        private StreamRDF writer;
+        private final StreamRDF stream;
+        private boolean committed;
+        
+        private Shards(String basename) throws IOException {
+            
+            this.basename = basename;
+            this.files = new ArrayList<File>();
+            this.prefixes = new LinkedHashMap<String, String>();
+            openShard();
+            
+            this.stream = new StreamRDF() {
+
+                @Override
+                public void start() {
+                    writer.start();
+                }
+
+                @Override
+                public void triple(Triple triple) {
+                    writer.triple(triple);
+                    nextShardIfFull();
+                }
+
+                @Override
+                public void quad(Quad quad) {
+                    writer.quad(quad);
+                    nextShardIfFull();
+                }
+
+                @Override
+                public void base(String base) {
+                    Shards.this.base = base;
+                    writer.base(base);
+                }
+
+                @Override
+                public void prefix(String prefix, String iri) {
+                    prefixes.put(prefix, iri);
+                    writer.prefix(prefix, iri);
+                }
+
+                @Override
+                public void finish() {
+                    writer.finish();
+                }
+            };
+        }
+        
+        StreamRDF getStream() {
+            return stream;
+        }
+        
+        private void openShard() throws IOException {
+            
+            File file = shardSize > 0 
+                    ? getFile(String.format(Locale.ROOT, SHARD_FORMAT, 
+                            basename, files.size()))
+                    : getFile(basename);
+            files.add(file);
+            out = new CountingOutputStream(open(file));
+            writer = getWriterStream(out);
+        }
+        
+        /**
+         * Start a new shard if the current one has reached the shard size.
+         * Each shard repeats the base and prefixes, so that it can be read
+         * on its own.
+         */
+        private void nextShardIfFull() {
+            
+            if (shardSize == 0 || out.getByteCount() < shardSize) {
+                return;
+            }
+            writer.finish();
+            try {
+                out.close();
+                openShard();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            writer.start();
+            if (base != null) {
+                writer.base(base);
+            }
+            for (Map.Entry<String, String> prefix : prefixes.entrySet()) {
+                writer.prefix(prefix.getKey(), prefix.getValue());
+            }
+        }
+        
+        /**
+         * Close the current shard, and give the complete files their 
+         * names. Shards left by an earlier run of the output are deleted.
+         * @return the output files
+         * @throws IOException
+         */
+        List<File> commit() throws IOException {
+            
+            out.close();
+            if (shardSize > 0 && files.size() == 1) {
+                // It fits in one shard: keep the basename.
+                File file = getFile(basename);
+                Files.move(getTempFile(files.get(0)).toPath(), 
+                        getTempFile(file).toPath(), 
+                        StandardCopyOption.REPLACE_EXISTING);
+                files.set(0, file);
+            }
+            for (File file : files) {
+                RdfOutput.this.commit(file);
+            }
+            committed = true;
+            
+            if (shardSize > 0) {
+                deleteStaleShards(files.size() == 1 ? 0 : files.size());
+                if (files.size() > 1) {
+                    Files.deleteIfExists(getFile(basename).toPath());
+                }
+            }
+            return files;
+        }
+        
+        private void deleteStaleShards(int first) throws IOException {
+            
+            for (int i = first; ; i++) {
+                File stale = getFile(String.format(
+                        Locale.ROOT, SHARD_FORMAT, basename, i));
+                if (! stale.delete()) {
+                    return;
+                }
+            }
+        }
+        
+        @Override
+        public void close() throws IOException {
+            
+            if (committed) {
+                return;
+            }
+            out.close();
+            for (File file : files) {
+                Files.deleteIfExists(getTempFile(file).toPath());
+            }
+        }
+    }
+    
+    /**
+     * Open the output for the specified basename.
+     * @param basename
+     * @return the output
+     * @throws IOException
+     */
+    Shards openShards(String basename) throws IOException {
+        return new Shards(basename);
+    }
+    
+    /**
+     * Return true if the files are the complete output for the specified 
+     * basename with the current shard size: one file of the basename, or 
+     * its shards, numbered from 0.
+     * @param basename
+     * @param names - the names of the files
+     */
+    boolean isOutput(String basename, String[] names) {
+        
+        if (names.length == 1) {
+            return names[0].equals(getFile(basename).getName());
+        }
+        if (shardSize == 0) {
+            return false;
+        }
+        for (int i = 0; i < names.length; i++) {
+            if (! names[i].equals(getFile(String.format(Locale.ROOT, 
+                    SHARD_FORMAT, basename, i)).getName())) {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    /**
+     * Return the output file for the specified basename, with the extension
+     * for the format, and .gz if compressed.
+     * @param basename
+     * @return the output file
+     */
+    File getFile(String basename) {
+        String filename = basename + "." + format.extension;
+        if (compress) {
+            filename += ".gz";
+        }
+        return new File(outputDir, filename);
+    }
+    
+    /**
+     * Return the file for the lines of the input that couldn't be parsed.
+     * See RecoveringParser.
+     * @param basename
+     * @return the reject file
+     */
+    File getRejectFile(String basename) {
+        return new File(outputDir, basename + RecoveringParser.REJECTS_SUFFIX);
+    }
+    
+    /**
+     * Open a buffered, and optionally compressed, stream to the temporary 
+     * file for the file. The caller must close it, and then call commit().
+     * @param file
+     * @return the stream
+     * @throws IOException
+     */
+    OutputStream open(File file) throws IOException {
+        
+        OutputStream out = new FileOutputStream(getTempFile(file));
+        try {
+            if (compress) {
+                // GZIPOutputStream buffers its own input, so the large 
+                // buffer goes on the uncompressed side.
+                return new BufferedOutputStream(
+                        new GZIPOutputStream(out, BUFFER_SIZE / 8), 
+                        BUFFER_SIZE);
+            }
+            return new BufferedOutputStream(out, BUFFER_SIZE);
+        } catch (IOException e) {
+            out.close();
+            throw e;
+        }
+    }
+    
+    /**
+     * Give the complete temporary file its name, atomically, replacing any
+     * existing file.
+     * @param file
+     * @throws IOException
+     */
+    void commit(File file) throws IOException {
+        Files.move(getTempFile(file).toPath(), file.toPath(), 
+                StandardCopyOption.ATOMIC_MOVE, 
+                StandardCopyOption.REPLACE_EXISTING);
+    }
+    
+    /**
+     * Return the temporary name of a file while it is written. It is in the
+     * same directory, so that it can be renamed atomically.
+     * @param file
+     */
+    static File getTempFile(File file) {
+        return new File(file.getParentFile(), file.getName() + TEMP_SUFFIX);
+    }
+    
+    /**
+     * Delete the temporary files left in the output directory by a run 
+     * that died.
+     */
+    void deleteTempFiles() {
+        
+        File[] files = outputDir.listFiles(
+                (dir, name) -> name.endsWith(TEMP_SUFFIX));
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            LOGGER.debug("Deleting incomplete file " + file.getName());
+            if (! file.delete()) {
+                LOGGER.warn("Can't delete incomplete file " + file);
+            }
+        }
+    }
+    
+    /**
+     * Return a stream of triples serialized in the output format to out.
+     * Call start() before the first triple and finish() after the last.
+     * @param out
+     * @return the stream
+     */
+    StreamRDF getWriterStream(OutputStream out) {
+        return getWriterStream(out, format);
+    }
+    
+    /**
+     * Return a stream of triples serialized in the format to out.
+     * @param out
+     * @param format
+     * @return the stream
+     */
+    static StreamRDF getWriterStream(OutputStream out, OutputFormat format) {
+        
+        switch (format) {
+        case patch:
+            return new RdfPatchWriter(out);
+        case sparql:
+            return new SparqlUpdateWriter(out);
+        default:
+            return StreamRDFWriter.getWriterStream(out, format.format);
+        }
+    }
+    
+    /**
+     * Write the model to the output for the specified basename.
+     * @param model
+     * @param basename
+     * @return the output files
+     * @throws IOException if the files can't be written
+     */
+    List<File> writeModel(Model model, String basename) throws IOException {
+        
+        try (Shards shards = openShards(basename)) {
+            StreamOps.graphToStream(model.getGraph(), shards.getStream());
+            return shards.commit();
+        }
+    }
+}
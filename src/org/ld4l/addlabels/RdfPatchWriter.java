@@ -0,0 +1,58 @@
+package org.ld4l.addlabels;
+
+import java.io.OutputStream;
+
+import org.apache.jena.atlas.io.AWriter;
+import org.apache.jena.atlas.io.IO;
+import org.apache.jena.graph.Node;
+import org.apache.jena.graph.Triple;
+import org.apache.jena.riot.out.NodeFormatter;
+import org.apache.jena.riot.out.NodeFormatterNT;
+import org.apache.jena.riot.system.StreamRDFBase;
+import org.apache.jena.sparql.core.Quad;
+
+/**
+ * Writes triples as an RDF Patch: a single transaction of add rows, one per
+ * triple, with nodes in N-Triples syntax. A triplestore that accepts RDF 
+ * Patch can apply the file incrementally.
+ */
+class RdfPatchWriter extends StreamRDFBase {
+
+    private final AWriter out;
+    private final NodeFormatter formatter;
+
+    RdfPatchWriter(OutputStream out) {
+        this.out = IO.wrapUTF8(out);
+        this.formatter = new NodeFormatterNT();
+    }
+
+    @Override
+    public void start() {
+        out.write("TX .\n");
+    }
+
+    @Override
+    public void triple(Triple triple) {
+        out.write("A ");
+        format(triple.getSubject());
+        format(triple.getPredicate());
+        format(triple.getObject());
+        out.write(".\n");
+    }
+
+    @Override
+    public void quad(Quad quad) {
+        triple(quad.asTriple());
+    }
+
+    @Override
+    public void finish() {
+        out.write("TC .\n");
+        out.flush();
+    }
+
+    private void format(Node node) {
+        formatter.format(out, node);
+        out.write(" ");
+    }
+}
@@ -0,0 +1,590 @@
+package org.ld4l.addlabels;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPInputStream;
+
+import org.apache.jena.graph.Triple;
+import org.apache.jena.riot.Lang;
+import org.apache.jena.riot.RDFDataMgr;
+import org.apache.jena.riot.RDFLanguages;
+import org.apache.jena.riot.ReaderRIOT;
+import org.apache.jena.riot.RiotException;
+import org.apache.jena.riot.SysRIOT;
+import org.apache.jena.riot.lang.LabelToNode;
+import org.apache.jena.riot.system.ErrorHandler;
+import org.apache.jena.riot.system.ErrorHandlerFactory;
+import org.apache.jena.riot.system.ParserProfile;
+import org.apache.jena.riot.system.RiotLib;
+import org.apache.jena.riot.system.StreamRDF;
+import org.apache.jena.riot.system.StreamRDFBase;
+import org.apache.jena.sparql.core.Quad;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Parses input files so that a malformed statement in an N-Triples or
+ * N-Quads file costs only its own line, rather than the rest of the file.
+ * These syntaxes have one statement per line, so the file is split into
+ * chunks on line boundaries, and a chunk that fails to parse is parsed 
+ * again line by line. Lines that still fail are skipped and written to a 
+ * reject file, with their line numbers and the parser's error message.
+ *
+ * An uncompressed file is memory-mapped and split into chunks of about 
+ * CHUNK_BYTES; each chunk is decoded and parsed by the thread that parses
+ * it, so nothing but the search for a line end is done a byte at a time on
+ * the calling thread. A gzipped file is read line by line. Chunks may be 
+ * parsed in parallel on an executor; their statements are sent to the sink
+ * on the calling thread, in file order. Files in other syntaxes are parsed
+ * whole, and a parsing error ends the file as before.
+ */
+class RecoveringParser {
+
+    private static final Logger LOGGER =
+            LogManager.getLogger(RecoveringParser.class);
+
+    static final String REJECTS_SUFFIX = ".rejects.tsv";
+
+    private static final int CHUNK_BYTES = 1 << 20;
+    private static final int CHUNK_LINES = 10000;
+
+    private final ExecutorService executor;
+    private final int maxChunksInFlight;
+
+    /**
+     * A parser that parses chunks on the calling thread.
+     */
+    RecoveringParser() {
+        this(null, 1);
+    }
+
+    /**
+     * @param executor - the executor to parse chunks on, or null to parse
+     * them on the calling thread
+     * @param threads - the number of threads of the executor
+     */
+    RecoveringParser(ExecutorService executor, int threads) {
+        this.executor = executor;
+        // Enough to keep the threads busy while the sink catches up,
+        // without reading far ahead of it.
+        this.maxChunksInFlight = 2 * threads;
+    }
+
+    /**
+     * Return the syntax of the file, from its name. Defaults to N-Triples.
+     * @param file
+     */
+    static Lang getLang(File file) {
+        return RDFLanguages.filenameToLang(file.toString(), Lang.NTRIPLES);
+    }
+
+    /**
+     * Return true if the file name says it is in a syntax with one 
+     * statement per line, from which bad lines can be skipped.
+     * @param file
+     */
+    static boolean isLineBased(File file) {
+        Lang lang = RDFLanguages.filenameToLang(file.toString());
+        return Lang.NTRIPLES.equals(lang) || Lang.NQUADS.equals(lang);
+    }
+
+    /**
+     * Parse the file to the sink.
+     * @param file - the input file
+     * @param sink - the destination of the statements
+     * @param bnodeSeed - the seed for blank node labels. Parsing the same
+     * file with the same seed gives the same blank nodes.
+     * @param rejectFile - the file to write bad lines to, created only if
+     * there are any, or null to skip them silently
+     * @return the number of lines skipped
+     * @throws IOException if the file can't be read or the reject file
+     * written
+     * @throws RiotException if a file that isn't line-based has an error
+     */
+    long parse(File file, StreamRDF sink, UUID bnodeSeed, File rejectFile)
+            throws IOException {
+
+        Lang lang = getLang(file);
+        String base = file.toURI().toString();
+
+        if (! lang.equals(Lang.NTRIPLES) && ! lang.equals(Lang.NQUADS)) {
+            try (InputStream in = open(file)) {
+                createReader(lang, base, bnodeSeed,
+                        ErrorHandlerFactory.getDefaultErrorHandler())
+                        .read(in, base, null, sink, null);
+            }
+            return 0;
+        }
+
+        if (rejectFile != null) {
+            // Left by an earlier run
+            Files.deleteIfExists(rejectFile.toPath());
+        }
+
+        long rejected;
+        try (Pipeline pipeline = new Pipeline(sink, new Rejects(rejectFile))) {
+            sink.start();
+            if (file.getName().endsWith(".gz")) {
+                readLines(file, pipeline, lang, base, bnodeSeed);
+            } else {
+                readMapped(file, pipeline, lang, base, bnodeSeed);
+            }
+            pipeline.flush();
+            sink.finish();
+            rejected = pipeline.rejected;
+        }
+
+        if (rejected > 0) {
+            LOGGER.warn("Skipped " + rejected + " bad lines in file "
+                    + file.getName() + (rejectFile == null ? "."
+                            : "; see " + rejectFile.getName() + "."));
+        }
+        return rejected;
+    }
+
+    /**
+     * Map the file and split it into chunks that end at a line end.
+     */
+    private void readMapped(File file, Pipeline pipeline, Lang lang,
+            String base, UUID bnodeSeed) throws IOException {
+
+        try (FileChannel channel = FileChannel.open(
+                file.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            long start = 0;
+            while (start < size) {
+                long end = nextLineStart(channel, 
+                        Math.min(start + CHUNK_BYTES, size), size);
+                // The mapping stays valid after the channel is closed.
+                pipeline.add(new Chunk(lang, base, bnodeSeed, channel.map(
+                        FileChannel.MapMode.READ_ONLY, start, end - start)));
+                start = end;
+            }
+        }
+    }
+
+    /**
+     * Return the position after the first newline at or after position - 1,
+     * or the size of the file if there is none.
+     */
+    private static long nextLineStart(FileChannel channel, long position, 
+            long size) throws IOException {
+
+        ByteBuffer buffer = ByteBuffer.allocate(4096);
+        for (long p = position - 1; p < size; p += buffer.limit()) {
+            buffer.clear();
+            channel.read(buffer, p);
+            buffer.flip();
+            for (int i = 0; i < buffer.limit(); i++) {
+                if (buffer.get(i) == '\n') {
+                    return p + i + 1;
+                }
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Read the file line by line and group the lines into chunks.
+     */
+    private void readLines(File file, Pipeline pipeline, Lang lang,
+            String base, UUID bnodeSeed) throws IOException {
+
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+                open(file), StandardCharsets.UTF_8))) {
+            StringBuilder text = new StringBuilder();
+            int lines = 0;
+            String line;
+            while ((line = reader.readLine()) != null) {
+                text.append(line).append('\n');
+                if (++lines == CHUNK_LINES) {
+                    pipeline.add(new Chunk(lang, base, bnodeSeed, 
+                            encode(text)));
+                    text.setLength(0);
+                    lines = 0;
+                }
+            }
+            if (lines > 0) {
+                pipeline.add(new Chunk(lang, base, bnodeSeed, 
+                        encode(text)));
+            }
+        }
+    }
+
+    private static ByteBuffer encode(CharSequence text) {
+        return ByteBuffer.wrap(
+                text.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Parses chunks, on the executor if there is one, and sends their 
+     * statements and bad lines on in the order the chunks were added.
+     */
+    private class Pipeline implements AutoCloseable {
+
+        private final StreamRDF sink;
+        private final Rejects rejects;
+        private final Deque<Future<Chunk>> pending;
+        private long nextLine;
+        private long rejected;
+
+        Pipeline(StreamRDF sink, Rejects rejects) {
+            this.sink = sink;
+            this.rejects = rejects;
+            this.pending = new ArrayDeque<Future<Chunk>>();
+            this.nextLine = 1;
+        }
+
+        void add(Chunk chunk) throws IOException {
+
+            if (executor == null) {
+                chunk.parse();
+                pending.add(CompletableFuture.completedFuture(chunk));
+            } else {
+                pending.add(executor.submit(() -> {
+                    chunk.parse();
+                    return chunk;
+                }));
+            }
+            while (pending.size() >= maxChunksInFlight) {
+                emit();
+            }
+        }
+
+        void flush() throws IOException {
+            while (! pending.isEmpty()) {
+                emit();
+            }
+        }
+
+        /**
+         * Wait for the next chunk to be parsed, then send its statements to
+         * the sink and its bad lines to the reject file.
+         */
+        private void emit() throws IOException {
+
+            Chunk chunk;
+            try {
+                chunk = pending.remove().get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while parsing");
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause();
+                }
+                throw new IOException(e.getCause());
+            }
+
+            for (Triple triple : chunk.triples) {
+                sink.triple(triple);
+            }
+            for (Quad quad : chunk.quads) {
+                sink.quad(quad);
+            }
+            for (Reject reject : chunk.rejects) {
+                rejects.write(nextLine + reject.index, reject);
+            }
+            rejected += chunk.rejects.size();
+            nextLine += chunk.lineCount;
+        }
+
+        @Override
+        public void close() throws IOException {
+            for (Future<Chunk> future : pending) {
+                future.cancel(true);
+            }
+            rejects.close();
+        }
+    }
+
+    private static InputStream open(File file) throws IOException {
+
+        InputStream in = new BufferedInputStream(new FileInputStream(file),
+                1 << 16);
+        if (file.getName().endsWith(".gz")) {
+            in = new GZIPInputStream(in, 1 << 16);
+        }
+        return in;
+    }
+
+    private static ReaderRIOT createReader(Lang lang, String base, 
+            UUID bnodeSeed, ErrorHandler errorHandler) {
+
+        ParserProfile profile = RiotLib.profile(lang, base);
+        profile.setLabelToNode(
+                LabelToNode.createScopeByDocumentHash(bnodeSeed));
+        ReaderRIOT reader = RDFDataMgr.createReader(lang);
+        reader.setParserProfile(profile);
+        // The reader replaces the profile's handler with its own.
+        reader.setErrorHandler(errorHandler);
+        return reader;
+    }
+
+    /**
+     * A run of consecutive lines, and what they parse to.
+     */
+    private static class Chunk {
+
+        private final Lang lang;
+        private final String base;
+        private final UUID bnodeSeed;
+        private ByteBuffer bytes;
+
+        private int lineCount;
+        private List<Triple> triples;
+        private List<Quad> quads;
+        private final List<Reject> rejects;
+
+        /**
+         * @param lang
+         * @param base
+         * @param bnodeSeed
+         * @param bytes - the lines, UTF-8 encoded
+         */
+        Chunk(Lang lang, String base, UUID bnodeSeed, ByteBuffer bytes) {
+            this.lang = lang;
+            this.base = base;
+            this.bnodeSeed = bnodeSeed;
+            this.bytes = bytes;
+            this.rejects = new ArrayList<Reject>();
+        }
+
+        void parse() {
+
+            // The chunk ends with a newline, except perhaps at the end of 
+            // the file.
+            int start = bytes.position();
+            int end = bytes.limit();
+            for (int i = start; i < end; i++) {
+                if (bytes.get(i) == '\n') {
+                    lineCount++;
+                }
+            }
+            if (end > start && bytes.get(end - 1) != '\n') {
+                lineCount++;
+            }
+
+            Collector collector = new Collector();
+            RejectingErrorHandler errorHandler = 
+                    new RejectingErrorHandler(true);
+            try {
+                read(new ByteBufferInputStream(bytes.duplicate()), collector,
+                        errorHandler);
+                errorHandler.reportWarnings();
+            } catch (RiotException e) {
+                // The errors, and the warnings, are reported per line 
+                // below.
+                collector = new Collector();
+                String[] lines = StandardCharsets.UTF_8.decode(bytes)
+                        .toString().split("\n", -1);
+                for (int i = 0; i < lineCount; i++) {
+                    parseLine(i, lines[i], collector);
+                }
+            }
+
+            bytes = null;
+            triples = collector.triples;
+            quads = collector.quads;
+        }
+
+        private void parseLine(int index, String line, Collector collector) {
+
+            Collector lineCollector = new Collector();
+            try {
+                read(new ByteArrayInputStream(
+                        line.getBytes(StandardCharsets.UTF_8)),
+                        lineCollector, new RejectingErrorHandler(false));
+            } catch (RiotException e) {
+                // The position is within the line, so only the column is
+                // of interest.
+                String message = e.getMessage()
+                        .replaceFirst("^\\[line: \\d+, col: *", "[col: ");
+                rejects.add(new Reject(index, message, line));
+                return;
+            }
+            collector.triples.addAll(lineCollector.triples);
+            collector.quads.addAll(lineCollector.quads);
+        }
+
+        // Reads from a java.io.Reader ignore the profile's LabelToNode, and
+        // so would give different blank nodes in each chunk.
+        private void read(InputStream in, StreamRDF sink,
+                ErrorHandler errorHandler) {
+            createReader(lang, base, bnodeSeed, errorHandler).read(
+                    in, base, null, sink, null);
+        }
+    }
+
+    /**
+     * Passes warnings on to the default error handler, and ends the parse 
+     * on an error without reporting it: the lines that can't be parsed are 
+     * reported once each, as rejects. The warnings of a chunk are held 
+     * until it has parsed, as a chunk that fails is parsed again line by 
+     * line.
+     */
+    private static class RejectingErrorHandler implements ErrorHandler {
+
+        private final List<String> messages;
+        private final List<long[]> positions;
+
+        /**
+         * @param holdWarnings - whether to hold the warnings until 
+         * reportWarnings() is called
+         */
+        RejectingErrorHandler(boolean holdWarnings) {
+            messages = holdWarnings ? new ArrayList<String>() : null;
+            positions = holdWarnings ? new ArrayList<long[]>() : null;
+        }
+
+        @Override
+        public void warning(String message, long line, long col) {
+            if (messages != null) {
+                messages.add(message);
+                positions.add(new long[] { line, col });
+            } else {
+                ErrorHandlerFactory.getDefaultErrorHandler().warning(
+                        message, line, col);
+            }
+        }
+
+        @Override
+        public void error(String message, long line, long col) {
+            throw new RiotException(SysRIOT.fmtMessage(message, line, col));
+        }
+
+        @Override
+        public void fatal(String message, long line, long col) {
+            error(message, line, col);
+        }
+
+        void reportWarnings() {
+            for (int i = 0; i < messages.size(); i++) {
+                ErrorHandlerFactory.getDefaultErrorHandler().warning(
+                        messages.get(i), positions.get(i)[0], 
+                        positions.get(i)[1]);
+            }
+        }
+    }
+
+    private static class ByteBufferInputStream extends InputStream {
+
+        private final ByteBuffer buffer;
+
+        private ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (! buffer.hasRemaining()) {
+                return -1;
+            }
+            len = Math.min(len, buffer.remaining());
+            buffer.get(b, off, len);
+            return len;
+        }
+    }
+
+    private static class Collector extends StreamRDFBase {
+
+        private final List<Triple> triples = new ArrayList<Triple>();
+        private final List<Quad> quads = new ArrayList<Quad>();
+
+        @Override
+        public void triple(Triple triple) {
+            triples.add(triple);
+        }
+
+        @Override
+        public void quad(Quad quad) {
+            quads.add(quad);
+        }
+    }
+
+    /**
+     * A line that failed to parse.
+     */
+    private static class Reject {
+
+        private final int index;
+        private final String message;
+        private final String line;
+
+        /**
+         * @param index - the index of the line in its chunk
+         * @param message - the parser's error message
+         * @param line - the line, without its line end
+         */
+        Reject(int index, String message, String line) {
+            this.index = index;
+            this.message = message;
+            this.line = line;
+        }
+    }
+
+    /**
+     * The reject file: one bad line per line, as the line number, the
+     * error message and the line, separated by tabs. Created on the first
+     * bad line.
+     */
+    private static class Rejects implements AutoCloseable {
+
+        private final File file;
+        private Writer writer;
+
+        Rejects(File file) {
+            this.file = file;
+        }
+
+        void write(long lineNumber, Reject reject) throws IOException {
+
+            LOGGER.debug("Skipping line " + lineNumber + ": " 
+                    + reject.message);
+            if (file == null) {
+                return;
+            }
+            if (writer == null) {
+                writer = Files.newBufferedWriter(
+                        file.toPath(), StandardCharsets.UTF_8);
+            }
+            writer.write(lineNumber + "\t" 
+                    + reject.message.replaceAll("[\t\r\n]", " ") + "\t"
+                    + reject.line.replaceAll("\r$", ""));
+            writer.write('\n');
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (writer != null) {
+                writer.close();
+            }
+        }
+    }
+}
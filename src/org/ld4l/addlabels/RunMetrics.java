@@ -0,0 +1,407 @@
+package org.ld4l.addlabels;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import org.ld4l.addlabels.LabelStats.Stage;
+
+/**
+ * Run-wide metrics. Each file's counts and stage times are recorded as it
+ * is finished; while the run is in flight, progress is logged periodically,
+ * with an estimate of the time remaining from the bytes of input processed
+ * so far. At the end of the run a report is written to the output
+ * directory: run-report.json holds the totals, the rates of each stage, the
+ * new labels by source, histograms of the files' times and throughput, and
+ * a record per file; run-report.csv holds the per-file records, one per
+ * line, for loading into a spreadsheet.
+ */
+class RunMetrics {
+
+    private static final Logger LOGGER =
+            LogManager.getLogger(RunMetrics.class);
+
+    static final String JSON_FILENAME = "run-report.json";
+    static final String CSV_FILENAME = "run-report.csv";
+
+    /**
+     * The metrics of one input file. stats is null if the previous output
+     * of the file was reused.
+     */
+    private static class FileMetrics {
+
+        private final String name;
+        private final long bytes;
+        private final long millis;
+        private final LabelStats stats;
+
+        private FileMetrics(String name, long bytes, long millis,
+                LabelStats stats) {
+            this.name = name;
+            this.bytes = bytes;
+            this.millis = millis;
+            this.stats = stats;
+        }
+    }
+
+    private final long startMillis;
+    private final long startNanos;
+    private final int totalFiles;
+    private final long totalBytes;
+    private final List<FileMetrics> files;
+    private int doneFiles;
+    private long doneBytes;
+    private ScheduledExecutorService reporter;
+
+    /**
+     * Start the clock for a run over the specified input files.
+     * @param inputFiles
+     */
+    RunMetrics(File[] inputFiles) {
+
+        startMillis = System.currentTimeMillis();
+        startNanos = System.nanoTime();
+        totalFiles = inputFiles.length;
+        long bytes = 0;
+        for (File file : inputFiles) {
+            bytes += file.length();
+        }
+        totalBytes = bytes;
+        files = new ArrayList<FileMetrics>(inputFiles.length);
+    }
+
+    /**
+     * Log progress every interval until stop() is called.
+     * @param intervalSeconds
+     */
+    void startProgress(int intervalSeconds) {
+
+        reporter = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "progress");
+            thread.setDaemon(true);
+            return thread;
+        });
+        reporter.scheduleAtFixedRate(this::logProgress, intervalSeconds,
+                intervalSeconds, TimeUnit.SECONDS);
+    }
+
+    void stop() {
+        if (reporter != null) {
+            reporter.shutdownNow();
+        }
+    }
+
+    /**
+     * Record a finished input: a file, or a group of files labelled 
+     * together.
+     * @param input - the input
+     * @param stats - the input's counts, or null if its previous output was
+     * reused
+     * @param startNanos - the System.nanoTime() at which the input was begun
+     */
+    synchronized void fileDone(InputFiles.Input input, LabelStats stats, 
+            long startNanos) {
+
+        long millis = (System.nanoTime() - startNanos) / 1000000;
+        long bytes = input.getSize();
+        files.add(new FileMetrics(input.toString(), bytes, millis, stats));
+        doneFiles += input.getFiles().size();
+        doneBytes += bytes;
+    }
+
+    synchronized void logProgress() {
+
+        long elapsed = getElapsedMillis();
+        String eta = "unknown";
+        if (doneBytes > 0) {
+            eta = formatMillis((long) ((double) elapsed
+                    * (totalBytes - doneBytes) / doneBytes));
+        }
+        LOGGER.info("Progress: " + doneFiles + " of " + totalFiles
+                + " files, " + (doneBytes >> 20) + " of "
+                + (totalBytes >> 20) + " MB ("
+                + (totalBytes > 0 ? doneBytes * 100 / totalBytes : 100)
+                + "%), " + String.format(Locale.ROOT, "%.1f",
+                        perSecond(doneBytes, elapsed) / (1 << 20))
+                + " MB/s, elapsed " + formatMillis(elapsed) + ", ETA "
+                + eta);
+    }
+
+    private long getElapsedMillis() {
+        return (System.nanoTime() - startNanos) / 1000000;
+    }
+
+    /**
+     * Write the run report files to the output directory.
+     * @param dir - the output directory
+     * @param totals - the run-wide counts
+     * @throws IOException
+     */
+    synchronized void write(File dir, LabelStats totals) throws IOException {
+
+        long elapsed = getElapsedMillis();
+        writeJson(new File(dir, JSON_FILENAME), totals, elapsed);
+        writeCsv(new File(dir, CSV_FILENAME), getSources());
+    }
+
+    private void writeJson(File file, LabelStats totals, long elapsed)
+            throws IOException {
+
+        SimpleDateFormat dateFormat =
+                new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'");
+        dateFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+
+        long triples = totals.getTripleCount();
+        long subjects = totals.getSubjectCount();
+        List<Long> fileMillis = new ArrayList<Long>();
+        List<Long> fileRates = new ArrayList<Long>();
+        for (FileMetrics metrics : files) {
+            if (metrics.stats != null) {
+                fileMillis.add(metrics.millis);
+                fileRates.add((long) perSecond(
+                        metrics.stats.getTripleCount(), metrics.millis));
+            }
+        }
+
+        try (BufferedWriter writer = Files.newBufferedWriter(
+                file.toPath(), StandardCharsets.UTF_8)) {
+            writer.write("{\n");
+            writer.write("  \"started\": \""
+                    + dateFormat.format(new Date(startMillis)) + "\",\n");
+            writer.write("  \"elapsedMillis\": " + elapsed + ",\n");
+            writer.write("  \"inputFiles\": " + totalFiles + ",\n");
+            writer.write("  \"inputBytes\": " + totalBytes + ",\n");
+            writer.write("  \"processedFiles\": " + totals.getFileCount()
+                    + ",\n");
+            writer.write("  \"reusedFiles\": "
+                    + (files.size() - fileMillis.size()) + ",\n");
+            writer.write("  \"graphs\": " + totals.getGraphCount() + ",\n");
+            writer.write("  \"triples\": " + triples + ",\n");
+            writer.write("  \"subjects\": " + subjects + ",\n");
+            writer.write("  \"existingLabels\": " + totals.getExistingLabel()
+                    + ",\n");
+            writer.write("  \"modifiedLabels\": "
+                    + totals.getModifiedLabel() + ",\n");
+            writer.write("  \"newLabels\": " + totals.getNewLabel() + ",\n");
+            writer.write("  \"noLabelMade\": " + totals.getNoLabelMade()
+                    + ",\n");
+            writer.write("  \"duplicateLabels\": "
+                    + totals.getDuplicateLabel() + ",\n");
+            writer.write("  \"skippedBlankNodes\": "
+                    + totals.getSkippedBlankNode() + ",\n");
+            writer.write("  \"dedupHitRate\": " + String.format(Locale.ROOT,
+                    "%.4f", totals.getDedupHitRate()) + ",\n");
+            writer.write("  \"internedLiterals\": "
+                    + totals.getInternLookups() + ",\n");
+            writer.write("  \"distinctInternedLiterals\": "
+                    + totals.getInternDistinct() + ",\n");
+            writer.write("  \"internSavedBytes\": "
+                    + totals.getInternSavedBytes() + ",\n");
+            writer.write("  \"triplesPerSecond\": "
+                    + round(perSecond(triples, elapsed)) + ",\n");
+            writer.write("  \"subjectsPerSecond\": "
+                    + round(perSecond(subjects, elapsed)) + ",\n");
+            writer.write("  \"stages\": {");
+            String separator = "\n";
+            for (Stage stage : Stage.values()) {
+                long millis = totals.getMillis(stage);
+                writer.write(separator + "    \"" + stage + "\": {"
+                        + "\"millis\": " + millis
+                        + ", \"triplesPerSecond\": "
+                        + round(perSecond(triples, millis))
+                        + ", \"subjectsPerSecond\": "
+                        + round(perSecond(subjects, millis)) + "}");
+                separator = ",\n";
+            }
+            writer.write("\n  },\n");
+            writer.write("  \"newLabelsBySource\": "
+                    + toJson(totals.getNewLabelsBySource()) + ",\n");
+            writer.write("  \"fileMillisHistogram\": "
+                    + toJson(histogram(fileMillis)) + ",\n");
+            writer.write("  \"fileTriplesPerSecondHistogram\": "
+                    + toJson(histogram(fileRates)) + ",\n");
+            writer.write("  \"files\": [");
+            separator = "\n";
+            for (FileMetrics metrics : files) {
+                writer.write(separator + "    " + toJson(metrics));
+                separator = ",\n";
+            }
+            writer.write("\n  ]\n}\n");
+        }
+    }
+
+    private void writeCsv(File file, Set<String> sources)
+            throws IOException {
+
+        try (BufferedWriter writer = Files.newBufferedWriter(
+                file.toPath(), StandardCharsets.UTF_8)) {
+            writer.write("file,bytes,reused,millis,triples,subjects,"
+                    + "existing_labels,new_labels,no_label_made,"
+                    + "duplicate_labels");
+            for (Stage stage : Stage.values()) {
+                writer.write("," + stage + "_millis");
+            }
+            for (String source : sources) {
+                writer.write("," + csvField("new_labels_" + source));
+            }
+            writer.newLine();
+
+            for (FileMetrics metrics : files) {
+                LabelStats stats = metrics.stats;
+                writer.write(csvField(metrics.name) + "," + metrics.bytes
+                        + "," + (stats == null) + "," + metrics.millis);
+                if (stats == null) {
+                    for (int i = 0;
+                            i < 6 + Stage.values().length + sources.size();
+                            i++) {
+                        writer.write(",");
+                    }
+                } else {
+                    writer.write("," + stats.getTripleCount() + ","
+                            + stats.getSubjectCount() + ","
+                            + stats.getExistingLabel() + ","
+                            + stats.getNewLabel() + ","
+                            + stats.getNoLabelMade() + ","
+                            + stats.getDuplicateLabel());
+                    for (Stage stage : Stage.values()) {
+                        writer.write("," + stats.getMillis(stage));
+                    }
+                    Map<String, Integer> bySource =
+                            stats.getNewLabelsBySource();
+                    for (String source : sources) {
+                        Integer count = bySource.get(source);
+                        writer.write("," + (count == null ? 0 : count));
+                    }
+                }
+                writer.newLine();
+            }
+        }
+    }
+
+    /**
+     * Return the sources of new labels in any file, in order.
+     */
+    private Set<String> getSources() {
+
+        Set<String> sources = new TreeSet<String>();
+        for (FileMetrics metrics : files) {
+            if (metrics.stats != null) {
+                sources.addAll(metrics.stats.getNewLabelsBySource().keySet());
+            }
+        }
+        return sources;
+    }
+
+    private static String toJson(FileMetrics metrics) {
+
+        String json = "{\"file\": " + jsonString(metrics.name)
+                + ", \"bytes\": " + metrics.bytes
+                + ", \"reused\": " + (metrics.stats == null)
+                + ", \"millis\": " + metrics.millis;
+        LabelStats stats = metrics.stats;
+        if (stats != null) {
+            json += ", \"triples\": " + stats.getTripleCount()
+                    + ", \"subjects\": " + stats.getSubjectCount()
+                    + ", \"existingLabels\": " + stats.getExistingLabel()
+                    + ", \"newLabels\": " + stats.getNewLabel()
+                    + ", \"noLabelMade\": " + stats.getNoLabelMade()
+                    + ", \"duplicateLabels\": " + stats.getDuplicateLabel()
+                    + ", \"skippedBlankNodes\": " 
+                    + stats.getSkippedBlankNode();
+            for (Stage stage : Stage.values()) {
+                json += ", \"" + stage + "Millis\": "
+                        + stats.getMillis(stage);
+            }
+            json += ", \"newLabelsBySource\": "
+                    + toJson(stats.getNewLabelsBySource());
+        }
+        return json + "}";
+    }
+
+    private static String toJson(Map<String, ?> map) {
+
+        StringBuilder json = new StringBuilder("{");
+        for (Map.Entry<String, ?> entry : map.entrySet()) {
+            if (json.length() > 1) {
+                json.append(", ");
+            }
+            json.append(jsonString(entry.getKey())).append(": ")
+                    .append(entry.getValue());
+        }
+        return json.append("}").toString();
+    }
+
+    /**
+     * Count the values in power-of-two buckets, keyed by the bucket's upper
+     * bound, with the empty buckets left out.
+     */
+    private static Map<String, Integer> histogram(List<Long> values) {
+
+        Map<Long, Integer> buckets = new TreeMap<Long, Integer>();
+        for (long value : values) {
+            long bound = value <= 1 ? 1 : Long.highestOneBit(value - 1) << 1;
+            Integer count = buckets.get(bound);
+            buckets.put(bound, count == null ? 1 : count + 1);
+        }
+        // Keyed by strings for JSON, in numeric order.
+        Map<String, Integer> histogram = 
+                new LinkedHashMap<String, Integer>();
+        for (Map.Entry<Long, Integer> bucket : buckets.entrySet()) {
+            histogram.put("<=" + bucket.getKey(), bucket.getValue());
+        }
+        return histogram;
+    }
+
+    private static String jsonString(String string) {
+
+        StringBuilder json = new StringBuilder("\"");
+        for (char c : string.toCharArray()) {
+            if (c == '"' || c == '\\') {
+                json.append('\\').append(c);
+            } else if (c < 0x20) {
+                json.append(String.format("\\u%04x", (int) c));
+            } else {
+                json.append(c);
+            }
+        }
+        return json.append('"').toString();
+    }
+
+    private static String csvField(String field) {
+        return field.contains(",") || field.contains("\"")
+                ? "\"" + field.replace("\"", "\"\"") + "\"" : field;
+    }
+
+    private static double perSecond(long count, long millis) {
+        return millis > 0 ? count * 1000.0 / millis : 0;
+    }
+
+    private static String round(double value) {
+        return String.format(Locale.ROOT, "%.1f", value);
+    }
+
+    private static String formatMillis(long millis) {
+        long seconds = millis / 1000;
+        return String.format("%d:%02d:%02d",
+                seconds / 3600, seconds / 60 % 60, seconds % 60);
+    }
+}
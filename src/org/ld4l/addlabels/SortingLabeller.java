@@ -0,0 +1,375 @@
+package org.ld4l.addlabels;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+
+import org.apache.jena.graph.Node;
+import org.apache.jena.graph.NodeFactory;
+import org.apache.jena.graph.Triple;
+import org.apache.jena.rdf.model.Model;
+import org.apache.jena.rdf.model.ModelFactory;
+import org.apache.jena.riot.RiotException;
+import org.apache.jena.riot.system.StreamRDF;
+import org.apache.jena.riot.system.StreamRDFBase;
+import org.apache.jena.sparql.core.Quad;
+import org.apache.jena.vocabulary.RDFS;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import org.ld4l.addlabels.ExternalSorter.Record;
+import org.ld4l.addlabels.ExternalSorter.RecordIterator;
+import org.ld4l.addlabels.LabelStats.Stage;
+
+/**
+ * Labels a file whose subjects don't fit in memory. Like StreamingLabeller,
+ * it copies every triple straight through to the output and appends the
+ * new rdfs:label triples, but instead of holding per-subject state it
+ * writes what LabelMaker needs to an ExternalSorter keyed by subject:
+ *
+ *   - a record for each subject
+ *   - a record for each subject that has an rdfs:label
+ *   - each triple of a predicate LabelMaker looks at
+ *
+ * A second sorter, keyed by title, joins references by a link predicate,
+ * such as ld4l:hasTitle, to the titles' rdfs:labels; its output is added to the first sorter as a title
+ * label record keyed by the referring subject. Each subject's records then
+ * come out of the first sorter together, and are labelled in turn from a
+ * scratch model. Memory is bounded by the sorters' budget, and the size of
+ * the input only by the temporary space.
+ */
+class SortingLabeller {
+
+    private static final Logger LOGGER =
+            LogManager.getLogger(SortingLabeller.class);
+
+    private static final Node LABEL = RDFS.label.asNode();
+
+    // Records keyed by subject
+    private static final byte SUBJECT = 0;
+    private static final byte LABELLED = 1;
+    private static final byte PROPERTY = 2;
+    private static final byte TITLE_LABEL = 3;
+
+    // Records keyed by title
+    private static final byte REFERENCE = 4;
+    private static final byte LABEL_OF_TITLE = 5;
+
+    private final LabelMaker labelMaker;
+    private final RecoveringParser parser;
+    private final boolean delta;
+    private final long memoryBudget;
+    private final File tempDir;
+    private final LabelledSubjects labelledSubjects;
+
+    /**
+     * @param labelMaker
+     * @param parser - the parser for the input files
+     * @param delta - write only the new rdfs:label triples
+     * @param memoryBudget - the heap, in bytes, for sorting each file
+     * @param tempDir - the directory for the sorters' temporary files
+     * @param labelledSubjects - the subjects labelled by other files, not 
+     * to be labelled again, or null to label every subject
+     */
+    SortingLabeller(LabelMaker labelMaker, RecoveringParser parser,
+            boolean delta, long memoryBudget, File tempDir,
+            LabelledSubjects labelledSubjects) {
+        this.labelMaker = labelMaker;
+        this.parser = parser;
+        this.delta = delta;
+        this.memoryBudget = memoryBudget;
+        this.tempDir = tempDir;
+        this.labelledSubjects = labelledSubjects;
+    }
+
+    /**
+     * Copy the input files to the output, adding an rdfs:label to each
+     * subject that doesn't have one, where possible.
+     * @param input - the input files
+     * @param output - the output stage
+     * @param stats - counts for this input
+     * @return the output files
+     * @throws IOException if the temporary files can't be written or read,
+     * or the output written
+     */
+    List<File> addLabelsToFile(InputFiles.Input input, RdfOutput output,
+            LabelStats stats) throws IOException {
+
+        List<File> files = input.getFiles();
+
+        // The sorters share the budget; see RecordCollector.
+        try (ExternalSorter subjects =
+                    new ExternalSorter(tempDir, memoryBudget);
+                ExternalSorter titles =
+                    new ExternalSorter(tempDir, memoryBudget);
+                RdfOutput.Shards out = 
+                    output.openShards(input.getBasename())) {
+
+            StreamRDF writer = out.getStream();
+            writer.start();
+
+            RecordCollector collector = new RecordCollector(
+                    delta ? new StreamRDFBase() : writer, subjects, titles,
+                    labelMaker, memoryBudget);
+            long parseStart = System.nanoTime();
+            for (int i = 0; i < files.size(); i++) {
+                File file = files.get(i);
+                try {
+                    parser.parse(file, collector, UUID.randomUUID(),
+                            output.getRejectFile(input.getRejectBasename(i)));
+                } catch (RiotException e) {
+                    LOGGER.error("ERROR: RDF parsing error in file "
+                            + file.getName() + ": " + e.getMessage()
+                            + ". Skipping rest of file.");
+                }
+                if (collector.exception != null) {
+                    throw collector.exception;
+                }
+            }
+            stats.time(Stage.parse, parseStart);
+            stats.triples(collector.tripleCount);
+
+            long labelStart = System.nanoTime();
+            joinTitleLabels(titles, subjects);
+            writeLabels(subjects, writer, stats);
+            stats.time(Stage.label, labelStart);
+
+            long writeStart = System.nanoTime();
+            writer.finish();
+            List<File> outFiles = out.commit();
+            stats.time(Stage.write, writeStart);
+
+            LOGGER.info("Sorted "
+                    + (subjects.getRecordCount() + titles.getRecordCount())
+                    + " records for " + input + " in "
+                    + (subjects.getRunCount() + titles.getRunCount())
+                    + " runs and "
+                    + (subjects.getMergePasses() + titles.getMergePasses())
+                    + " merge passes, using "
+                    + ((subjects.getTempBytes() + titles.getTempBytes())
+                            >> 20)
+                    + " MB of temporary space");
+            return outFiles;
+        }
+    }
+
+    /**
+     * Add a title label record for each subject that references a title
+     * with an rdfs:label.
+     */
+    private void joinTitleLabels(ExternalSorter titles,
+            ExternalSorter subjects) throws IOException {
+
+        try (RecordIterator records = titles.sorted()) {
+            Record next = records.hasNext() ? records.next() : null;
+            while (next != null) {
+                String title = next.key;
+                Node label = null;
+                List<Node> references = new ArrayList<Node>(1);
+                for (; next != null && next.key.equals(title);
+                        next = records.hasNext() ? records.next() : null) {
+                    if (next.kind == REFERENCE) {
+                        references.add(next.nodes[0]);
+                    } else if (label == null) {
+                        label = next.nodes[0];
+                    }
+                }
+                if (label == null) {
+                    continue;
+                }
+                Node titleNode = toNode(title);
+                for (Node subject : references) {
+                    subjects.add(new Record(
+                            key(subject), TITLE_LABEL, titleNode, label));
+                }
+            }
+        }
+    }
+
+    /**
+     * Make a label for each unlabelled subject and write it out.
+     */
+    private void writeLabels(ExternalSorter subjects, StreamRDF writer,
+            LabelStats stats) throws IOException {
+
+        Model scratch = ModelFactory.createDefaultModel();
+
+        try (RecordIterator records = subjects.sorted()) {
+            Record next = records.hasNext() ? records.next() : null;
+            while (next != null) {
+                String key = next.key;
+                boolean isSubject = false;
+                boolean labelled = false;
+                scratch.removeAll();
+                for (; next != null && next.key.equals(key);
+                        next = records.hasNext() ? records.next() : null) {
+                    if (next.kind == SUBJECT) {
+                        isSubject = true;
+                    } else if (next.kind == LABELLED) {
+                        labelled = true;
+                    } else if (! labelled) {
+                        addToScratch(scratch, key, next);
+                    }
+                }
+                if (! isSubject) {
+                    continue;
+                }
+
+                stats.subject();
+                if (labelled) {
+                    stats.existingLabel();
+                    continue;
+                }
+
+                Node subject = toNode(key);
+                if (delta && subject.isBlank()) {
+                    stats.skippedBlankNode();
+                    continue;
+                }
+                boolean deduplicated = labelledSubjects != null 
+                        && subject.isURI();
+                if (deduplicated 
+                        && labelledSubjects.contains(subject.getURI())) {
+                    stats.duplicateLabel();
+                    continue;
+                }
+                String label = labelMaker.makeLabel(
+                        scratch.wrapAsResource(subject), stats);
+                if (label != null && deduplicated 
+                        && ! labelledSubjects.add(subject.getURI())) {
+                    // Labelled by another file since
+                    stats.duplicateLabel();
+                } else if (label != null) {
+                    writer.triple(Triple.create(subject, LABEL,
+                            NodeFactory.createLiteral(label)));
+                    stats.newLabel();
+                } else {
+                    stats.noLabelMade();
+                }
+            }
+        }
+    }
+
+    private void addToScratch(Model scratch, String key, Record record) {
+
+        if (record.kind == PROPERTY) {
+            scratch.getGraph().add(Triple.create(
+                    toNode(key), record.nodes[0], record.nodes[1]));
+        } else if (record.kind == TITLE_LABEL) {
+            scratch.getGraph().add(Triple.create(
+                    record.nodes[0], LABEL, record.nodes[1]));
+        }
+    }
+
+    /**
+     * Return the sort key of a subject or title: its URI or blank node
+     * label, with a prefix to tell them apart.
+     */
+    private static String key(Node node) {
+        return node.isURI() ? "<" + node.getURI()
+                : "_:" + node.getBlankNodeLabel();
+    }
+
+    private static Node toNode(String key) {
+        return key.startsWith("<")
+                ? NodeFactory.createURI(key.substring(1))
+                : NodeFactory.createBlankNode(key.substring(2));
+    }
+
+    /**
+     * Passes each triple through to the output and adds the records for it
+     * to the sorters. The sorters share the memory budget by the records 
+     * they actually hold: every literal rdfs:label is recorded for the 
+     * titles, since the references to it may come later, so in data where 
+     * most subjects are labelled the titles sorter gets about as many 
+     * records as the subjects sorter. When the buffers of the two together
+     * reach the budget, the larger is written to a run.
+     */
+    private static class RecordCollector extends StreamRDFBase {
+
+        private final StreamRDF passThrough;
+        private final ExternalSorter subjects;
+        private final ExternalSorter titles;
+        private final Set<Node> labelPredicates;
+        private final Set<Node> linkPredicates;
+        private final long memoryBudget;
+        private Node lastSubject;
+        private long tripleCount;
+        // StreamRDF can't throw checked exceptions, so a failure to write
+        // a run is kept here, and the records that follow are ignored.
+        private IOException exception;
+
+        private RecordCollector(StreamRDF passThrough,
+                ExternalSorter subjects, ExternalSorter titles,
+                LabelMaker labelMaker, long memoryBudget) {
+            this.passThrough = passThrough;
+            this.subjects = subjects;
+            this.titles = titles;
+            this.labelPredicates = labelMaker.getLabelPredicates();
+            this.linkPredicates = labelMaker.getLinkPredicates();
+            this.memoryBudget = memoryBudget;
+        }
+
+        @Override
+        public void triple(Triple triple) {
+
+            passThrough.triple(triple);
+            tripleCount++;
+            if (exception != null) {
+                return;
+            }
+
+            Node subject = triple.getSubject();
+            Node predicate = triple.getPredicate();
+            Node object = triple.getObject();
+            String key = key(subject);
+
+            try {
+                // Triples usually come grouped by subject, so this keeps
+                // the subject records down to about one per subject.
+                if (! subject.equals(lastSubject)) {
+                    subjects.add(new Record(key, SUBJECT));
+                    lastSubject = subject;
+                }
+
+                if (predicate.equals(LABEL)) {
+                    subjects.add(new Record(key, LABELLED));
+                    if (object.isLiteral()) {
+                        titles.add(new Record(key, LABEL_OF_TITLE, object));
+                    }
+                } else if (labelPredicates.contains(predicate)) {
+                    subjects.add(new Record(key, PROPERTY, predicate, object));
+                    if (linkPredicates.contains(predicate)
+                            && ! object.isLiteral()) {
+                        titles.add(new Record(key(object), REFERENCE, subject));
+                    }
+                }
+                long subjectsSize = subjects.getBufferSize();
+                long titlesSize = titles.getBufferSize();
+                if (subjectsSize + titlesSize >= memoryBudget) {
+                    (subjectsSize >= titlesSize ? subjects : titles).flush();
+                }
+            } catch (IOException e) {
+                exception = e;
+            }
+        }
+
+        @Override
+        public void quad(Quad quad) {
+            triple(quad.asTriple());
+        }
+
+        @Override
+        public void base(String base) {
+            passThrough.base(base);
+        }
+
+        @Override
+        public void prefix(String prefix, String iri) {
+            passThrough.prefix(prefix, iri);
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package org.ld4l.addlabels;
+
+import java.io.OutputStream;
+
+import org.apache.jena.atlas.io.AWriter;
+import org.apache.jena.atlas.io.IO;
+import org.apache.jena.graph.Node;
+import org.apache.jena.graph.Triple;
+import org.apache.jena.riot.out.NodeFormatter;
+import org.apache.jena.riot.out.NodeFormatterNT;
+import org.apache.jena.riot.system.StreamRDFBase;
+import org.apache.jena.sparql.core.Quad;
+
+/**
+ * Writes triples as a SPARQL Update request of INSERT DATA operations, each
+ * holding a batch of triples, so that a store can apply a large delta 
+ * without parsing one huge operation.
+ */
+class SparqlUpdateWriter extends StreamRDFBase {
+
+    private static final int BATCH_SIZE = 1000;
+
+    private final AWriter out;
+    private final NodeFormatter formatter;
+    private int batchCount;
+
+    SparqlUpdateWriter(OutputStream out) {
+        this.out = IO.wrapUTF8(out);
+        this.formatter = new NodeFormatterNT();
+    }
+
+    @Override
+    public void triple(Triple triple) {
+
+        if (batchCount == 0) {
+            out.write("INSERT DATA {\n");
+        }
+        out.write("  ");
+        format(triple.getSubject());
+        format(triple.getPredicate());
+        format(triple.getObject());
+        out.write(".\n");
+
+        if (++batchCount == BATCH_SIZE) {
+            endBatch();
+        }
+    }
+
+    @Override
+    public void quad(Quad quad) {
+        triple(quad.asTriple());
+    }
+
+    @Override
+    public void finish() {
+        if (batchCount > 0) {
+            endBatch();
+        }
+        out.flush();
+    }
+
+    private void endBatch() {
+        out.write("} ;\n");
+        batchCount = 0;
+    }
+
+    private void format(Node node) {
+        formatter.format(out, node);
+        out.write(" ");
+    }
+}
@@ -0,0 +1,459 @@
+package org.ld4l.addlabels;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+import org.apache.jena.graph.Node;
+import org.apache.jena.graph.NodeFactory;
+import org.apache.jena.graph.Triple;
+import org.apache.jena.rdf.model.Model;
+import org.apache.jena.rdf.model.ModelFactory;
+import org.apache.jena.riot.RiotException;
+import org.apache.jena.riot.system.StreamRDF;
+import org.apache.jena.riot.system.StreamRDFBase;
+import org.apache.jena.sparql.core.Quad;
+import org.apache.jena.vocabulary.RDFS;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import org.ld4l.addlabels.LabelStats.Stage;
+
+/**
+ * Labels a file in a single streaming pass without building a Model of the
+ * whole file. Every triple is written straight through to the output as it
+ * is parsed; only the triples LabelMaker needs are retained, and only for
+ * subjects that don't yet have an rdfs:label. When the input is exhausted,
+ * a label is made for each unlabelled subject from a small scratch model
+ * holding just that subject's retained triples, and the new rdfs:label
+ * triples are appended to the output.
+ *
+ * The rdfs:label of a title is retained only if the title has already been
+ * referenced by a link predicate, such as ld4l:hasTitle, when the label is
+ * read. If a title's label precedes the reference, the file is read a
+ * second time to collect just the missing title labels.
+ *
+ * Optionally, the file is first prescanned for the subjects that have an
+ * rdfs:label, which are kept in a LabelledSubjects set, so that nothing is
+ * retained for them on the main pass, not even a map entry, and the triples
+ * of a subject whose label comes after them aren't retained in the
+ * meantime. Memory then depends on the number of unlabelled subjects, plus
+ * a few bytes for each labelled one, which saves heap only when many 
+ * subjects are already labelled, and costs time: the file is read twice.
+ * Labelled subjects are told apart by fingerprint; in exact mode, the 
+ * default, matches are confirmed against the subjects, written to a 
+ * temporary file.
+ */
+class StreamingLabeller {
+
+    private static final Logger LOGGER =
+            LogManager.getLogger(StreamingLabeller.class);
+
+    private static final Node LABEL = RDFS.label.asNode();
+
+    private final LabelMaker labelMaker;
+    private final RecoveringParser parser;
+    private final boolean delta;
+    private final LabelDictionary.Storage internStorage;
+    private final LabelledSubjects labelledSubjects;
+    private final LabelledSubjects.Mode prescan;
+    private final File tempDir;
+
+    /**
+     * @param labelMaker
+     * @param parser - the parser for the input files
+     * @param delta - write only the new rdfs:label triples
+     * @param internStorage - the storage of the LabelDictionary to intern 
+     * the literals of the retained triples in, or null not to intern them
+     * @param labelledSubjects - the subjects labelled by other files, not 
+     * to be labelled again, or null to label every subject
+     * @param prescan - how to tell apart the labelled subjects found by a 
+     * prescan of the file, or null not to prescan it
+     * @param tempDir - the directory for the prescan's file in exact mode
+     */
+    StreamingLabeller(LabelMaker labelMaker, RecoveringParser parser, 
+            boolean delta, LabelDictionary.Storage internStorage,
+            LabelledSubjects labelledSubjects, LabelledSubjects.Mode prescan,
+            File tempDir) {
+        this.labelMaker = labelMaker;
+        this.parser = parser;
+        this.delta = delta;
+        this.internStorage = internStorage;
+        this.labelledSubjects = labelledSubjects;
+        this.prescan = prescan;
+        this.tempDir = tempDir;
+    }
+
+    /**
+     * Copy the input files to the output, adding an rdfs:label to each 
+     * subject that doesn't have one, where possible.
+     * @param input - the input files
+     * @param output - the output stage
+     * @param stats - counts for this input
+     * @return the output files
+     * @throws IOException if a file can't be read or the output written
+     */
+    List<File> addLabelsToFile(InputFiles.Input input, RdfOutput output, 
+            LabelStats stats) throws IOException {
+        
+        List<File> files = input.getFiles();
+
+        // Blank node labels must map to the same nodes if a file has to
+        // be read a second time for title labels, and to different nodes
+        // in different files.
+        UUID[] bnodeSeeds = new UUID[files.size()];
+        for (int i = 0; i < files.size(); i++) {
+            bnodeSeeds[i] = UUID.randomUUID();
+        }
+
+        try (RdfOutput.Shards out = 
+                    output.openShards(input.getBasename());
+                LabelledSubjects labelled = prescan != null 
+                    ? new LabelledSubjects(prescan, tempDir) : null) {
+
+            long parseStart = System.nanoTime();
+            if (labelled != null) {
+                prescan(files, bnodeSeeds, labelled);
+                LOGGER.debug("Prescan of " + input + " found " 
+                        + labelled.size() + " labelled subjects");
+            }
+
+            StreamRDF writer = out.getStream();
+            writer.start();
+
+            SubjectCollector collector = new SubjectCollector(
+                    delta ? new StreamRDFBase() : writer, writer,
+                    internStorage != null 
+                            ? new LabelDictionary(internStorage) : null,
+                    labelled);
+            for (int i = 0; i < files.size(); i++) {
+                File file = files.get(i);
+                try {
+                    parser.parse(file, collector, bnodeSeeds[i], 
+                            output.getRejectFile(input.getRejectBasename(i)));
+                } catch (RiotException e) {
+                    LOGGER.error("ERROR: RDF parsing error in file "
+                            + file.getName() + ": " + e.getMessage()
+                            + ". Skipping rest of file.");
+                }
+            }
+
+            Set<Node> missingTitles = collector.getMissingTitleLabels();
+            if (! missingTitles.isEmpty()) {
+                LOGGER.debug("Rereading " + input + " for "
+                        + missingTitles.size() + " title labels");
+                TitleLabelCollector titleCollector =
+                        new TitleLabelCollector(missingTitles,
+                                collector.titleLabels);
+                for (int i = 0; i < files.size(); i++) {
+                    try {
+                        parser.parse(files.get(i), titleCollector, 
+                                bnodeSeeds[i], null);
+                    } catch (RiotException e) {
+                        // Already reported on the first pass
+                    }
+                }
+            }
+            stats.time(Stage.parse, parseStart);
+            stats.triples(collector.tripleCount);
+
+            long labelStart = System.nanoTime();
+            if (labelled != null) {
+                // Not in the map of subjects
+                stats.existingLabels((int) labelled.size());
+                if (labelled.getCollisions() > 0) {
+                    LOGGER.info("Prescan of " + input + ": " 
+                            + labelled.getCollisions() 
+                            + " fingerprint collisions told apart by URI");
+                }
+            }
+            collector.writeLabels(stats);
+            stats.time(Stage.label, labelStart);
+            if (collector.dictionary != null) {
+                collector.dictionary.addTo(stats);
+            }
+            
+            long writeStart = System.nanoTime();
+            writer.finish();
+            List<File> outFiles = out.commit();
+            stats.time(Stage.write, writeStart);
+            return outFiles;
+        }
+    }
+
+    /**
+     * Read the files for the subjects that have an rdfs:label, with the 
+     * same blank nodes as the main pass.
+     */
+    private void prescan(List<File> files, UUID[] bnodeSeeds, 
+            LabelledSubjects labelled) throws IOException {
+
+        StreamRDF collector = new StreamRDFBase() {
+
+            @Override
+            public void triple(Triple triple) {
+                if (triple.getPredicate().equals(LABEL)) {
+                    labelled.add(key(triple.getSubject()));
+                }
+            }
+
+            @Override
+            public void quad(Quad quad) {
+                triple(quad.asTriple());
+            }
+        };
+        for (int i = 0; i < files.size(); i++) {
+            try {
+                parser.parse(files.get(i), collector, bnodeSeeds[i], null);
+            } catch (RiotException e) {
+                // Reported on the main pass
+            }
+        }
+    }
+
+    /**
+     * Return the key of a subject in a LabelledSubjects set: its URI, or 
+     * its blank node label.
+     */
+    private static String key(Node subject) {
+        return subject.isURI() 
+                ? subject.getURI() : "_:" + subject.getBlankNodeLabel();
+    }
+
+    /**
+     * Per-subject state. Subjects that have an rdfs:label all share the
+     * LABELLED instance, so that nothing but the map entry is kept for them.
+     */
+    private static class SubjectState {
+
+        private static final SubjectState LABELLED = new SubjectState();
+
+        private List<Triple> triples;
+
+        private void add(Triple triple) {
+            if (triples == null) {
+                triples = new ArrayList<Triple>(2);
+            }
+            triples.add(triple);
+        }
+    }
+
+    /**
+     * Passes each triple through to the output and retains the per-subject
+     * state needed to make labels.
+     */
+    private class SubjectCollector extends StreamRDFBase {
+
+        private final StreamRDF passThrough;
+        private final StreamRDF writer;
+        private final Map<Node, SubjectState> subjects;
+        private final Set<Node> titles;
+        private final Map<Node, String> titleLabels;
+        private final LabelDictionary dictionary;
+        private final LabelledSubjects labelled;
+        private long tripleCount;
+
+        /**
+         * @param passThrough - receives every input triple
+         * @param writer - receives the new rdfs:label triples
+         * @param dictionary - interns the literals of retained triples, or
+         * null
+         * @param labelled - the labelled subjects found by a prescan, for 
+         * which nothing is retained, or null
+         */
+        private SubjectCollector(StreamRDF passThrough, StreamRDF writer,
+                LabelDictionary dictionary, LabelledSubjects labelled) {
+            this.passThrough = passThrough;
+            this.writer = writer;
+            this.dictionary = dictionary;
+            this.labelled = labelled;
+            this.subjects = new HashMap<Node, SubjectState>();
+            this.titles = new HashSet<Node>();
+            this.titleLabels = new HashMap<Node, String>();
+        }
+
+        @Override
+        public void triple(Triple triple) {
+
+            passThrough.triple(triple);
+            tripleCount++;
+
+            Node subject = triple.getSubject();
+            Node predicate = triple.getPredicate();
+            Node object = triple.getObject();
+
+            if (predicate.equals(LABEL)) {
+                if (labelled == null) {
+                    subjects.put(subject, SubjectState.LABELLED);
+                }
+                if (object.isLiteral() && titles.contains(subject)
+                        && ! titleLabels.containsKey(subject)) {
+                    titleLabels.put(subject, object.getLiteralLexicalForm());
+                }
+                return;
+            }
+
+            SubjectState state = subjects.get(subject);
+            if (state == SubjectState.LABELLED) {
+                return;
+            }
+            if (state == null) {
+                if (labelled != null && labelled.contains(key(subject))) {
+                    return;
+                }
+                state = new SubjectState();
+                subjects.put(subject, state);
+            }
+            if (labelMaker.getLabelPredicates().contains(predicate)) {
+                state.add(dictionary != null 
+                        ? dictionary.intern(triple) : triple);
+                if (labelMaker.getLinkPredicates().contains(predicate)
+                        && ! object.isLiteral()) {
+                    titles.add(object);
+                }
+            }
+        }
+
+        @Override
+        public void quad(Quad quad) {
+            triple(quad.asTriple());
+        }
+
+        @Override
+        public void base(String base) {
+            passThrough.base(base);
+        }
+
+        @Override
+        public void prefix(String prefix, String iri) {
+            passThrough.prefix(prefix, iri);
+        }
+
+        /**
+         * Return the titles referenced by unlabelled subjects whose
+         * rdfs:label was read before the reference, and so wasn't retained.
+         */
+        private Set<Node> getMissingTitleLabels() {
+
+            Set<Node> missing = new HashSet<Node>();
+            for (Node title : titles) {
+                if (! titleLabels.containsKey(title) && isLabelled(title)) {
+                    missing.add(title);
+                }
+            }
+            return missing;
+        }
+
+        private boolean isLabelled(Node subject) {
+            return labelled != null 
+                    ? labelled.contains(key(subject))
+                    : subjects.get(subject) == SubjectState.LABELLED;
+        }
+
+        /**
+         * Make a label for each unlabelled subject and write it out.
+         * @param stats - counts for this file
+         */
+        private void writeLabels(LabelStats stats) {
+
+            Model scratch = ModelFactory.createDefaultModel();
+
+            for (Map.Entry<Node, SubjectState> entry : subjects.entrySet()) {
+                stats.subject();
+                Node subject = entry.getKey();
+                SubjectState state = entry.getValue();
+
+                if (state == SubjectState.LABELLED) {
+                    stats.existingLabel();
+                    continue;
+                }
+                if (delta && subject.isBlank()) {
+                    stats.skippedBlankNode();
+                    continue;
+                }
+
+                boolean deduplicated = labelledSubjects != null 
+                        && subject.isURI();
+                if (deduplicated 
+                        && labelledSubjects.contains(subject.getURI())) {
+                    stats.duplicateLabel();
+                    continue;
+                }
+
+                scratch.removeAll();
+                if (state.triples != null) {
+                    for (Triple triple : state.triples) {
+                        scratch.getGraph().add(triple);
+                        addTitleLabel(scratch, triple);
+                    }
+                }
+
+                String label = labelMaker.makeLabel(
+                        scratch.wrapAsResource(subject), stats);
+                if (label != null && deduplicated 
+                        && ! labelledSubjects.add(subject.getURI())) {
+                    // Labelled by another file since
+                    stats.duplicateLabel();
+                } else if (label != null) {
+                    writer.triple(Triple.create(subject, LABEL,
+                            NodeFactory.createLiteral(label)));
+                    stats.newLabel();
+                } else {
+                    stats.noLabelMade();
+                }
+            }
+        }
+
+        private void addTitleLabel(Model scratch, Triple triple) {
+
+            if (! labelMaker.getLinkPredicates().contains(
+                    triple.getPredicate())) {
+                return;
+            }
+            Node title = triple.getObject();
+            String titleLabel = titleLabels.get(title);
+            if (titleLabel != null) {
+                scratch.getGraph().add(Triple.create(title, LABEL,
+                        NodeFactory.createLiteral(titleLabel)));
+            }
+        }
+    }
+
+    /**
+     * Collects the first rdfs:label of each of the specified titles.
+     */
+    private static class TitleLabelCollector extends StreamRDFBase {
+
+        private final Set<Node> titles;
+        private final Map<Node, String> titleLabels;
+
+        private TitleLabelCollector(
+                Set<Node> titles, Map<Node, String> titleLabels) {
+            this.titles = titles;
+            this.titleLabels = titleLabels;
+        }
+
+        @Override
+        public void triple(Triple triple) {
+
+            Node subject = triple.getSubject();
+            Node object = triple.getObject();
+            if (triple.getPredicate().equals(LABEL) && object.isLiteral()
+                    && titles.contains(subject)
+                    && ! titleLabels.containsKey(subject)) {
+                titleLabels.put(subject, object.getLiteralLexicalForm());
+            }
+        }
+
+        @Override
+        public void quad(Quad quad) {
+            triple(quad.asTriple());
+        }
+    }
+}
@@ -0,0 +1,308 @@
+package org.ld4l.addlabels;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.jena.graph.Graph;
+import org.apache.jena.graph.Node;
+import org.apache.jena.graph.NodeFactory;
+import org.apache.jena.graph.Triple;
+import org.apache.jena.query.Dataset;
+import org.apache.jena.query.ReadWrite;
+import org.apache.jena.rdf.model.Model;
+import org.apache.jena.tdb.TDBFactory;
+import org.apache.jena.util.iterator.ExtendedIterator;
+import org.apache.jena.vocabulary.RDFS;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import org.ld4l.addlabels.ExternalSorter.Record;
+import org.ld4l.addlabels.LabelStats.Stage;
+
+/**
+ * Labels the default graph of a TDB dataset in place, instead of reading
+ * and writing files. The triples are read, and labels made, in a single 
+ * read transaction, through TDB's indexes: the triples come in SPO order,
+ * so each subject's triples are consecutive, and the subjects are never 
+ * collected. The new labels are kept in memory up to a batch, and beyond
+ * that appended to a single temporary file, which is then read back in 
+ * order. They are added in batches, each in its own write transaction, 
+ * once the read transaction has ended, so that the writes don't have to 
+ * be held in the journal while a reader is open.
+ */
+class TdbLabeller {
+
+    private static final Logger LOGGER =
+            LogManager.getLogger(TdbLabeller.class);
+
+    private static final Node LABEL = RDFS.label.asNode();
+    
+    // The records of the spill file have no key.
+    private static final String KEY = "";
+    private static final byte NEW_LABEL = 0;
+
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    // Files that every TDB dataset directory holds
+    private static final String[] DATASET_FILES = { "nodes.dat", "SPO.dat" };
+
+    /**
+     * The new labels: the first batch in memory, and the rest in a 
+     * temporary file.
+     */
+    private static class NewLabels implements AutoCloseable {
+
+        private final List<Triple> batch;
+        private final int batchSize;
+        private final File tempDir;
+        private File file;
+        private DataOutputStream out;
+
+        private NewLabels(int batchSize, File tempDir) {
+            this.batch = new ArrayList<Triple>(batchSize);
+            this.batchSize = batchSize;
+            this.tempDir = tempDir;
+        }
+
+        private void add(Triple triple) throws IOException {
+
+            if (out == null && batch.size() < batchSize) {
+                batch.add(triple);
+            } else {
+                if (out == null) {
+                    tempDir.mkdirs();
+                    file = File.createTempFile("labels", ".bin", tempDir);
+                    out = new DataOutputStream(new BufferedOutputStream(
+                            new FileOutputStream(file), BUFFER_SIZE));
+                    LOGGER.debug("Spilling new labels to " + file);
+                    for (Triple spilled : batch) {
+                        write(spilled);
+                    }
+                    batch.clear();
+                }
+                write(triple);
+            }
+        }
+
+        private void write(Triple triple) throws IOException {
+            ExternalSorter.write(out, new Record(KEY, NEW_LABEL, 
+                    triple.getSubject(), triple.getObject()));
+        }
+
+        /**
+         * Pass each batch of the new labels, in the order they were added,
+         * to the writer, and return the number of labels. No more labels 
+         * may be added.
+         */
+        private long replay(BatchWriter writer) throws IOException {
+
+            long count = 0;
+            if (out == null) {
+                if (! batch.isEmpty()) {
+                    writer.write(batch);
+                    count += batch.size();
+                }
+                return count;
+            }
+            out.close();
+            out = null;
+            try (DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(
+                            new FileInputStream(file), BUFFER_SIZE))) {
+                Record record;
+                while ((record = ExternalSorter.read(in)) != null) {
+                    batch.add(Triple.create(
+                            record.nodes[0], LABEL, record.nodes[1]));
+                    if (batch.size() == batchSize) {
+                        writer.write(batch);
+                        count += batch.size();
+                        batch.clear();
+                    }
+                }
+            }
+            if (! batch.isEmpty()) {
+                writer.write(batch);
+                count += batch.size();
+            }
+            return count;
+        }
+
+        @Override
+        public void close() {
+            
+            if (file == null) {
+                return;
+            }
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    // Deleted anyway
+                }
+            }
+            if (! file.delete() && file.exists()) {
+                LOGGER.warn("Can't delete temporary file " + file);
+            }
+        }
+    }
+
+    private interface BatchWriter {
+        void write(List<Triple> batch);
+    }
+
+    private final LabelMaker labelMaker;
+    private final int batchSize;
+    private final File tempDir;
+
+    /**
+     * @param labelMaker
+     * @param batchSize - the number of statements to add per write
+     * transaction
+     * @param tempDir - the directory for the new labels that don't fit in
+     * a batch
+     */
+    TdbLabeller(LabelMaker labelMaker, int batchSize, File tempDir) {
+        this.labelMaker = labelMaker;
+        this.batchSize = batchSize;
+        this.tempDir = tempDir;
+    }
+
+    /**
+     * Add an rdfs:label to each subject in the dataset's default graph that
+     * doesn't have one, where possible.
+     * @param dir - the TDB dataset directory
+     * @param stats - counts for the dataset
+     */
+    void addLabels(File dir, LabelStats stats) {
+
+        // TDB would create an empty dataset in its place.
+        if (! isDataset(dir)) {
+            LOGGER.error("ERROR: " + dir + " is not a TDB dataset "
+                    + "directory. Aborting.");
+            return;
+        }
+        Dataset dataset = TDBFactory.createDataset(dir.toString());
+        try (NewLabels labels = new NewLabels(batchSize, tempDir)) {
+            readSubjects(dataset, labels, stats);
+            long written = writeLabels(dataset, labels, stats);
+            LOGGER.info("Added " + written + " labels to "
+                    + dir.getName() + ".");
+        } catch (IOException e) {
+            LOGGER.error("ERROR: can't keep new labels: " + e.getMessage()
+                    + ". Labels added so far are committed.");
+        } finally {
+            TDBFactory.release(dataset);
+        }
+    }
+
+    /**
+     * Return true if the directory holds a TDB dataset.
+     * @param dir
+     */
+    private static boolean isDataset(File dir) {
+        
+        for (String name : DATASET_FILES) {
+            if (! new File(dir, name).isFile()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void readSubjects(Dataset dataset, NewLabels labels, 
+            LabelStats stats) throws IOException {
+
+        long start = System.nanoTime();
+
+        dataset.begin(ReadWrite.READ);
+        try {
+            Model model = dataset.getDefaultModel();
+            ExtendedIterator<Triple> triples = model.getGraph().find(
+                    Node.ANY, Node.ANY, Node.ANY);
+            try {
+                Node subject = null;
+                boolean labelled = false;
+                while (triples.hasNext()) {
+                    Triple triple = triples.next();
+                    if (! triple.getSubject().equals(subject)) {
+                        if (subject != null) {
+                            label(model, subject, labelled, labels, stats);
+                        }
+                        subject = triple.getSubject();
+                        labelled = false;
+                    }
+                    if (triple.getPredicate().equals(LABEL)) {
+                        labelled = true;
+                    }
+                }
+                if (subject != null) {
+                    label(model, subject, labelled, labels, stats);
+                }
+            } finally {
+                triples.close();
+            }
+        } finally {
+            dataset.end();
+            stats.time(Stage.label, start);
+        }
+    }
+
+    private void label(Model model, Node subject, boolean labelled, 
+            NewLabels labels, LabelStats stats) throws IOException {
+        
+        stats.subject();
+        if (labelled) {
+            stats.existingLabel();
+            return;
+        }
+
+        String label = labelMaker.makeLabel(
+                model.wrapAsResource(subject), stats);
+        if (label == null) {
+            stats.noLabelMade();
+            return;
+        }
+
+        labels.add(Triple.create(subject, LABEL, 
+                NodeFactory.createLiteral(label)));
+        stats.newLabel();
+    }
+
+    /**
+     * Add the new labels in batches, each in a write transaction, and 
+     * return the number added.
+     */
+    private long writeLabels(Dataset dataset, NewLabels labels, 
+            LabelStats stats) throws IOException {
+
+        long start = System.nanoTime();
+        try {
+            return labels.replay(batch -> writeBatch(dataset, batch));
+        } finally {
+            stats.time(Stage.write, start);
+        }
+    }
+
+    private static void writeBatch(Dataset dataset, List<Triple> batch) {
+        
+        dataset.begin(ReadWrite.WRITE);
+        try {
+            Graph graph = dataset.getDefaultModel().getGraph();
+            for (Triple triple : batch) {
+                graph.add(triple);
+            }
+            dataset.commit();
+        } finally {
+            dataset.end();
+        }
+        LOGGER.debug("Committed " + batch.size() + " labels");
+    }
+}
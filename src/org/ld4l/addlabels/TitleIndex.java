@@ -0,0 +1,345 @@
+package org.ld4l.addlabels;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.UUID;
+
+import org.apache.jena.graph.Node;
+import org.apache.jena.graph.Triple;
+import org.apache.jena.riot.RiotException;
+import org.apache.jena.riot.system.StreamRDFBase;
+import org.apache.jena.sparql.core.Quad;
+import org.apache.jena.vocabulary.RDFS;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * An on-disk index from resource URIs to rdfs:label values, built in a
+ * first pass over all the input files. LabelMaker consults it when the
+ * title of a Work or Instance has no label in the same model, which is the
+ * case when the converter wrote the title to a different file.
+ *
+ * The index is an open-addressing hash table keyed by URI fingerprint, in a
+ * memory-mapped file, plus a file of entries, each the UTF-8 URI and label
+ * of a resource. Neither is held on the heap, so the index scales to tens 
+ * of millions of titles. A fingerprint that matches is confirmed against 
+ * the URI of the entry, as in LabelledSubjects, so that a resource never 
+ * gets the label of another whose fingerprint is the same. Lookups are 
+ * thread-safe.
+ */
+class TitleIndex {
+
+    private static final Logger LOGGER =
+            LogManager.getLogger(TitleIndex.class);
+
+    private static final Node LABEL = RDFS.label.asNode();
+
+    // Each slot is a fingerprint followed by the entry's offset in the
+    // strings file (high 40 bits) and its length in bytes (low 24 bits).
+    // An entry is the length of the URI, the URI, and the label.
+    private static final int SLOT_BYTES = 16;
+    private static final int LENGTH_BITS = 24;
+    private static final int MAX_LENGTH = (1 << LENGTH_BITS) - 1;
+
+    // Slots per mapped segment: 2^26 slots of 16 bytes is 1 GB, safely
+    // under the 2 GB limit of a single mapping.
+    private static final int SEGMENT_BITS = 26;
+    private static final long SEGMENT_MASK = (1L << SEGMENT_BITS) - 1;
+
+    private final File dir;
+    private final MappedByteBuffer[] segments;
+    private final long mask;
+    private final RandomAccessFile stringsFile;
+    private final FileChannel strings;
+    private int entryCount;
+
+    private TitleIndex(File dir, long capacity) throws IOException {
+
+        this.dir = dir;
+        this.mask = capacity - 1;
+
+        long segmentCount = (capacity + SEGMENT_MASK) >>> SEGMENT_BITS;
+        segments = new MappedByteBuffer[(int) segmentCount];
+        try (RandomAccessFile table =
+                new RandomAccessFile(new File(dir, "table"), "rw")) {
+            table.setLength(capacity * SLOT_BYTES);
+            FileChannel channel = table.getChannel();
+            for (int i = 0; i < segments.length; i++) {
+                long start = ((long) i << SEGMENT_BITS) * SLOT_BYTES;
+                long size = Math.min(capacity * SLOT_BYTES - start,
+                        (SEGMENT_MASK + 1) * SLOT_BYTES);
+                segments[i] = channel.map(
+                        FileChannel.MapMode.READ_WRITE, start, size);
+            }
+        }
+
+        stringsFile = new RandomAccessFile(new File(dir, "strings"), "r");
+        strings = stringsFile.getChannel();
+    }
+
+    /**
+     * Read all the input files and index the rdfs:label of every subject
+     * with a URI.
+     * @param inputFiles - the files to index
+     * @param parser - the parser for the input files
+     * @param dir - directory for the index files. Will be created if it does
+     * not exist.
+     * @return the index
+     * @throws IOException
+     */
+    static TitleIndex build(File[] inputFiles, RecoveringParser parser, 
+            File dir) throws IOException {
+
+        dir.mkdirs();
+        // Left by a run that died; the table must start empty.
+        Files.deleteIfExists(new File(dir, "table").toPath());
+        File entriesFile = new File(dir, "entries");
+
+        // Write the URIs and labels, and a fingerprint, offset and length 
+        // for each, sequentially; the number of entries then sizes the 
+        // table.
+        LabelCollector collector;
+        try (DataOutputStream entries = new DataOutputStream(
+                    new BufferedOutputStream(
+                            new FileOutputStream(entriesFile)));
+                BufferedOutputStream strings = new BufferedOutputStream(
+                        new FileOutputStream(new File(dir, "strings")))) {
+
+            collector = new LabelCollector(entries, strings);
+            for (File file : inputFiles) {
+                LOGGER.debug("Indexing titles in file " + file.toString());
+                try {
+                    // Bad lines are recorded when the file is labelled.
+                    parser.parse(file, collector, UUID.randomUUID(), null);
+                } catch (RiotException e) {
+                    LOGGER.error("ERROR: RDF parsing error in file "
+                            + file.getName() + ": " + e.getMessage()
+                            + ". Skipping rest of file for title index.");
+                }
+                if (collector.exception != null) {
+                    throw collector.exception;
+                }
+            }
+        }
+
+        // Keep the table at most half full.
+        long capacity = Long.highestOneBit(Math.max(16, collector.count * 2));
+        if (capacity < collector.count * 2) {
+            capacity <<= 1;
+        }
+
+        TitleIndex index = new TitleIndex(dir, capacity);
+        try (DataInputStream entries = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(entriesFile)))) {
+            for (long i = 0; i < collector.count; i++) {
+                index.put(entries.readLong(), entries.readLong());
+            }
+        }
+        entriesFile.delete();
+
+        LOGGER.info("Indexed labels for " + index.entryCount
+                + " resources in " + inputFiles.length + " files.");
+        return index;
+    }
+
+    /**
+     * Return the label of the specified resource, or null if it has none.
+     * @param uri - the URI of the resource
+     * @return the label or null
+     */
+    String getLabel(String uri) {
+
+        long fingerprint = Fingerprint.of(uri);
+        byte[] uriBytes = uri.getBytes(StandardCharsets.UTF_8);
+        for (long slot = fingerprint & mask; ; slot = (slot + 1) & mask) {
+            long stored = getLong(slot, 0);
+            if (stored == 0) {
+                return null;
+            }
+            if (stored == fingerprint) {
+                ByteBuffer entry = readEntry(getLong(slot, 8));
+                if (entry == null) {
+                    return null;
+                }
+                if (matches(entry, uriBytes)) {
+                    return new String(entry.array(), entry.position(), 
+                            entry.remaining(), StandardCharsets.UTF_8);
+                }
+            }
+        }
+    }
+
+    /**
+     * Close and delete the index files. The table stays mapped until the
+     * index is garbage collected, as Java can't unmap a file.
+     */
+    void close() {
+
+        try {
+            stringsFile.close();
+        } catch (IOException e) {
+            LOGGER.warn("Can't close title index: " + e.getMessage());
+        }
+        new File(dir, "table").delete();
+        new File(dir, "strings").delete();
+        dir.delete();
+    }
+
+    private void put(long fingerprint, long location) throws IOException {
+
+        byte[] uriBytes = null;
+        for (long slot = fingerprint & mask; ; slot = (slot + 1) & mask) {
+            long stored = getLong(slot, 0);
+            if (stored == fingerprint) {
+                if (uriBytes == null) {
+                    uriBytes = getUri(location);
+                }
+                ByteBuffer entry = readEntry(getLong(slot, 8));
+                if (entry == null) {
+                    throw new IOException("Can't read title index");
+                }
+                if (matches(entry, uriBytes)) {
+                    // Keep the first label read.
+                    return;
+                }
+                continue;
+            }
+            if (stored == 0) {
+                putLong(slot, 0, fingerprint);
+                putLong(slot, 8, location);
+                entryCount++;
+                return;
+            }
+        }
+    }
+
+    private long getLong(long slot, int offset) {
+        return segments[(int) (slot >>> SEGMENT_BITS)].getLong(
+                (int) ((slot & SEGMENT_MASK) * SLOT_BYTES) + offset);
+    }
+
+    private void putLong(long slot, int offset, long value) {
+        segments[(int) (slot >>> SEGMENT_BITS)].putLong(
+                (int) ((slot & SEGMENT_MASK) * SLOT_BYTES) + offset, value);
+    }
+
+    /**
+     * Read the entry at the location, positioned after the URI's length,
+     * or return null if it can't be read.
+     */
+    private ByteBuffer readEntry(long location) {
+
+        long position = location >>> LENGTH_BITS;
+        ByteBuffer buffer = ByteBuffer.allocate((int) (location & MAX_LENGTH));
+        try {
+            while (buffer.hasRemaining()) {
+                if (strings.read(buffer, position + buffer.position()) < 0) {
+                    throw new IOException("Truncated title index");
+                }
+            }
+        } catch (IOException e) {
+            LOGGER.error("ERROR: can't read title index: " + e.getMessage());
+            return null;
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    private byte[] getUri(long location) throws IOException {
+
+        ByteBuffer entry = readEntry(location);
+        if (entry == null) {
+            throw new IOException("Can't read title index");
+        }
+        byte[] uri = new byte[entry.getInt()];
+        entry.get(uri);
+        return uri;
+    }
+
+    /**
+     * Return true if the entry is of the URI, and if so, leave the entry
+     * positioned at its label.
+     */
+    private static boolean matches(ByteBuffer entry, byte[] uri) {
+
+        if (entry.getInt() != uri.length) {
+            return false;
+        }
+        for (byte b : uri) {
+            if (entry.get() != b) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Writes an entry for the first rdfs:label of each URI subject.
+     */
+    private static class LabelCollector extends StreamRDFBase {
+
+        private final DataOutputStream entries;
+        private final BufferedOutputStream strings;
+        private long offset;
+        private long count;
+        private IOException exception;
+
+        private LabelCollector(
+                DataOutputStream entries, BufferedOutputStream strings) {
+            this.entries = entries;
+            this.strings = strings;
+        }
+
+        @Override
+        public void triple(Triple triple) {
+
+            Node subject = triple.getSubject();
+            Node object = triple.getObject();
+            if (! triple.getPredicate().equals(LABEL) || ! subject.isURI()
+                    || ! object.isLiteral() || exception != null) {
+                return;
+            }
+
+            String uri = subject.getURI();
+            byte[] uriBytes = uri.getBytes(StandardCharsets.UTF_8);
+            byte[] bytes = object.getLiteralLexicalForm().getBytes(
+                    StandardCharsets.UTF_8);
+            int uriLength = Integer.BYTES + uriBytes.length;
+            if (uriLength > MAX_LENGTH) {
+                return;
+            }
+            int length = uriLength 
+                    + Math.min(bytes.length, MAX_LENGTH - uriLength);
+            try {
+                strings.write(ByteBuffer.allocate(Integer.BYTES)
+                        .putInt(uriBytes.length).array());
+                strings.write(uriBytes);
+                strings.write(bytes, 0, length - uriLength);
+                entries.writeLong(Fingerprint.of(uri));
+                entries.writeLong((offset << LENGTH_BITS) | length);
+            } catch (IOException e) {
+                exception = e;
+                return;
+            }
+            offset += length;
+            count++;
+        }
+
+        @Override
+        public void quad(Quad quad) {
+            triple(quad.asTriple());
+        }
+    }
+}
@@ -0,0 +1,32 @@
+package org.ld4l.addlabels;
+
+import org.apache.jena.rdf.model.Resource;
+
+/**
+ * Chooses the subjects whose per-subject diagnostics are logged. Messages
+ * logged for every subject are built only if their level is enabled and
+ * the subject is in the sample, so that otherwise they cost a level check
+ * and allocate nothing. The sample is 1 in N subjects, chosen by the hash
+ * of the subject, so that a subject is traced or not whichever mode or
+ * thread labels it. Defaults to every subject.
+ */
+final class TraceSampler {
+
+    private static volatile int interval = 1;
+
+    private TraceSampler() {
+    }
+
+    /**
+     * Trace 1 in the specified number of subjects.
+     * @param interval
+     */
+    static void setInterval(int interval) {
+        TraceSampler.interval = Math.max(1, interval);
+    }
+
+    static boolean isSampled(Resource subject) {
+        int n = interval;
+        return n == 1 || Math.floorMod(subject.hashCode(), n) == 0;
+    }
+}
@@ -0,0 +1,84 @@
+package org.ld4l.addlabels;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+import org.apache.jena.graph.NodeFactory;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import org.ld4l.addlabels.ExternalSorter.Record;
+import org.ld4l.addlabels.ExternalSorter.RecordIterator;
+
+/**
+ * Checks that records come back in key order, and in the order they were
+ * added for equal keys, however many runs they were spilled to.
+ */
+public class ExternalSorterTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void sortsInBuffer() throws IOException {
+        assertSorted(1 << 20, 1000, 0);
+    }
+
+    @Test
+    public void mergesRuns() throws IOException {
+        // 1000 records of about 250 bytes in 16 KB runs
+        assertSorted(1 << 14, 1000, 0);
+    }
+
+    @Test
+    public void mergesHundredsOfRunsInPasses() throws IOException {
+        // A run for each record: 5000 runs, merged into 79, then 2, which 
+        // are read at once
+        assertSorted(1, 5000, 2);
+    }
+
+    private void assertSorted(long budget, int count, int mergePasses) 
+            throws IOException {
+
+        File dir = folder.newFolder();
+        Random random = new Random(count);
+        try (ExternalSorter sorter = new ExternalSorter(dir, budget)) {
+            for (int i = 0; i < count; i++) {
+                // Few keys, so that many are equal
+                String key = "key" + random.nextInt(count / 10);
+                sorter.add(new Record(key, (byte) 0, 
+                        NodeFactory.createLiteral(Integer.toString(i)),
+                        NodeFactory.createURI("http://example.org/" + i)));
+            }
+            assertEquals(count, sorter.getRecordCount());
+
+            String lastKey = "";
+            int lastIndex = -1;
+            int read = 0;
+            try (RecordIterator records = sorter.sorted()) {
+                assertEquals(mergePasses, sorter.getMergePasses());
+                assertTrue(dir.list().length <= ExternalSorter.MAX_FAN_IN);
+                while (records.hasNext()) {
+                    Record record = records.next();
+                    int index = Integer.parseInt(
+                            record.nodes[0].getLiteralLexicalForm());
+                    int order = record.key.compareTo(lastKey);
+                    assertTrue(order >= 0);
+                    assertTrue(order > 0 || index > lastIndex);
+                    assertEquals("http://example.org/" + index, 
+                            record.nodes[1].getURI());
+                    lastKey = record.key;
+                    lastIndex = index;
+                    read++;
+                }
+            }
+            assertEquals(count, read);
+        }
+        assertEquals(0, dir.list().length);
+    }
+}
@@ -0,0 +1,102 @@
+package org.ld4l.addlabels;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Checks which files InputFiles finds, how it names their outputs, and how
+ * it groups small files.
+ */
+public class InputFilesTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File dir;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = folder.newFolder("input");
+    }
+
+    @Test
+    public void outputsNamedByRelativePath() throws IOException {
+
+        write("a.rdf", 1);
+        write("a.ttl", 1);
+        write("b.nt", 1);
+        write("sub/a.nt", 1);
+        write("sub__a.nt", 1);
+        write("sub/deeper/c.nt", 1);
+
+        // In order of path: "sub/" sorts before "sub__"
+        assertEquals(Arrays.asList("a.rdf", "a.ttl", "b", "sub__a.nt-1",
+                "sub__deeper__c", "sub__a.nt-2"),
+                getBasenames(InputFiles.find(dir, true, null, null, 0)));
+        // Not recursive, only the top directory's files
+        assertEquals(Arrays.asList("a.rdf", "a.ttl", "b", "sub__a"),
+                getBasenames(InputFiles.find(dir, false, null, null, 0)));
+    }
+
+    @Test
+    public void globsMatchRelativePaths() throws IOException {
+
+        write("a.nt", 1);
+        write("b.ttl", 1);
+        write("sub/c.nt", 1);
+        write("sub/d.nt", 1);
+
+        assertEquals(Arrays.asList("a"), getBasenames(
+                InputFiles.find(dir, true, "*.nt", null, 0)));
+        assertEquals(Arrays.asList("a", "sub__c", "sub__d"), getBasenames(
+                InputFiles.find(dir, true, "**.nt", null, 0)));
+        assertEquals(Arrays.asList("a", "sub__c"), getBasenames(
+                InputFiles.find(dir, true, "**.nt", "**d.nt", 0)));
+        assertEquals(Arrays.asList("b"), getBasenames(
+                InputFiles.find(dir, true, null, "**.nt", 0)));
+    }
+
+    @Test
+    public void smallFilesGroupedUpToMergeSize() throws IOException {
+
+        write("a.nt", 40);
+        write("b.nt", 40);
+        write("c.nt", 40);
+        write("d.nt", 200);
+        write("e.nt", 10);
+
+        List<InputFiles.Input> inputs =
+                InputFiles.find(dir, false, null, null, 100);
+        assertEquals(Arrays.asList("a--b", "c", "d", "e"),
+                getBasenames(inputs));
+        assertEquals(2, inputs.get(0).getFiles().size());
+        assertEquals("b", inputs.get(0).getRejectBasename(1));
+        assertEquals(80, inputs.get(0).getSize());
+        assertEquals(5, InputFiles.getFiles(inputs).length);
+    }
+
+    private void write(String path, int size) throws IOException {
+        File file = new File(dir, path);
+        file.getParentFile().mkdirs();
+        Files.write(file.toPath(), new byte[size]);
+    }
+
+    private static List<String> getBasenames(List<InputFiles.Input> inputs) {
+        List<String> basenames = new ArrayList<String>();
+        for (InputFiles.Input input : inputs) {
+            basenames.add(input.getBasename());
+        }
+        return basenames;
+    }
+}
@@ -0,0 +1,66 @@
+package org.ld4l.addlabels;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import org.apache.jena.datatypes.xsd.XSDDatatype;
+import org.apache.jena.graph.Node;
+import org.apache.jena.graph.NodeFactory;
+import org.junit.Test;
+
+/**
+ * Checks that each storage of a LabelDictionary gives equal literals one
+ * Node, however many there are, and keeps literals that differ only in
+ * language or datatype apart.
+ */
+public class LabelDictionaryTest {
+
+    // Enough to grow the off-heap table several times
+    private static final int VALUES = 20000;
+
+    @Test
+    public void heapInternsEqualLiterals() {
+        assertInterns(LabelDictionary.Storage.heap);
+    }
+
+    @Test
+    public void offheapInternsEqualLiterals() {
+        assertInterns(LabelDictionary.Storage.offheap);
+    }
+
+    private static void assertInterns(LabelDictionary.Storage storage) {
+
+        LabelDictionary dictionary = new LabelDictionary(storage);
+        Node[] first = new Node[VALUES];
+        for (int i = 0; i < VALUES; i++) {
+            first[i] = dictionary.intern(literal(i));
+        }
+        for (int i = 0; i < VALUES; i++) {
+            assertSame(first[i], dictionary.intern(literal(i)));
+        }
+        assertSame(first[0], dictionary.literal("Value 0"));
+
+        Node tagged = dictionary.intern(
+                NodeFactory.createLiteral("Value 0", "en"));
+        Node typed = dictionary.intern(NodeFactory.createLiteral(
+                "Value 0", XSDDatatype.XSDstring));
+        assertNotSame(first[0], tagged);
+        assertSame(tagged, dictionary.intern(
+                NodeFactory.createLiteral("Value 0", "en")));
+        assertEquals(typed, first[0]);
+
+        Node uri = NodeFactory.createURI("http://example.org/a");
+        assertSame(uri, dictionary.intern(uri));
+
+        LabelStats stats = new LabelStats();
+        dictionary.addTo(stats);
+        assertEquals(2 * VALUES + 4, stats.getInternLookups());
+        assertEquals(VALUES + 1, stats.getInternDistinct());
+    }
+
+    private static Node literal(int i) {
+        // A new String each time, so that only the dictionary can share it
+        return NodeFactory.createLiteral(new String("Value " + i));
+    }
+}
@@ -0,0 +1,224 @@
+package org.ld4l.addlabels;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.jena.rdf.model.Model;
+import org.apache.jena.rdf.model.ModelFactory;
+import org.apache.jena.rdf.model.ResIterator;
+import org.apache.jena.rdf.model.Resource;
+import org.apache.jena.vocabulary.RDF;
+import org.apache.jena.vocabulary.RDFS;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Checks the labels made by the default rules against those made by the
+ * reflective dispatch of LabelMaker before the rules were loaded from
+ * label-rules.tsv: one make...Label() method per type, and rdf:value 
+ * otherwise. The labels it made from DATA are in baseline-labels.tsv.
+ */
+public class LabelMakerTest {
+
+    private static final String NS = "http://example.org/";
+
+    static final String DATA =
+            "@prefix foaf: <http://xmlns.com/foaf/0.1/> .\n"
+            + "@prefix ld4l: <http://bib.ld4l.org/ontology/> .\n"
+            + "@prefix madsrdf: <http://www.loc.gov/mads/rdf/v1#> .\n"
+            + "@prefix prov: <http://www.w3.org/ns/prov#> .\n"
+            + "@prefix rdf: "
+            + "<http://www.w3.org/1999/02/22-rdf-syntax-ns#> .\n"
+            + "@prefix rdfs: <http://www.w3.org/2000/01/rdf-schema#> .\n"
+            + "@prefix skos: <http://www.w3.org/2004/02/skos/core#> .\n"
+            + "@prefix : <" + NS + "> .\n"
+            + ":work a ld4l:Work, ld4l:Text ; ld4l:hasTitle :workTitle .\n"
+            + ":workTitle a ld4l:Title ; rdfs:label \"Work title\" .\n"
+            + ":instance a ld4l:Instance ; "
+            + "ld4l:hasTitle :instanceTitle .\n"
+            + ":instanceTitle rdfs:label \"Instance title\" .\n"
+            + ":untitledWork a ld4l:Work ; rdf:value \"Work value\" .\n"
+            + ":person a foaf:Person ; foaf:name \"Person name\" .\n"
+            + ":organization a foaf:Organization ; "
+            + "foaf:name \"Organization name\" .\n"
+            + ":agent a foaf:Agent ; foaf:name \"Agent name\" .\n"
+            + ":authority a madsrdf:Authority ; "
+            + "madsrdf:authoritativeLabel \"Authority label\" .\n"
+            + ":topic a ld4l:Topic ; skos:prefLabel \"Topic label\" .\n"
+            + ":unlabelledTopic a ld4l:Topic ; rdf:value \"Topic value\" .\n"
+            + ":location a prov:Location ; foaf:name \"Location name\" .\n"
+            + ":value rdf:value \"Value\" .\n"
+            + ":text a ld4l:Text ; foaf:name \"Text name\" .\n"
+            + ":nothing foaf:name \"Nothing\" .\n";
+
+    // The labels made from DATA by the reflective LabelMaker, by local 
+    // name. A null label is none.
+    private static final String BASELINE_LABELS = "baseline-labels.tsv";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Model model;
+    private LabelMaker labelMaker;
+
+    @Before
+    public void setUp() {
+        model = ModelFactory.createDefaultModel();
+        model.read(new StringReader(DATA), null, "TTL");
+        labelMaker = new LabelMaker();
+    }
+
+    @Test
+    public void makesSameLabelsAsReflectiveDispatch() throws IOException {
+
+        Map<String, String> expected = readBaselineLabels();
+        assertEquals(expected.size(), model.listSubjects().toList().size());
+        for (Map.Entry<String, String> entry : expected.entrySet()) {
+            Resource resource = model.getResource(NS + entry.getKey());
+            assertEquals(entry.getKey(), entry.getValue(),
+                    labelMaker.makeLabel(resource));
+        }
+    }
+
+    @Test
+    public void typeEarliestInOldTypeOrderWins() throws IOException {
+
+        Map<String, String> expected = readBaselineLabels();
+        // Each resource of DATA, with a type after its own in the order of
+        // the old Type enum: Work, Instance, Person, Organization, Agent, 
+        // Authority, Topic, Location. The label is still that of its own 
+        // type, whichever type statement the graph returns first.
+        String foaf = "http://xmlns.com/foaf/0.1/";
+        String ld4l = "http://bib.ld4l.org/ontology/";
+        String madsrdf = "http://www.loc.gov/mads/rdf/v1#";
+        String skos = "http://www.w3.org/2004/02/skos/core#";
+        // Resource, extra type, and the property the extra type would make
+        // a wrong label from, if it won
+        String[][] extraTypes = {
+            { "work", ld4l + "Topic", skos + "prefLabel" },
+            { "instance", foaf + "Person", foaf + "name" },
+            { "person", madsrdf + "Authority", madsrdf + "authoritativeLabel" },
+            { "organization", ld4l + "Topic", skos + "prefLabel" },
+            { "agent", madsrdf + "Authority", madsrdf + "authoritativeLabel" },
+            { "authority", ld4l + "Topic", skos + "prefLabel" },
+            { "topic", "http://www.w3.org/ns/prov#Location", foaf + "name" },
+        };
+        for (String[] extra : extraTypes) {
+            Resource resource = model.getResource(NS + extra[0]);
+            Resource type = model.getResource(extra[1]);
+            model.add(resource, model.getProperty(extra[2]), "Wrong");
+
+            // The extra type statement first, then last
+            Model first = ModelFactory.createDefaultModel();
+            first.add(resource, RDF.type, type);
+            first.add(model);
+            Model last = ModelFactory.createDefaultModel();
+            last.add(model);
+            last.add(resource, RDF.type, type);
+            for (Model types : Arrays.asList(first, last)) {
+                assertEquals(extra[0], expected.get(extra[0]), 
+                        labelMaker.makeLabel(types.getResource(
+                                resource.getURI())));
+                assertEquals(extra[0], expected.get(extra[0]),
+                        labelMaker.join(types).makeLabel(
+                                types.getResource(resource.getURI()), null));
+            }
+        }
+    }
+
+    @Test
+    public void joinMakesSameLabelsAsMakeLabel() {
+
+        LabelMaker.Join join = labelMaker.join(model);
+        ResIterator subjects = model.listSubjects();
+        while (subjects.hasNext()) {
+            Resource subject = subjects.next();
+            if (join.getLabelStatement(subject) == null) {
+                assertEquals(subject.getURI(),
+                        labelMaker.makeLabel(subject),
+                        join.makeLabel(subject, null));
+            }
+        }
+    }
+
+    @Test
+    public void countsLabelsByType() {
+
+        LabelStats stats = new LabelStats();
+        labelMaker.makeLabel(model.getResource(NS + "person"), stats);
+        labelMaker.makeLabel(model.getResource(NS + "untitledWork"), stats);
+        labelMaker.makeLabel(model.getResource(NS + "nothing"), stats);
+        assertEquals("{Person=1, rdf:value=1}",
+                stats.getNewLabelsBySource().toString());
+    }
+
+    @Test
+    public void joinFollowsTypePaths() throws IOException {
+
+        File file = folder.newFile("rules.tsv");
+        Files.write(file.toPath(), Arrays.asList(
+                "prefix\tfoaf\thttp://xmlns.com/foaf/0.1/",
+                "prefix\trdf\thttp://www.w3.org/1999/02/22-rdf-syntax-ns#",
+                "prefix\trdfs\thttp://www.w3.org/2000/01/rdf-schema#",
+                "type\tfoaf:Person\trdf:type/rdfs:label",
+                "fallback\trdf:type"), StandardCharsets.UTF_8);
+        labelMaker = new LabelMaker(LabelRules.load(file));
+        model.add(model.getResource("http://xmlns.com/foaf/0.1/Person"),
+                RDFS.label, "Person type");
+
+        LabelMaker.Join join = labelMaker.join(model);
+        Resource person = model.getResource(NS + "person");
+        assertEquals("Person type", labelMaker.makeLabel(person));
+        assertEquals("Person type", join.makeLabel(person, null));
+        // The type isn't a literal.
+        Resource agent = model.getResource(NS + "agent");
+        assertNull(labelMaker.makeLabel(agent));
+        assertNull(join.makeLabel(agent, null));
+    }
+
+    @Test
+    public void addedStrategyKeepsPriorityOfType() {
+
+        labelMaker.addStrategy("http://bib.ld4l.org/ontology/Text",
+                resource -> "Text");
+        labelMaker.addStrategy("http://bib.ld4l.org/ontology/Work",
+                resource -> "Work");
+        assertEquals("Work",
+                labelMaker.makeLabel(model.getResource(NS + "work")));
+        assertEquals("Text",
+                labelMaker.makeLabel(model.getResource(NS + "text")));
+        assertNull(labelMaker.makeLabel(model.getResource(NS + "nothing")));
+    }
+
+    private static Map<String, String> readBaselineLabels() 
+            throws IOException {
+
+        Map<String, String> labels = new LinkedHashMap<String, String>();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+                LabelMakerTest.class.getResourceAsStream(BASELINE_LABELS),
+                StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.startsWith("#")) {
+                    continue;
+                }
+                String[] fields = line.split("\t", 2);
+                labels.put(fields[0], fields.length > 1 ? fields[1] : null);
+            }
+        }
+        return labels;
+    }
+}
@@ -0,0 +1,89 @@
+package org.ld4l.addlabels;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Checks that the default rules modify labels as the if/else chain they
+ * replaced did, and that rules of each kind apply in the documented order.
+ */
+public class LabelModifierTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void defaultRulesModifyRoleNames() throws IOException {
+
+        LabelModifier modifier = LabelModifier.load();
+        for (String role : new String[] { "Author", "Composer", "Conductor",
+                "Creator", "Editor", "Narrator", "Performer" }) {
+            assertEquals(role + " Contribution", modifier.modifyLabel(role));
+        }
+        assertEquals("Publisher Provision", 
+                modifier.modifyLabel("Publisher"));
+        for (String label : new String[] { "author", "Authors", 
+                "Author Contribution", "Title", "" }) {
+            assertEquals(label, modifier.modifyLabel(label));
+        }
+    }
+
+    @Test
+    public void rulesOfEachKindApply() throws IOException {
+
+        LabelModifier modifier = load(
+                "# A comment, and a blank line",
+                "",
+                "exact\tDr. No\tA film",
+                "prefix\tDr. \tDoctor ",
+                "regex\t(\\w+), (\\w+)\t$2 $1",
+                "prefix\tDr\tDrive",
+                "regex\t(.*) \\(\\d{4}\\)\t$1");
+
+        // An exact rule comes before the others
+        assertEquals("A film", modifier.modifyLabel("Dr. No"));
+        // The first matching prefix or regex rule applies
+        assertEquals("Doctor Who", modifier.modifyLabel("Dr. Who"));
+        assertEquals("Drive Street", modifier.modifyLabel("Dr Street"));
+        // Group references are those of the rule's own expression
+        assertEquals("John Smith", modifier.modifyLabel("Smith, John"));
+        assertEquals("Hamlet", modifier.modifyLabel("Hamlet (1603)"));
+        // A regex rule matches the whole label
+        assertEquals("Smith, John, Jr.", 
+                modifier.modifyLabel("Smith, John, Jr."));
+    }
+
+    @Test
+    public void badRulesRefused() {
+
+        assertRefused("exact\tAuthor");
+        assertRefused("suffix\tAuthor\tAuthor Contribution");
+        assertRefused("regex\t(Author\tAuthor Contribution");
+    }
+
+    private void assertRefused(String rule) {
+        try {
+            load(rule);
+            fail("Accepted " + rule);
+        } catch (IOException e) {
+            // Expected
+        }
+    }
+
+    private LabelModifier load(String... rules) throws IOException {
+        File file = folder.newFile();
+        Files.write(file.toPath(), Arrays.asList(rules), 
+                StandardCharsets.UTF_8);
+        return LabelModifier.load(file);
+    }
+}
@@ -0,0 +1,213 @@
+package org.ld4l.addlabels;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.jena.rdf.model.Model;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Checks the answers of a LabelServer on a free port: to a request it
+ * labels, to ?path= inside and outside its input directory, to requests
+ * that find the queue full or are waiting when it stops, and to one whose
+ * labelling ends with an Error.
+ */
+public class LabelServerTest {
+
+    private static final String TRIPLE =
+            "<http://example.org/a> "
+            + "<http://www.w3.org/1999/02/22-rdf-syntax-ns#type> "
+            + "<http://xmlns.com/foaf/0.1/Person> .\n"
+            + "<http://example.org/a> <http://xmlns.com/foaf/0.1/name> "
+            + "\"A\" .\n";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private LabelServer server;
+
+    @After
+    public void tearDown() {
+        if (server != null) {
+            server.stop();
+        }
+    }
+
+    @Test
+    public void labelsPostedGraph() throws IOException {
+
+        int port = start(new Labeller(null, null), 1, 1, null);
+        assertEquals(200, post(port, "?delta=true", TRIPLE));
+    }
+
+    @Test
+    public void pathOnlyInInputDirectory() throws IOException {
+
+        File input = folder.newFolder("input");
+        File inside = new File(input, "a.nt");
+        File outside = folder.newFile("b.nt");
+        Files.write(inside.toPath(), TRIPLE.getBytes(StandardCharsets.UTF_8));
+        Files.write(outside.toPath(), TRIPLE.getBytes(StandardCharsets.UTF_8));
+
+        int port = start(new Labeller(null, null), 1, 1, input);
+        assertEquals(200, post(port, "?path=a.nt", ""));
+        assertEquals(200, post(port, "?path=" + encode(inside), ""));
+        assertEquals(403, post(port, "?path=../b.nt", ""));
+        assertEquals(403, post(port, "?path=" + encode(outside), ""));
+        server.stop();
+
+        port = start(new Labeller(null, null), 1, 1, null);
+        assertEquals(403, post(port, "?path=" + encode(inside), ""));
+    }
+
+    @Test
+    public void fullQueueAndStopAnsweredWith503() throws Exception {
+
+        BlockingLabeller labeller = new BlockingLabeller();
+        // One request labelled and one waiting fill the server.
+        int port = start(labeller, 1, 1, null);
+        CompletableFuture<Integer> labelled = postAsync(port);
+        assertTrue(labeller.started.await(10, TimeUnit.SECONDS));
+        CompletableFuture<Integer> waiting = postAsync(port);
+        waitForQueued(port, 1);
+
+        assertEquals(503, post(port, "", TRIPLE));
+
+        Thread stopper = new Thread(server::stop);
+        stopper.start();
+        assertEquals(503, (int) waiting.get(10, TimeUnit.SECONDS));
+        labeller.release.countDown();
+        assertEquals(200, (int) labelled.get(10, TimeUnit.SECONDS));
+        stopper.join();
+    }
+
+    @Test
+    public void errorAnsweredAndWorkerKept() throws IOException {
+
+        Labeller labeller = new Labeller(null, null) {
+            private boolean failed;
+
+            @Override
+            Model getLabels(Model model, LabelStats stats,
+                    LabelDictionary dictionary, boolean delta,
+                    String client) {
+                if (! failed) {
+                    failed = true;
+                    throw new OutOfMemoryError("Test");
+                }
+                return super.getLabels(
+                        model, stats, dictionary, delta, client);
+            }
+        };
+        int port = start(labeller, 1, 1, null);
+        assertEquals(500, post(port, "", TRIPLE));
+        assertEquals(200, post(port, "", TRIPLE));
+    }
+
+    /**
+     * Labels a graph only once release is counted down.
+     */
+    private static class BlockingLabeller extends Labeller {
+
+        private final CountDownLatch started = new CountDownLatch(1);
+        private final CountDownLatch release = new CountDownLatch(1);
+
+        BlockingLabeller() {
+            super(null, null);
+        }
+
+        @Override
+        Model getLabels(Model model, LabelStats stats,
+                LabelDictionary dictionary, boolean delta, String client) {
+            started.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                throw new IllegalStateException(e);
+            }
+            return super.getLabels(model, stats, dictionary, delta, client);
+        }
+    }
+
+    private int start(Labeller labeller, int workers, int batchSize,
+            File pathRoot) throws IOException {
+
+        server = new LabelServer(labeller, OutputFormat.ntriples, workers,
+                batchSize, 0, pathRoot);
+        return server.start(0);
+    }
+
+    private static CompletableFuture<Integer> postAsync(int port) {
+
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return post(port, "", TRIPLE);
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+    }
+
+    private static void waitForQueued(int port, int queued)
+            throws Exception {
+
+        for (int i = 0; i < 1000; i++) {
+            HttpURLConnection connection = (HttpURLConnection) new URL(
+                    "http://localhost:" + port + LabelServer.STATS_PATH)
+                    .openConnection();
+            try (InputStream in = connection.getInputStream()) {
+                if (IOUtils.toString(in, StandardCharsets.UTF_8)
+                        .contains("\"queued\": " + queued + ",")) {
+                    return;
+                }
+            }
+            Thread.sleep(10);
+        }
+        throw new AssertionError("No request queued");
+    }
+
+    private static int post(int port, String query, String body)
+            throws IOException {
+
+        HttpURLConnection connection = (HttpURLConnection) new URL(
+                "http://localhost:" + port + LabelServer.LABEL_PATH + query)
+                .openConnection();
+        connection.setRequestMethod("POST");
+        connection.setDoOutput(true);
+        try (OutputStream out = connection.getOutputStream()) {
+            out.write(body.getBytes(StandardCharsets.UTF_8));
+        }
+        int status = connection.getResponseCode();
+        InputStream in = status < 400 ? connection.getInputStream()
+                : connection.getErrorStream();
+        if (in != null) {
+            try {
+                IOUtils.toByteArray(in);
+            } finally {
+                in.close();
+            }
+        }
+        return status;
+    }
+
+    private static String encode(File file) throws IOException {
+        return URLEncoder.encode(file.getPath(), "UTF-8");
+    }
+}
@@ -0,0 +1,81 @@
+package org.ld4l.addlabels;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Checks that each mode of LabelledSubjects adds each URI once, however
+ * many threads add it, and that the exact mode's file is deleted on close.
+ */
+public class LabelledSubjectsTest {
+
+    // Enough to grow every stripe's table
+    private static final int URIS = 200000;
+    private static final int THREADS = 4;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void fingerprintAddsEachUriOnce() throws Exception {
+        assertAddsOnce(LabelledSubjects.Mode.fingerprint);
+    }
+
+    @Test
+    public void exactAddsEachUriOnce() throws Exception {
+        assertAddsOnce(LabelledSubjects.Mode.exact);
+    }
+
+    private void assertAddsOnce(LabelledSubjects.Mode mode) 
+            throws Exception {
+
+        File dir = folder.newFolder();
+        AtomicInteger added = new AtomicInteger();
+        try (LabelledSubjects subjects = new LabelledSubjects(mode, dir)) {
+            assertFalse(subjects.contains(uri(0)));
+
+            ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+            List<Future<?>> futures = new ArrayList<Future<?>>();
+            for (int thread = 0; thread < THREADS; thread++) {
+                futures.add(executor.submit(() -> {
+                    for (int i = 0; i < URIS; i++) {
+                        if (subjects.add(uri(i))) {
+                            added.incrementAndGet();
+                        }
+                    }
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+            executor.shutdown();
+
+            assertEquals(URIS, added.get());
+            assertEquals(URIS, subjects.size());
+            for (int i = 0; i < URIS; i++) {
+                assertTrue(subjects.contains(uri(i)));
+            }
+            assertFalse(subjects.contains(uri(URIS)));
+            assertEquals(0, subjects.getCollisions());
+        }
+        assertEquals(0, dir.listFiles().length);
+    }
+
+    private static String uri(int i) {
+        return "http://example.org/agent" + i;
+    }
+}
@@ -0,0 +1,727 @@
+package org.ld4l.addlabels;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Iterator;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.zip.GZIPInputStream;
+
+import org.apache.jena.atlas.json.JSON;
+import org.apache.jena.atlas.json.JsonArray;
+import org.apache.jena.atlas.json.JsonObject;
+import org.apache.jena.atlas.json.JsonValue;
+import org.apache.jena.query.Dataset;
+import org.apache.jena.query.DatasetFactory;
+import org.apache.jena.query.ReadWrite;
+import org.apache.jena.rdf.model.Model;
+import org.apache.jena.rdf.model.ModelFactory;
+import org.apache.jena.rdf.model.Resource;
+import org.apache.jena.riot.Lang;
+import org.apache.jena.riot.RDFDataMgr;
+import org.apache.jena.riot.RDFLanguages;
+import org.apache.jena.tdb.TDBFactory;
+import org.apache.jena.update.UpdateAction;
+import org.apache.jena.vocabulary.RDFS;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import org.ld4l.addlabels.LabelStats.Stage;
+
+/**
+ * Checks that each processing mode writes the same labels as the default
+ * mode, which reads each file into a Model: the output of each mode, read
+ * back, must be isomorphic to the output of the default mode.
+ */
+public class LabellerTest {
+
+    private static final String PREFIXES =
+            "@prefix foaf: <http://xmlns.com/foaf/0.1/> .\n"
+            + "@prefix ld4l: <http://bib.ld4l.org/ontology/> .\n"
+            + "@prefix rdfs: <http://www.w3.org/2000/01/rdf-schema#> .\n"
+            + "@prefix : <http://example.org/> .\n";
+
+    // Blank nodes, subjects with labels, and a title whose label is in
+    // another file, which isn't used without the title index
+    private static final String AGENTS = PREFIXES
+            + "[] a foaf:Person ; foaf:name \"Anonymous person\" .\n"
+            + "[] a foaf:Agent ; rdfs:label \"Labelled agent\" .\n"
+            + ":labelled a foaf:Person ; foaf:name \"Name\" ; "
+            + "rdfs:label \"Label\" .\n"
+            + ":otherWork a ld4l:Work ; ld4l:hasTitle :otherTitle .\n"
+            + ":instance2 a ld4l:Instance ; ld4l:hasTitle [ "
+            + "rdfs:label \"Blank title\" ] .\n";
+
+    private static final String TITLES = PREFIXES
+            + ":otherTitle rdfs:label \"Other title\" .\n"
+            + ":person2 a foaf:Person, foaf:Agent ; foaf:name \"Person 2\" .\n";
+
+    private static final String GRAPHS =
+            "<http://example.org/a> <http://xmlns.com/foaf/0.1/name> "
+            + "\"A\" <http://example.org/g1> .\n"
+            + "<http://example.org/a> "
+            + "<http://www.w3.org/1999/02/22-rdf-syntax-ns#type> "
+            + "<http://xmlns.com/foaf/0.1/Person> <http://example.org/g1> .\n"
+            + "_:b <http://www.w3.org/1999/02/22-rdf-syntax-ns#value> "
+            + "\"B\" <http://example.org/g2> .\n"
+            + "<http://example.org/w> <http://bib.ld4l.org/ontology/hasTitle> "
+            + "<http://example.org/t> <http://example.org/g2> .\n"
+            + "<http://example.org/w> "
+            + "<http://www.w3.org/1999/02/22-rdf-syntax-ns#type> "
+            + "<http://bib.ld4l.org/ontology/Work> <http://example.org/g2> .\n"
+            + "<http://example.org/t> "
+            + "<http://www.w3.org/2000/01/rdf-schema#label> "
+            + "\"T\" <http://example.org/g2> .\n"
+            + "<http://example.org/c> "
+            + "<http://www.w3.org/1999/02/22-rdf-syntax-ns#value> \"C\" .\n"
+            + "_:d <http://www.w3.org/1999/02/22-rdf-syntax-ns#value> "
+            + "\"D\" .\n"
+            + "<http://example.org/e> "
+            + "<http://www.w3.org/1999/02/22-rdf-syntax-ns#value> "
+            + "\"E\" <http://example.org/g1> .\n";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File input;
+
+    @Before
+    public void setUp() throws IOException {
+        input = folder.newFolder("input");
+        writeNTriples(LabelMakerTest.DATA, new File(input, "a.nt"));
+        writeNTriples(AGENTS, new File(input, "b.nt"));
+        writeNTriples(TITLES, new File(input, "c.nt"));
+    }
+
+    @Test
+    public void defaultModeAddsLabels() throws IOException {
+
+        Model output = run(labeller -> { });
+        assertTrue(output.contains(
+                output.getResource("http://example.org/work"),
+                RDFS.label, "Work title"));
+        // Labels of the 11 subjects of a.nt, 2 of b.nt and 1 of c.nt
+        Model input = read(this.input);
+        assertEquals(input.size() + 14, output.size());
+    }
+
+    @Test
+    public void runReportCountsEachFile() throws IOException {
+
+        File output = runToDir(labeller -> { });
+        JsonObject report = JSON.read(
+                new File(output, RunMetrics.JSON_FILENAME).getPath());
+        assertEquals(3, getInt(report, "inputFiles"));
+        assertEquals(3, getInt(report, "processedFiles"));
+        assertEquals(14, getInt(report, "newLabels"));
+
+        // The new labels by source, and by file, add up to the total
+        int bySource = 0;
+        JsonObject sources = report.get("newLabelsBySource").getAsObject();
+        for (String source : sources.keys()) {
+            bySource += getInt(sources, source);
+        }
+        assertEquals(14, bySource);
+        JsonArray files = report.get("files").getAsArray();
+        assertEquals(3, files.size());
+        int byFile = 0;
+        for (JsonValue file : files) {
+            byFile += getInt(file.getAsObject(), "newLabels");
+        }
+        assertEquals(14, byFile);
+        for (Stage stage : Stage.values()) {
+            assertTrue(report.get("stages").getAsObject()
+                    .hasKey(stage.toString()));
+        }
+
+        List<String> csv = Files.readAllLines(
+                new File(output, RunMetrics.CSV_FILENAME).toPath(),
+                StandardCharsets.UTF_8);
+        assertEquals(4, csv.size());
+        assertTrue(csv.get(0).startsWith("file,bytes,reused,"));
+    }
+
+    @Test
+    public void streamingWritesSameLabels() throws IOException {
+        assertSameOutput(labeller -> labeller.setStreaming(true));
+    }
+
+    @Test
+    public void prescanWritesSameLabels() throws IOException {
+        assertSameOutput(labeller -> {
+            labeller.setStreaming(true);
+            labeller.setPrescan(LabelledSubjects.Mode.exact);
+        });
+    }
+
+    @Test
+    public void sortingWritesSameLabels() throws IOException {
+        assertSameOutput(labeller -> labeller.setSortMemory(1));
+    }
+
+    @Test
+    public void mergedInputsLabelFromEachOther() throws IOException {
+
+        File output = runToDir(labeller -> labeller.setMergeSize(1));
+        assertTrue(new File(output, "a--c.nt").isFile());
+        assertFalse(new File(output, "a.nt").exists());
+        // The title of a work in b.nt is in c.nt.
+        Model labels = run(labeller -> labeller.setMergeSize(1));
+        assertTrue(labels.contains(
+                labels.getResource("http://example.org/otherWork"),
+                RDFS.label, "Other title"));
+        assertFalse(run(labeller -> { }).contains(
+                labels.getResource("http://example.org/otherWork"),
+                RDFS.label, "Other title"));
+    }
+
+    @Test
+    public void joinWritesSameLabels() throws IOException {
+        assertSameOutput(labeller -> labeller.setJoin(true));
+    }
+
+    @Test
+    public void compactWritesSameLabels() throws IOException {
+        assertSameOutput(labeller -> {
+            labeller.setCompact(true);
+            labeller.setJoin(true);
+        });
+        assertSameOutput(labeller -> labeller.setCompact(true));
+    }
+
+    @Test
+    public void threadsWriteSameLabels() throws IOException {
+        assertSameOutput(labeller -> {
+            labeller.setThreads(2);
+            labeller.setParseThreads(2);
+        });
+    }
+
+    @Test
+    public void internedWritesSameLabels() throws IOException {
+
+        for (LabelDictionary.Storage storage
+                : LabelDictionary.Storage.values()) {
+            assertSameOutput(labeller -> labeller.setInternStorage(storage));
+            assertSameOutput(labeller -> {
+                labeller.setInternStorage(storage);
+                labeller.setStreaming(true);
+            });
+        }
+    }
+
+    @Test
+    public void modifierReplacesExistingLabels() throws IOException {
+
+        File rules = folder.newFile("rules.tsv");
+        Files.write(rules.toPath(), 
+                "exact\tLabel\tModified label\n".getBytes("UTF-8"));
+        LabelModifier modifier = LabelModifier.load(rules);
+        Model output = run(labeller -> labeller.setLabelModifier(modifier));
+
+        Resource labelled = output.getResource("http://example.org/labelled");
+        assertTrue(output.contains(labelled, RDFS.label, "Modified label"));
+        assertFalse(output.contains(labelled, RDFS.label, "Label"));
+        // Only the label that the rule matches is replaced
+        Model expected = run(labeller -> { });
+        expected.remove(labelled, RDFS.label, 
+                expected.createLiteral("Label"));
+        expected.add(labelled, RDFS.label, "Modified label");
+        assertTrue(expected.isIsomorphicWith(output));
+    }
+
+    @Test
+    public void titleIndexLabelsWorksFromOtherFiles() throws IOException {
+
+        Model output = run(labeller -> labeller.setTitleIndex(true));
+        assertTrue(output.contains(
+                output.getResource("http://example.org/otherWork"),
+                RDFS.label, "Other title"));
+        assertSameOutput(output, labeller -> {
+            labeller.setTitleIndex(true);
+            labeller.setStreaming(true);
+        });
+    }
+
+    @Test
+    public void outputFormatsWriteSameLabels() throws IOException {
+
+        Model expected = run(labeller -> { });
+        for (OutputFormat format : OutputFormat.values()) {
+            if (format.format == null) {
+                continue;
+            }
+            for (boolean compress : new boolean[] { false, true }) {
+                File dir = runToDir(labeller -> {
+                    labeller.setOutputFormat(format);
+                    labeller.setCompress(compress);
+                });
+                Model actual = readAny(dir, "." + format.extension 
+                        + (compress ? ".gz" : ""));
+                assertTrue(format + (compress ? " gzipped" : ""), 
+                        expected.isIsomorphicWith(actual));
+            }
+        }
+    }
+
+    @Test
+    public void updateFormatsAddSameLabels() throws IOException {
+
+        // Updates can't name blank nodes of the data.
+        Model expected = run(labeller -> labeller.setDelta(true));
+
+        File dir = runToDir(labeller -> {
+            labeller.setDelta(true);
+            labeller.setOutputFormat(OutputFormat.patch);
+        });
+        StringBuilder triples = new StringBuilder();
+        for (File file : dir.listFiles()) {
+            if (file.getName().endsWith(".rdfp")) {
+                for (String line : Files.readAllLines(file.toPath())) {
+                    if (line.startsWith("A ")) {
+                        triples.append(line.substring(2)).append('\n');
+                    }
+                }
+            }
+        }
+        Model patched = ModelFactory.createDefaultModel();
+        patched.read(new StringReader(triples.toString()), null, "N-TRIPLES");
+        assertTrue(expected.isIsomorphicWith(patched));
+
+        dir = runToDir(labeller -> {
+            labeller.setDelta(true);
+            labeller.setOutputFormat(OutputFormat.sparql);
+        });
+        Dataset updated = DatasetFactory.createMem();
+        for (File file : dir.listFiles()) {
+            if (file.getName().endsWith(".ru")) {
+                UpdateAction.readExecute(file.getPath(), updated);
+            }
+        }
+        assertTrue(expected.isIsomorphicWith(updated.getDefaultModel()));
+    }
+
+    @Test
+    public void previousOutputReusedForUnchangedInputs() throws IOException {
+
+        // A bad line, so that b.nt has a reject file
+        Files.write(new File(input, "b.nt").toPath(), 
+                "<http://example.org/bad> .\n".getBytes("UTF-8"),
+                StandardOpenOption.APPEND);
+        File first = runToDir(labeller -> { });
+        assertTrue(new File(first, "b" + RecoveringParser.REJECTS_SUFFIX)
+                .isFile());
+
+        // Changed, so labelled again
+        Files.write(new File(input, "c.nt").toPath(), 
+                ("<http://example.org/new> "
+                        + "<http://www.w3.org/1999/02/22-rdf-syntax-ns#value> "
+                        + "\"New\" .\n").getBytes("UTF-8"),
+                StandardOpenOption.APPEND);
+        File second = runToDir(labeller -> 
+                labeller.setPreviousOutputDir(first.getAbsolutePath()));
+        assertTrue(isSameFile(first, second, "a.nt"));
+        assertTrue(isSameFile(first, second, 
+                "b" + RecoveringParser.REJECTS_SUFFIX));
+        assertFalse(isSameFile(first, second, "c.nt"));
+        assertTrue(run(labeller -> { }).isIsomorphicWith(read(second)));
+
+        // Different settings, so nothing is reused
+        File third = runToDir(labeller -> {
+            labeller.setPreviousOutputDir(second.getAbsolutePath());
+            labeller.setTitleIndex(true);
+        });
+        assertFalse(isSameFile(second, third, "a.nt"));
+    }
+
+    @Test
+    public void resumeRedoesOnlyUnfinishedFiles() throws IOException {
+
+        File output = runToDir(labeller -> { });
+        Model expected = read(output);
+
+        // A crash after a.nt was completed and journalled, while b.nt's
+        // entry was being written and c.nt's output was half written
+        File journal = new File(output, Manifest.JOURNAL_FILENAME);
+        List<String> lines = 
+                Files.readAllLines(journal.toPath(), StandardCharsets.UTF_8);
+        String entryA = find(lines, "a.nt\t");
+        String entryB = find(lines, "b.nt\t");
+        Files.write(journal.toPath(), (lines.get(0) + "\n" + entryA + "\n"
+                + entryB.substring(0, entryB.length() / 2))
+                .getBytes(StandardCharsets.UTF_8));
+        Files.delete(new File(output, Manifest.FILENAME).toPath());
+        File outputC = new File(output, "c.nt");
+        File partC = new File(output, "c.nt" + RdfOutput.TEMP_SUFFIX);
+        Files.move(outputC.toPath(), partC.toPath());
+        Object keyA = getFileKey(new File(output, "a.nt"));
+        Object keyB = getFileKey(new File(output, "b.nt"));
+
+        Labeller labeller = new Labeller(input.getAbsolutePath(),
+                output.getAbsolutePath());
+        labeller.setResume(true);
+        labeller.getLabels();
+
+        assertEquals(keyA, getFileKey(new File(output, "a.nt")));
+        assertFalse(keyB.equals(getFileKey(new File(output, "b.nt"))));
+        assertTrue(outputC.isFile());
+        assertFalse(partC.exists());
+        assertTrue(expected.isIsomorphicWith(read(output)));
+        Manifest manifest = Manifest.read(output);
+        for (String name : new String[] { "a.nt", "b.nt", "c.nt" }) {
+            assertTrue(manifest.get(new File(input, name).getAbsolutePath())
+                    != null);
+        }
+    }
+
+    @Test
+    public void dedupLabelsEachSubjectOnce() throws IOException {
+
+        // person2 again, in a file of its own
+        writeNTriples(TITLES, new File(input, "d.nt"));
+        Model expected = run(labeller -> { });
+        Resource person = expected.getResource("http://example.org/person2");
+        assertEquals(2, countLabels(runToDir(labeller -> { }), person));
+
+        for (LabelledSubjects.Mode mode : LabelledSubjects.Mode.values()) {
+            for (int threads = 1; threads <= 2; threads++) {
+                int t = threads;
+                File output = runToDir(labeller -> {
+                    labeller.setDedup(mode);
+                    labeller.setThreads(t);
+                });
+                assertEquals(1, countLabels(output, person));
+                assertTrue(expected.isIsomorphicWith(read(output)));
+                JsonObject report = JSON.read(
+                        new File(output, RunMetrics.JSON_FILENAME).getPath());
+                assertEquals(1, getInt(report, "duplicateLabels"));
+            }
+        }
+    }
+
+    @Test
+    public void tdbAddsSameLabels() throws IOException {
+
+        // The dataset holds all the files, so titles are found in any file.
+        Model expected = run(labeller -> labeller.setTitleIndex(true));
+
+        File dir = folder.newFolder("tdb");
+        Dataset dataset = TDBFactory.createDataset(dir.getPath());
+        dataset.begin(ReadWrite.WRITE);
+        dataset.getDefaultModel().add(read(input));
+        dataset.commit();
+        dataset.end();
+        TDBFactory.release(dataset);
+
+        // Small batches, so that the new labels are spilled and merged
+        Labeller labeller = new Labeller(dir.getPath(),
+                folder.newFolder().getAbsolutePath());
+        labeller.setTdbBatchSize(2);
+        labeller.getLabels();
+
+        dataset = TDBFactory.createDataset(dir.getPath());
+        dataset.begin(ReadWrite.READ);
+        try {
+            Model actual = dataset.getDefaultModel();
+            assertTrue(expected.isIsomorphicWith(actual));
+        } finally {
+            dataset.end();
+            TDBFactory.release(dataset);
+        }
+    }
+
+    @Test
+    public void tdbDoesNotCreateMissingDataset() throws IOException {
+
+        File missing = new File(folder.getRoot(), "missing");
+        File empty = folder.newFolder("empty");
+        for (File dir : new File[] { missing, empty }) {
+            Labeller labeller = new Labeller(dir.getPath(),
+                    folder.newFolder().getAbsolutePath());
+            labeller.setTdbBatchSize(2);
+            labeller.getLabels();
+        }
+        assertFalse(missing.exists());
+        assertEquals(0, empty.list().length);
+    }
+
+    @Test
+    public void deltaSkipsBlankNodes() throws IOException {
+
+        Model expected = run(labeller -> labeller.setDelta(true));
+        // Only the labels of the 13 URI subjects
+        assertEquals(13, expected.size());
+        assertTrue(expected.listSubjects().toList().stream()
+                .allMatch(subject -> subject.isURIResource()));
+        assertSameOutput(expected, labeller -> {
+            labeller.setDelta(true);
+            labeller.setStreaming(true);
+        });
+        assertSameOutput(expected, labeller -> {
+            labeller.setDelta(true);
+            labeller.setSortMemory(1);
+        });
+    }
+
+    @Test
+    public void cacheLabelsOnlyWhatRequestCantLabel() throws IOException {
+
+        Labeller labeller = new Labeller(input.getAbsolutePath(),
+                folder.newFolder().getAbsolutePath());
+        labeller.setLabelCache(new LabelCache(10));
+        labeller.getLabels(parse(PREFIXES
+                + ":p a foaf:Person ; foaf:name \"Cached\" .\n"),
+                new LabelStats(), null, true, "a");
+
+        // The request's own triples win over the cache.
+        Model labels = labeller.getLabels(parse(PREFIXES
+                + ":p a foaf:Person ; foaf:name \"Own\" .\n"),
+                new LabelStats(), null, true, "b");
+        assertLabel(labels, "Own");
+        labels = labeller.getLabels(parse(PREFIXES
+                + ":p a foaf:Person ; foaf:name \"Own\" .\n"),
+                new LabelStats(), null, true, "a");
+        assertLabel(labels, "Own");
+
+        // The cache fills in only for the same client.
+        String unlabelled = PREFIXES + ":p a foaf:Person .\n";
+        assertLabel(labeller.getLabels(parse(unlabelled), new LabelStats(),
+                null, true, "a"), "Own");
+        assertTrue(labeller.getLabels(parse(unlabelled), new LabelStats(),
+                null, true, "c").isEmpty());
+        assertTrue(labeller.getLabels(parse(unlabelled), new LabelStats(),
+                null, true, null).isEmpty());
+    }
+
+    @Test
+    public void graphsWriteSameLabels() throws IOException {
+
+        writeGraphs();
+        Model expected = run(labeller -> { });
+        assertEquals(15, expected.size());
+        assertSameOutput(expected, labeller -> {
+            labeller.setGraphs(true);
+            labeller.setGraphThreads(2);
+            labeller.setOutputFormat(OutputFormat.nquads);
+        });
+    }
+
+    @Test
+    public void graphsWriteTrigThatCanBeRead() throws IOException {
+
+        writeGraphs();
+        Dataset expected = readDataset(runToDir(labeller -> {
+            labeller.setGraphs(true);
+            labeller.setOutputFormat(OutputFormat.nquads);
+        }), ".nq");
+        Dataset actual = readDataset(runToDir(labeller -> {
+            labeller.setGraphs(true);
+            labeller.setOutputFormat(OutputFormat.trig);
+        }), ".trig");
+
+        // Each graph keeps its own triples and new labels.
+        assertTrue(expected.getDefaultModel().isIsomorphicWith(
+                actual.getDefaultModel()));
+        assertEquals(4, actual.getDefaultModel().size());
+        for (String name : new String[] { "http://example.org/g1", 
+                "http://example.org/g2" }) {
+            assertTrue(name, expected.getNamedModel(name).isIsomorphicWith(
+                    actual.getNamedModel(name)));
+        }
+        assertEquals(5, actual.getNamedModel("http://example.org/g1").size());
+    }
+
+    private void writeGraphs() throws IOException {
+
+        for (File file : input.listFiles()) {
+            file.delete();
+        }
+        try (OutputStream out =
+                new FileOutputStream(new File(input, "g.nq"))) {
+            out.write(GRAPHS.getBytes("UTF-8"));
+        }
+    }
+
+    private void assertSameOutput(Consumer<Labeller> settings)
+            throws IOException {
+        assertSameOutput(run(labeller -> { }), settings);
+    }
+
+    private void assertSameOutput(Model expected,
+            Consumer<Labeller> settings) throws IOException {
+
+        Model actual = run(settings);
+        assertTrue("Expected:\n" + write(expected) + "but got:\n"
+                + write(actual), expected.isIsomorphicWith(actual));
+    }
+
+    /**
+     * Label the input files with the settings, and return the union of the
+     * graphs of the output files.
+     */
+    private Model run(Consumer<Labeller> settings) throws IOException {
+        return read(runToDir(settings));
+    }
+
+    /**
+     * Label the input files with the settings, and return the output 
+     * directory.
+     */
+    private File runToDir(Consumer<Labeller> settings) throws IOException {
+
+        File output = folder.newFolder();
+        Labeller labeller = new Labeller(input.getAbsolutePath(),
+                output.getAbsolutePath());
+        settings.accept(labeller);
+        labeller.getLabels();
+        return output;
+    }
+
+    /**
+     * Read the output file of the dataset, with the extension, in the
+     * directory.
+     */
+    private static Dataset readDataset(File dir, String extension) {
+
+        Dataset dataset = DatasetFactory.createMem();
+        for (File file : dir.listFiles()) {
+            if (file.getName().endsWith(extension)) {
+                RDFDataMgr.read(dataset, file.getPath());
+            }
+        }
+        return dataset;
+    }
+
+    /**
+     * Read the output files with the extension, gzipped or not, into one
+     * model.
+     */
+    private static Model readAny(File dir, String extension) 
+            throws IOException {
+
+        Dataset dataset = DatasetFactory.createMem();
+        for (File file : dir.listFiles()) {
+            String name = file.getName();
+            if (! name.endsWith(extension)) {
+                continue;
+            }
+            boolean gzipped = name.endsWith(".gz");
+            Lang lang = RDFLanguages.filenameToLang(gzipped 
+                    ? name.substring(0, name.length() - 3) : name);
+            try (InputStream in = gzipped 
+                    ? new GZIPInputStream(new FileInputStream(file)) 
+                    : new FileInputStream(file)) {
+                RDFDataMgr.read(dataset, in, lang);
+            }
+        }
+        Model model = ModelFactory.createDefaultModel();
+        model.add(dataset.getDefaultModel());
+        Iterator<String> names = dataset.listNames();
+        while (names.hasNext()) {
+            model.add(dataset.getNamedModel(names.next()));
+        }
+        return model;
+    }
+
+    private static Model read(File dir) {
+
+        Model model = ModelFactory.createDefaultModel();
+        for (File file : dir.listFiles()) {
+            String name = file.getName();
+            if (name.endsWith(".nt") || name.endsWith(".nq")) {
+                Dataset dataset = DatasetFactory.createMem();
+                RDFDataMgr.read(dataset, file.getPath());
+                model.add(dataset.getDefaultModel());
+                Iterator<String> names = dataset.listNames();
+                while (names.hasNext()) {
+                    model.add(dataset.getNamedModel(names.next()));
+                }
+            }
+        }
+        return model;
+    }
+
+    private static void writeNTriples(String turtle, File file)
+            throws IOException {
+
+        Model model = ModelFactory.createDefaultModel();
+        model.read(new StringReader(turtle), null, "TTL");
+        try (OutputStream out = new FileOutputStream(file)) {
+            RDFDataMgr.write(out, model, Lang.NTRIPLES);
+        }
+    }
+
+    private static void assertLabel(Model labels, String label) {
+        assertEquals(1, labels.size());
+        assertTrue(labels.contains(labels.getResource("http://example.org/p"),
+                RDFS.label, label));
+    }
+
+    private static Model parse(String turtle) {
+        Model model = ModelFactory.createDefaultModel();
+        model.read(new StringReader(turtle), null, "TTL");
+        return model;
+    }
+
+    /**
+     * Return the number of output files in the directory that label the
+     * resource.
+     */
+    private static int countLabels(File dir, Resource resource) {
+
+        int count = 0;
+        for (File file : dir.listFiles()) {
+            if (file.getName().endsWith(".nt") && RDFDataMgr.loadModel(
+                    file.getPath()).contains(resource, RDFS.label)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static String find(List<String> lines, String part) {
+        for (String line : lines) {
+            if (line.contains(part)) {
+                return line;
+            }
+        }
+        throw new AssertionError("No line with " + part);
+    }
+
+    private static Object getFileKey(File file) throws IOException {
+        return Files.readAttributes(file.toPath(), 
+                BasicFileAttributes.class).fileKey();
+    }
+
+    private static int getInt(JsonObject object, String key) {
+        return object.get(key).getAsNumber().value().intValue();
+    }
+
+    private static boolean isSameFile(File dir, File otherDir, String name)
+            throws IOException {
+        return Files.isSameFile(new File(dir, name).toPath(), 
+                new File(otherDir, name).toPath());
+    }
+
+    private static String write(Model model) {
+        StringWriter out = new StringWriter();
+        model.write(out, "N-TRIPLES");
+        return out.toString();
+    }
+}
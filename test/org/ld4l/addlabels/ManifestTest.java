@@ -0,0 +1,65 @@
+package org.ld4l.addlabels;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Checks that a manifest is read back as written, and that writing it again
+ * replaces it whole.
+ */
+public class ManifestTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void readsWhatWasWritten() throws IOException {
+
+        File dir = folder.newFolder();
+        Manifest manifest = new Manifest("format=ntriples");
+        manifest.put(new Manifest.Entry("/in/a.nt", 10, 20, "abc", "a.nt"));
+        manifest.put(new Manifest.Entry("/in/b.nt", 30, 40, Manifest.NO_HASH,
+                "b-0.nt/b-1.nt"));
+        manifest.write(dir);
+
+        Manifest read = Manifest.read(dir);
+        assertEquals("format=ntriples", read.getSettings());
+        Manifest.Entry entry = read.get("/in/b.nt");
+        assertEquals(30, entry.size);
+        assertEquals(40, entry.modified);
+        assertEquals(Manifest.NO_HASH, entry.hash);
+        assertEquals(2, entry.getOutputs().length);
+        assertEquals("abc", read.get("/in/a.nt").hash);
+    }
+
+    @Test
+    public void replacesManifestWhole() throws IOException {
+
+        File dir = folder.newFolder();
+        Manifest manifest = new Manifest("format=ntriples");
+        manifest.put(new Manifest.Entry("/in/a.nt", 10, 20, "abc", "a.nt"));
+        manifest.put(new Manifest.Entry("/in/b.nt", 30, 40, "def", "b.nt"));
+        manifest.write(dir);
+
+        manifest = new Manifest("format=nquads");
+        manifest.put(new Manifest.Entry("/in/a.nt", 11, 21, "abd", "a.nq"));
+        manifest.write(dir);
+
+        Manifest read = Manifest.read(dir);
+        assertEquals("format=nquads", read.getSettings());
+        assertEquals("a.nq", read.get("/in/a.nt").output);
+        assertNull(read.get("/in/b.nt"));
+        // The manifest was written to a temporary file and moved.
+        assertFalse(new File(dir, 
+                Manifest.FILENAME + RdfOutput.TEMP_SUFFIX).exists());
+        assertEquals(1, dir.list().length);
+    }
+}
@@ -0,0 +1,87 @@
+package org.ld4l.addlabels;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+import org.apache.jena.rdf.model.Model;
+import org.apache.jena.rdf.model.ModelFactory;
+import org.apache.jena.rdf.model.Resource;
+import org.apache.jena.riot.RDFDataMgr;
+import org.apache.jena.vocabulary.RDFS;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Checks that an output split into shards is split near the shard size,
+ * that each shard can be read on its own, and that an output that fits in
+ * one shard keeps its basename.
+ */
+public class RdfOutputTest {
+
+    private static final int SHARD_SIZE = 1 << 16;
+
+    // Jena's writers buffer this much text, which a shard can run over by.
+    private static final int WRITER_BUFFER = 1 << 14;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void ntriplesSplitIntoShards() throws IOException {
+        assertShards(OutputFormat.ntriples);
+    }
+
+    @Test
+    public void turtleSplitIntoShards() throws IOException {
+        assertShards(OutputFormat.turtle);
+    }
+
+    private void assertShards(OutputFormat format) throws IOException {
+
+        File dir = folder.newFolder();
+        RdfOutput output = new RdfOutput(dir, format, false);
+        output.setShardSize(SHARD_SIZE);
+
+        Model model = createModel(10000);
+        List<File> files = output.writeModel(model, "a");
+        assertTrue(files.size() > 1);
+        Model union = ModelFactory.createDefaultModel();
+        for (int i = 0; i < files.size(); i++) {
+            File file = files.get(i);
+            assertEquals(String.format("a-%05d", i) + "." + format.extension,
+                    file.getName());
+            assertTrue(file.length() < SHARD_SIZE + 2 * WRITER_BUFFER);
+            if (i < files.size() - 1) {
+                assertTrue(file.length() >= SHARD_SIZE);
+            }
+            union.add(RDFDataMgr.loadModel(file.getPath()));
+        }
+        assertTrue(model.isIsomorphicWith(union));
+
+        // Written again smaller, it keeps its basename, and the shards of
+        // the bigger output are gone.
+        files = output.writeModel(createModel(10), "a");
+        assertEquals(1, files.size());
+        assertEquals("a." + format.extension, files.get(0).getName());
+        assertEquals(1, dir.listFiles().length);
+        assertFalse(new File(dir, "a-00000." + format.extension).exists());
+    }
+
+    private static Model createModel(int labels) {
+
+        Model model = ModelFactory.createDefaultModel();
+        model.setNsPrefix("ex", "http://example.org/");
+        for (int i = 0; i < labels; i++) {
+            Resource resource = model.createResource(
+                    "http://example.org/resource" + i);
+            model.add(resource, RDFS.label, "Label " + i);
+        }
+        return model;
+    }
+}
@@ -0,0 +1,99 @@
+package org.ld4l.addlabels;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+
+import org.apache.jena.graph.Graph;
+import org.apache.jena.riot.system.ErrorHandler;
+import org.apache.jena.riot.system.ErrorHandlerFactory;
+import org.apache.jena.riot.system.StreamRDFLib;
+import org.apache.jena.sparql.graph.GraphFactory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Checks that the lines of an N-Triples file that can't be parsed are
+ * skipped and reported once each, in the reject file, and not also to
+ * Jena's error handler.
+ */
+public class RecoveringParserTest {
+
+    private static final List<String> LINES = Arrays.asList(
+            "<http://example.org/a> <http://example.org/p> \"A\" .",
+            "<http://example.org/b> <http://example.org/p> \"B .",
+            "<http://example.org/c> <http://example.org/p> \"C\" .",
+            "<http://example.org/d> <http://example.org/p> .",
+            "<http://example.org/e> <http://example.org/p> \"E\" .");
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private ErrorHandler defaultErrorHandler;
+    private CountingErrorHandler errorHandler;
+
+    @Before
+    public void setUp() {
+        defaultErrorHandler = ErrorHandlerFactory.getDefaultErrorHandler();
+        errorHandler = new CountingErrorHandler();
+        ErrorHandlerFactory.setDefaultErrorHandler(errorHandler);
+    }
+
+    @After
+    public void tearDown() {
+        ErrorHandlerFactory.setDefaultErrorHandler(defaultErrorHandler);
+    }
+
+    @Test
+    public void badLinesReportedOnceAsRejects() throws IOException {
+
+        File file = folder.newFile("a.nt");
+        Files.write(file.toPath(), LINES, StandardCharsets.UTF_8);
+        File rejectFile =
+                new File(folder.getRoot(), "a" + RecoveringParser.REJECTS_SUFFIX);
+        Graph graph = GraphFactory.createDefaultGraph();
+
+        long rejected = new RecoveringParser().parse(file,
+                StreamRDFLib.graph(graph), UUID.randomUUID(), rejectFile);
+
+        assertEquals(2, rejected);
+        assertEquals(3, graph.size());
+        List<String> rejects =
+                Files.readAllLines(rejectFile.toPath(), StandardCharsets.UTF_8);
+        assertEquals(2, rejects.size());
+        assertTrue(rejects.get(0).startsWith("2\t[col: "));
+        assertTrue(rejects.get(0).endsWith("\t" + LINES.get(1)));
+        assertTrue(rejects.get(1).startsWith("4\t[col: "));
+        assertTrue(rejects.get(1).endsWith("\t" + LINES.get(3)));
+        assertEquals(0, errorHandler.errors);
+    }
+
+    private static class CountingErrorHandler implements ErrorHandler {
+
+        private int errors;
+
+        @Override
+        public void warning(String message, long line, long col) {
+        }
+
+        @Override
+        public void error(String message, long line, long col) {
+            errors++;
+        }
+
+        @Override
+        public void fatal(String message, long line, long col) {
+            errors++;
+        }
+    }
+}